@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import it.polimi.geinterface.DAO.Entity;
+import it.polimi.geinterface.network.MessageType;
+import it.polimi.geinterface.network.MessageUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * 
+ * Sender side of the delta encoding of {@link MessageType#PROX_BEACONS} messages. It remembers the beacons
+ * published with the last message, so that the next one contains only the beacons that appeared, disappeared
+ * or whose {@link DistanceRange} changed. A keyframe, containing all the beacons and the full sender
+ * {@link Entity}, is published every <code>keyframeInterval</code> messages and whenever the sender
+ * {@link Entity} changes, so that receivers that missed a message, or joined later, can rebuild the beacon set.
+ *
+ */
+final class BeaconDeltaEncoder {
+
+	private final int keyframeInterval;
+
+	/**
+	 * {@link DistanceRange} of each beacon published with the last message
+	 */
+	private HashMap<String, DistanceRange> published = new HashMap<String, DistanceRange>();
+
+	/**
+	 * Sender {@link Entity} of the last keyframe, <code>null</code> if a keyframe has to be sent
+	 */
+	private Entity keyframeEntity;
+
+	private long sequence = 0;
+	private int sinceKeyframe = 0;
+
+
+	/**
+	 * @param keyframeInterval - number of messages after which a keyframe is published
+	 */
+	BeaconDeltaEncoder(int keyframeInterval) {
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	/**
+	 * Method that builds the next {@link MessageType#PROX_BEACONS} message to publish
+	 * @param beacons - all the beacons currently seen by the sender
+	 * @param sender - the sender {@link Entity}
+	 * @param logId - Parameter used only for logging
+	 */
+	synchronized String encode(ArrayList<Entity> beacons, Entity sender, String logId){
+
+		HashMap<String, DistanceRange> current = new HashMap<String, DistanceRange>();
+		for(Entity b : beacons)
+			current.put(b.getEntityID(), b.getDistanceRange());
+
+		String msg;
+
+		//selfEntity is replaced by a new object when it changes
+		if(keyframeEntity != sender || sinceKeyframe >= keyframeInterval){
+			msg = MessageUtils.buildProxBeaconsMessage(beacons, sender, sequence, logId);
+			keyframeEntity = sender;
+			sinceKeyframe = 0;
+		}
+		else{
+			ArrayList<Entity> changed = new ArrayList<Entity>();
+			for(Entity b : beacons)
+				if(b.getDistanceRange() != published.get(b.getEntityID()))
+					changed.add(b);
+
+			ArrayList<String> removed = new ArrayList<String>();
+			for(String id : published.keySet())
+				if(!current.containsKey(id))
+					removed.add(id);
+
+			msg = MessageUtils.buildProxBeaconsDeltaMessage(changed, removed, sender, sequence, logId);
+		}
+
+		sinceKeyframe++;
+		sequence++;
+		published = current;
+		return msg;
+	}
+
+	/**
+	 * Method that forces the next message to be a keyframe
+	 */
+	synchronized void reset(){
+		keyframeEntity = null;
+	}
+}
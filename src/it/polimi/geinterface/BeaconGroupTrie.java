@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import it.polimi.geinterface.DAO.Entity;
+import it.polimi.geinterface.DAO.Group;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * 
+ * Prefix trie (UUID &rarr; major &rarr; minor) holding values associated to BLE beacon id prefixes, as
+ * specified in the entity id of beacon scoped {@link Group}s. A single lookup with the tokens of a beacon id
+ * ({@link Entity#getBeaconIdTokens()}) returns the values of every prefix matching the beacon, so the cost
+ * of a lookup does not depend on the number of prefixes stored.
+ * The trie is not thread safe while it is filled: it has to be filled before being shared among threads.
+ *
+ * @param <V> - type of the values stored
+ */
+final class BeaconGroupTrie<V> {
+
+	private final Node<V> root = new Node<V>();
+
+
+	/**
+	 * Method that associates a value to a beacon id prefix
+	 * @param prefix - lowercase UUID, major and minor of the prefix, as returned by {@link Entity#splitBeaconId(String)}
+	 * @param value - the value to be stored
+	 */
+	void put(String[] prefix, V value){
+		Node<V> node = root;
+		for(String token : prefix){
+			Node<V> child = node.children.get(token);
+			if(child == null){
+				child = new Node<V>();
+				node.children.put(token, child);
+			}
+			node = child;
+		}
+		node.values.add(value);
+	}
+
+	/**
+	 * Method returning the values of every prefix matching a beacon id, ordered from the shortest prefix
+	 * to the longest one
+	 * @param beaconId - lowercase UUID, major and minor of the beacon, as returned by {@link Entity#getBeaconIdTokens()}
+	 */
+	List<V> match(String[] beaconId){
+		List<V> ret = new ArrayList<V>();
+		Node<V> node = root;
+		ret.addAll(node.values);
+		for(String token : beaconId){
+			node = node.children.get(token);
+			if(node == null)
+				break;
+			ret.addAll(node.values);
+		}
+		return ret;
+	}
+
+
+	private static final class Node<V>{
+		private final Map<String, Node<V>> children = new HashMap<String, Node<V>>(4);
+		private final List<V> values = new ArrayList<V>(1);
+	}
+
+}
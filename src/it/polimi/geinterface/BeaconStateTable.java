@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import it.polimi.geinterface.DAO.Entity;
+import it.polimi.geinterface.network.InboundMessage;
+import it.polimi.geinterface.network.MessageType;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+
+/**
+ * 
+ * Receiver side of the delta encoding of {@link MessageType#PROX_BEACONS} messages (see {@link BeaconDeltaEncoder}).
+ * It keeps, for each sender and each stream the sender publishes on (see
+ * {@link it.polimi.geinterface.network.InboundMessage#getStream()}), the beacon set and the sender {@link Entity} of
+ * its last message, and rebuilds the full message corresponding to each delta message. A delta message that does
+ * not follow the last message received from its sender on the same stream cannot be applied: it is discarded, and
+ * the stream is ignored until its next keyframe.
+ * The state of a sender is released by its {@link MessageType#CHECK_OUT}; since the one conveyed by the will message
+ * is not received by every device, the least recently updated senders are forgotten once {@link #DEFAULT_CAPACITY}
+ * is reached (their next delta message is discarded until a keyframe).
+ *
+ */
+final class BeaconStateTable {
+
+	private static final String TAG = "BeaconStateTable";
+
+	static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * State of each stream of each sender, by sender id and stream
+	 */
+	private final LinkedHashMap<String, Map<String, SenderState>> senders =
+			new LinkedHashMap<String, Map<String, SenderState>>(16, 0.75f, true){
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Map<String, SenderState>> eldest) {
+			return size() > DEFAULT_CAPACITY;
+		}
+	};
+
+	private long discardedCount = 0;
+
+
+	/**
+	 * Method that applies a {@link MessageType#PROX_BEACONS} message to the state of its sender
+	 * @param message - the message received
+	 * @return the full message, with all the beacons seen by the sender, or <code>null</code> if it cannot be rebuilt
+	 */
+	synchronized InboundMessage apply(InboundMessage message){
+
+		String sender = message.getEntity1().getEntityID().toLowerCase();
+		String stream = String.valueOf(message.getStream());
+
+		if(!message.isDelta()){
+			//messages of senders not using delta encoding are not numbered, and need no state
+			if(message.getSequence() < 0){
+				senders.remove(sender);
+				return message;
+			}
+
+			SenderState state = new SenderState(message.getEntity1(), message.getSequence());
+			for(Entity b : message.getBeacons())
+				state.beacons.put(b.getEntityID(), b);
+			Map<String, SenderState> streams = senders.get(sender);
+			if(streams == null){
+				streams = new HashMap<String, SenderState>(4);
+				senders.put(sender, streams);
+			}
+			streams.put(stream, state);
+			return message;
+		}
+
+		Map<String, SenderState> streams = senders.get(sender);
+		SenderState state = (streams == null) ? null : streams.get(stream);
+		if(state == null || message.getSequence() != state.sequence + 1){
+			discardedCount++;
+			Log.w(TAG, "Delta " + message.getSequence() + " from " + sender + " on " + stream
+					+ " discarded, waiting for a keyframe");
+			if(state != null)
+				streams.remove(stream);
+			return null;
+		}
+
+		for(String id : message.getRemovedBeacons())
+			state.beacons.remove(id);
+		for(Entity b : message.getBeacons())
+			state.beacons.put(b.getEntityID(), b);
+		state.sequence = message.getSequence();
+
+		return message.withBeacons(state.entity, state.beacons.values());
+	}
+
+	/**
+	 * Method that removes the state of a sender, e.g. when it checks out
+	 */
+	synchronized void remove(Entity sender){
+		senders.remove(sender.getEntityID().toLowerCase());
+	}
+
+	/**
+	 * @return the number of delta messages discarded because they could not be applied
+	 */
+	synchronized long getDiscardedCount(){
+		return discardedCount;
+	}
+
+
+	private static final class SenderState {
+
+		private final Entity entity;
+		private long sequence;
+		private final LinkedHashMap<String, Entity> beacons = new LinkedHashMap<String, Entity>();
+
+		SenderState(Entity entity, long sequence) {
+			this.entity = entity;
+			this.sequence = sequence;
+		}
+	}
+}
@@ -112,14 +112,38 @@ public interface ClientProximityAPI {
 	 * @param distance - maximum {@link DistanceRange} an {@link Entity} has to be distant from selfEntity
 	 * to be inserted into <code>result</code>.
 	 * @param g - {@link Group} the {@link Entity} has to belong to in order to be inserted into <code>result</code>.
-	 * @param callback - {@link ActionOutcomeCallback} that has to be performed after <code>millisec</code> ms.
-	 * @param millisec - Time in milliseconds selfEntity has to wait to receive responses by all the entities 
+	 * @param callback - {@link ActionOutcomeCallback} that has to be performed when the query is completed, i.e.
+	 * after <code>millisec</code> ms or as soon as the entities in proximity stop responding.
+	 * @param millisec - Maximum time in milliseconds selfEntity has to wait to receive responses by all the entities 
 	 * in proximity.
 	 * @param result - {@link ArrayList} containing entities in proximity.
 	 */
 	public void getAllEntitiesInProximity(DistanceRange distance, Group g, ActionOutcomeCallback callback, long millisec, ArrayList<Entity> result);
 
 
+	/**
+	 * 
+	 * It permits to collect all entities belonging to {@link Group} <code>g</code> which are at a distance
+	 * less or equal than <code>distance</code> with respect to selfEntity, receiving each of them as soon as it
+	 * responds. Any number of queries can run at the same time. Depending on the {@link ProximityQueryMode}, the
+	 * entities already known from the messages received can be reported without querying the network.
+	 * 
+	 * @param distance - maximum {@link DistanceRange} an {@link Entity} has to be distant from selfEntity
+	 * to be reported.
+	 * @param g - {@link Group} the {@link Entity} has to belong to in order to be reported.
+	 * @param callback - {@link ProximityQueryCallback} receiving the entities found and the completion of the query.
+	 * @param millisec - Maximum time in milliseconds selfEntity has to wait to receive responses by all the entities 
+	 * in proximity.
+	 * @param expectedCount - number of entities expected to respond: the query is completed as soon as they did,
+	 * and the entities that did not respond yet are asked not to.
+	 * If 0 (unknown), or if less entities respond, the query is completed when no response arrives for a short
+	 * quiet period after the last one, or after <code>millisec</code> ms if no entity responds.
+	 * 
+	 * @return - the identifier of the query, passed to the <code>callback</code>.
+	 */
+	public long getAllEntitiesInProximity(DistanceRange distance, Group g, ProximityQueryCallback callback, long millisec, int expectedCount);
+
+
 
 }
 
@@ -24,7 +24,12 @@ package it.polimi.geinterface.DAO;
 
 import it.polimi.geinterface.DistanceRange;
 
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
@@ -40,15 +45,34 @@ public class Entity implements Parcelable{
 
 	private static final String TAG ="Entity";
 
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
 	private String entityID;
 	private Type entityType;
 	private DistanceRange distanceRange;
 
-	private JSONObject properties;
+	private volatile JSONObject properties;
+
+	/**
+	 * Properties in JSON format (UTF-8 bytes), parsed into {@link #properties} only when they are first needed.
+	 * <code>null</code> when {@link #properties} is already available.
+	 */
+	private byte[] rawProperties;
+	private int rawPropertiesOffset;
+	private int rawPropertiesLength;
+
+	/**
+	 * Serialization in JSON format of this {@link Entity}, built on first use by {@link #getJsonFragment()}
+	 */
+	private volatile String jsonFragment;
+
+	/**
+	 * UUID, major and minor of a {@link Type#BLE_BEACON} id, split once on first use
+	 */
+	private String[] beaconIdTokens;
 
 	private Entity(Type t) {
-		properties = new JSONObject();
-		properties.put(JsonStrings.PROPERTIES, new JSONObject());
+		//the empty properties are created only if needed: most entities (e.g. beacons) have no properties
 		this.entityType = t;
 	}
 	
@@ -71,6 +95,21 @@ public class Entity implements Parcelable{
 
 	private void setEntityID(String entityID) {
 		this.entityID = entityID;
+		this.beaconIdTokens = null;
+		this.jsonFragment = null;
+	}
+
+	/**
+	 * Method returning the lowercase UUID, major and minor (as far as present) of the id of this {@link Entity},
+	 * as obtained by {@link #splitBeaconId(String)}. Meaningful only for {@link Type#BLE_BEACON} entities.
+	 */
+	public String[] getBeaconIdTokens(){
+		String[] ret = beaconIdTokens;
+		if(ret == null){
+			ret = splitBeaconId(entityID);
+			beaconIdTokens = ret;
+		}
+		return ret;
 	}
 
 	/**
@@ -78,12 +117,50 @@ public class Entity implements Parcelable{
 	 *
 	 */
 	public JSONObject getProperties(){
-		return properties;
-
+		JSONObject ret = properties;
+		if(ret == null){
+			ret = materializeProperties();
+			properties = ret;
+		}
+		return ret;
 	}
 
 	public void setProperties(JSONObject properties){
 		this.properties = properties;
+		this.rawProperties = null;
+		this.jsonFragment = null;
+	}
+
+	/**
+	 * Method that builds the properties of this {@link Entity}, parsing {@link #rawProperties} if present
+	 */
+	private synchronized JSONObject materializeProperties(){
+		if(properties != null)
+			return properties;
+
+		if(rawProperties != null){
+			try {
+				Object parsed = new JSONParser().parse(new String(rawProperties, rawPropertiesOffset,
+						rawPropertiesLength, UTF_8));
+				rawProperties = null;
+				if(parsed instanceof JSONObject && isValidProperties((JSONObject) parsed))
+					return (JSONObject) parsed;
+				Log.e(TAG, "Properties not valid");
+			} catch (ParseException e) {
+				e.printStackTrace();
+			}
+			rawProperties = null;
+		}
+
+		JSONObject empty = new JSONObject();
+		empty.put(JsonStrings.PROPERTIES, new JSONObject());
+		return empty;
+	}
+
+	private static boolean isValidProperties(JSONObject properties){
+		return properties.keySet().contains(JsonStrings.PROPERTIES)
+				&& properties.keySet().size() == 1
+				&& (properties.get(JsonStrings.PROPERTIES) instanceof JSONObject);
 	}
 
 	public Type getEntityType() {
@@ -96,6 +173,7 @@ public class Entity implements Parcelable{
 
 	public void setDistanceRange(DistanceRange distanceRange) {
 		this.distanceRange = distanceRange;
+		this.jsonFragment = null;
 	}
 
 
@@ -105,19 +183,49 @@ public class Entity implements Parcelable{
 	 */
 	public JSONObject getJsonDescriptor(){
 
-		String jsonDescription = "{\"" + JsonStrings.ENTITY + "\":"
-				+ "{\"" + JsonStrings.ENTITY_ID + "\":\"" + this.getEntityID() + "\","
-				+ "\"" + JsonStrings.ENTITY_TYPE + "\":\"" + this.getEntityType().name() + "\","
-				+ "\"" + JsonStrings.DISTANCE_RANGE + "\":\"" + this.getDistanceRange().name() + "\","
-				+ "\"" + JsonStrings.PROPERTIES + "\":" + this.getProperties() + "}}";
+		JSONObject entity = new JSONObject();
+		entity.put(JsonStrings.ENTITY_ID, this.getEntityID());
+		entity.put(JsonStrings.ENTITY_TYPE, this.getEntityType().name());
+		entity.put(JsonStrings.DISTANCE_RANGE, this.getDistanceRange().name());
+		entity.put(JsonStrings.PROPERTIES, this.getProperties());
 
-		JSONParser parser = new JSONParser();
-		try {
-			return ((JSONObject)parser.parse(jsonDescription));
-		} catch (ParseException e) {
-			e.printStackTrace();
-			return null;
+		JSONObject ret = new JSONObject();
+		ret.put(JsonStrings.ENTITY, entity);
+		return ret;
+	}
+
+	/**
+	 * Method returning the serialization in JSON format of this {@link Entity}, i.e. the value of the
+	 * {@link JsonStrings#ENTITY} field of {@link #getJsonDescriptor()}, used to build the messages sent.
+	 * It is built only once: after modifying the properties in place (instead of using {@link #setProperties(JSONObject)}),
+	 * {@link #invalidateJsonFragment()} has to be called.
+	 */
+	public String getJsonFragment(){
+		String ret = jsonFragment;
+		if(ret == null){
+			ret = buildJsonFragment();
+			jsonFragment = ret;
 		}
+		return ret;
+	}
+
+	/**
+	 * Method that discards the serialization returned by {@link #getJsonFragment()}, so that it is built again
+	 */
+	public void invalidateJsonFragment(){
+		jsonFragment = null;
+	}
+
+	private synchronized String buildJsonFragment(){
+		//properties not parsed yet are copied as they are
+		String jsonProperties = (rawProperties != null)
+				? new String(rawProperties, rawPropertiesOffset, rawPropertiesLength, UTF_8)
+				: getProperties().toJSONString();
+
+		return "{\"" + JsonStrings.ENTITY_ID + "\":\"" + JSONValue.escape(this.getEntityID()) + "\","
+				+ "\"" + JsonStrings.ENTITY_TYPE + "\":\"" + this.getEntityType().name() + "\","
+				+ "\"" + JsonStrings.DISTANCE_RANGE + "\":\"" + this.getDistanceRange().name() + "\","
+				+ "\"" + JsonStrings.PROPERTIES + "\":" + jsonProperties + "}";
 	}
 
 	@Override
@@ -148,15 +256,28 @@ public class Entity implements Parcelable{
 		}
 
 		public Builder addProperties(JSONObject properties) {
-			if(properties.keySet().contains(JsonStrings.PROPERTIES)
-					&& properties.keySet().size() == 1
-					&& (properties.get(JsonStrings.PROPERTIES) instanceof JSONObject))
+			if(isValidProperties(properties))
 				ret.setProperties(properties);
 			else
 				Log.e(TAG, "Properties not valid");
 			return this;
 		}
 
+		/**
+		 * Method that sets the properties in JSON format, in the same form accepted by {@link #addProperties(JSONObject)}.
+		 * They are parsed only when {@link Entity#getProperties()} is first called, so they are never parsed for
+		 * entities whose properties are not used.
+		 * @param json - array containing the UTF-8 bytes of the properties, that must not be modified afterwards
+		 */
+		public Builder addRawProperties(byte[] json, int offset, int length) {
+			ret.properties = null;
+			ret.jsonFragment = null;
+			ret.rawProperties = json;
+			ret.rawPropertiesOffset = offset;
+			ret.rawPropertiesLength = length;
+			return this;
+		}
+
 		public Builder setDistance(DistanceRange distanceRange){
 			ret.setDistanceRange(distanceRange);
 			return this;
@@ -176,6 +297,20 @@ public class Entity implements Parcelable{
 	}
 	
 	
+	/**
+	 * Method that splits a BLE beacon id (or id prefix) in the form <code>UUID[:major[:minor]]</code>
+	 * @param beaconId - the id to be split
+	 * @return the lowercase UUID, major and minor present in the id (at most 3 tokens)
+	 */
+	public static String[] splitBeaconId(String beaconId){
+		StringTokenizer tokenizer = new StringTokenizer(beaconId.toLowerCase(), ":");
+		ArrayList<String> tokens = new ArrayList<String>(3);
+		while(tokens.size() < 3 && tokenizer.hasMoreTokens())
+			tokens.add(tokenizer.nextToken());
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+
 	public static String getBeaconNameFromUuid(String beaconId){
 		
 		switch (beaconId.toUpperCase()) {
@@ -228,7 +363,7 @@ public class Entity implements Parcelable{
 		dest.writeString(this.entityID);
 		dest.writeString((this.entityType == null) ? "" : this.entityType.name());
 		dest.writeString((this.distanceRange == null) ? "" : this.distanceRange.name());
-		dest.writeString(this.properties.toString());
+		dest.writeString(this.getProperties().toString());
 	}
 	
 	public final static Parcelable.Creator<Entity> CREATOR = new Parcelable.Creator<Entity>() {
@@ -21,10 +21,9 @@
 package it.polimi.geinterface.DAO;
 
 import it.polimi.geinterface.DAO.Entity.Type;
+import it.polimi.geinterface.filter.CompiledFilter;
 import it.polimi.geinterface.filter.PropertiesFilter;
 
-import java.util.StringTokenizer;
-
 import android.os.Parcel;
 import android.os.Parcelable;
 
@@ -37,8 +36,16 @@ import android.os.Parcelable;
 public class Group implements Parcelable{
 
 	private PropertiesFilter filter;
+	/**
+	 * {@link #filter} compiled once, when the {@link Group} is created
+	 */
+	private CompiledFilter compiledFilter;
 
 	private String entity_id;
+	/**
+	 * {@link #entity_id} split with {@link Entity#splitBeaconId(String)}, used to match {@link Type#BLE_BEACON} entities
+	 */
+	private String[] beaconIdTokens;
 	private Type type;
 	
 	private String groupDesc = "";
@@ -49,8 +56,8 @@ public class Group implements Parcelable{
 	private Group(Parcel source){
 		try {
 			String filterTemp =source.readString();
-			this.filter = filterTemp.equalsIgnoreCase("") ? null : PropertiesFilter.parseFromString(filterTemp);
-			this.entity_id = source.readString();
+			setFilter(filterTemp.equalsIgnoreCase("") ? null : PropertiesFilter.parseFromString(filterTemp));
+			setEntity_id(source.readString());
 			this.type = Type.valueOf(source.readString());
 			this.groupDesc = source.readString();
 		} catch (Exception e) {
@@ -72,31 +79,14 @@ public class Group implements Parcelable{
 
 			if(e.getEntityType().equals(Entity.Type.BLE_BEACON)){
 
-				StringTokenizer receivedTokenizer = new StringTokenizer(e.getEntityID(),":");
-				String receivedUUID = receivedTokenizer.nextToken();
-				StringTokenizer filterTokenizer = new StringTokenizer(entityId,":");
-				String filterUUID = filterTokenizer.nextToken();
-
-				if(!filterUUID.equalsIgnoreCase(receivedUUID))
+				//UUID, then Major, then Minor have to match, as far as they are specified in the group
+				String[] receivedTokens = e.getBeaconIdTokens();
+				if(receivedTokens.length < beaconIdTokens.length)
 					return false;
 
-				if(!filterTokenizer.hasMoreElements())	
-					return true;
-
-				//Extraction of the Major
-				String receivedMajor = receivedTokenizer.nextToken();
-				String filterMajor = filterTokenizer.nextToken();
-				if(!filterMajor.equalsIgnoreCase(receivedMajor))
-					return false;
-
-				if(!filterTokenizer.hasMoreElements())		
-					return true;
-
-				//Extraction of the Minor
-				String receivedMinor = receivedTokenizer.nextToken();
-				String filterMinor = filterTokenizer.nextToken();
-				if(!filterMinor.equalsIgnoreCase(receivedMinor))
-					return false;
+				for(int i = 0; i < beaconIdTokens.length; i++)
+					if(!beaconIdTokens[i].equals(receivedTokens[i]))
+						return false;
 
 				return true;
 
@@ -115,8 +105,8 @@ public class Group implements Parcelable{
 
 		
 		//Properties check
-		if(this.filter != null)
-			return PropertiesFilter.evalFilter(filter, e.getProperties());
+		if(this.compiledFilter != null)
+			return compiledFilter.matches(e.getProperties());
 		
 		return true;
 		
@@ -135,6 +125,7 @@ public class Group implements Parcelable{
 
 	private void setFilter(PropertiesFilter filter) {
 		this.filter = filter;
+		this.compiledFilter = (filter == null) ? null : PropertiesFilter.compile(filter);
 	}
 
 	public String getEntity_id() {
@@ -143,6 +134,15 @@ public class Group implements Parcelable{
 
 	private void setEntity_id(String entity_id) {
 		this.entity_id = entity_id;
+		this.beaconIdTokens = (entity_id == null) ? null : Entity.splitBeaconId(entity_id);
+	}
+
+	/**
+	 * Method returning the lowercase UUID, major and minor specified in the entity id of the {@link Group},
+	 * used to match {@link Type#BLE_BEACON} entities
+	 */
+	public String[] getBeaconIdTokens() {
+		return beaconIdTokens;
 	}
 
 	public Type getType() {
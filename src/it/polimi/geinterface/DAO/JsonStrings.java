@@ -42,6 +42,12 @@ public class JsonStrings {
 	public static final String GROUP = "group";
 	public static final String FILTER = "filter";
 	public static final String GROUP_DESCRIPTOR = "group_descriptor";
+	public static final String DELTA = "delta";
+	public static final String SEQUENCE = "seq";
+	public static final String REMOVED_BEACONS = "removed_beacons";
+	public static final String MAX_RESPONSES = "max_responses";
+	public static final String AGGREGATE = "aggregate";
+	public static final String ENTITIES = "entities";
 	
 	//Json keys for POI
 	public static final String NAME = "name";
@@ -30,14 +30,24 @@ import it.polimi.geinterface.DAO.Group;
 import it.polimi.geinterface.DAO.JsonStrings;
 import it.polimi.geinterface.DAO.POI;
 import it.polimi.geinterface.DAO.Subscription;
+import it.polimi.geinterface.concurrency.KeyedSerialExecutor;
 import it.polimi.geinterface.concurrency.Scheduler;
+import it.polimi.geinterface.concurrency.TaskPriority;
+import it.polimi.geinterface.concurrency.WindowCoalescer;
 import it.polimi.geinterface.filter.PropertiesFilter;
 import it.polimi.geinterface.network.ConnectionStateCallback;
+import it.polimi.geinterface.network.DeliveryPolicy;
+import it.polimi.geinterface.network.InboundMessage;
+import it.polimi.geinterface.network.JsonMessageCodec;
 import it.polimi.geinterface.network.MQTTPahoClient;
+import it.polimi.geinterface.network.MessageLane;
 import it.polimi.geinterface.network.MessageCallback;
+import it.polimi.geinterface.network.MessageCodec;
 import it.polimi.geinterface.network.MessageTopic;
 import it.polimi.geinterface.network.MessageType;
 import it.polimi.geinterface.network.MessageUtils;
+import it.polimi.geinterface.network.OutboundPublisher;
+import it.polimi.geinterface.network.ProximityTopicMode;
 import it.polimi.geinterface.security.SecurityManager;
 import it.polimi.geinterface.service.ProximityService;
 import it.polimi.logging.LogMessageUtils;
@@ -55,10 +65,12 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.altbeacon.beacon.Beacon;
 import org.altbeacon.beacon.Identifier;
@@ -105,7 +117,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 	/**
 	 * {@link Entity} representing the device on which che framework is running.
 	 */
-	private Entity selfEntity;
+	private volatile Entity selfEntity;
 
 	private ConnectionStateCallback connStateCallback;
 
@@ -118,6 +130,61 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 	protected Scheduler scheduler;
 
+	/**
+	 * Executor running on {@link #scheduler} the evaluation tasks of each remote {@link Entity} one at a time, in
+	 * the order messages are received, while tasks of different entities run in parallel
+	 */
+	protected KeyedSerialExecutor entityLanes;
+
+	/**
+	 * Stage in front of {@link #entityLanes} coalescing the {@link MessageType#PROX_BEACONS} messages of each sender:
+	 * within {@link #proxBeaconsWindow} only the latest beacon set of a sender is evaluated
+	 */
+	protected WindowCoalescer<String, InboundMessage> proxBeaconsCoalescer;
+
+	/**
+	 * Number of evaluation tasks not scheduled because the {@link MessageType#PROX_BEACONS} message that would
+	 * have produced them was superseded by a newer one from the same sender
+	 */
+	private final AtomicLong skippedProxBeaconsEvaluations = new AtomicLong();
+
+	/**
+	 * Topics where {@link MessageType#PROX_BEACONS} messages are published and received, holding the encoders
+	 * used when {@link #proxBeaconsDeltaEnabled}
+	 */
+	private ProximityTopics proximityTopics;
+
+	/**
+	 * {@link InterestManager} keeping subscribed only the topics carrying the {@link MessageType}s needed
+	 */
+	private InterestManager interests;
+
+	/**
+	 * Number of messages received but discarded because their {@link MessageType} was not needed
+	 */
+	private final AtomicLong unneededMessagesCount = new AtomicLong();
+
+	/**
+	 * Last known presence of the other entities, used to fire group events only once per
+	 * {@link MessageType#CHECK_IN} / {@link MessageType#CHECK_OUT}
+	 */
+	private final PresenceTable presence = new PresenceTable(PresenceTable.DEFAULT_CAPACITY);
+
+	/**
+	 * Last known properties and beacons of the other devices, used to answer proximity queries locally
+	 */
+	private final ProximityDirectory directory = new ProximityDirectory(ProximityDirectory.DEFAULT_CAPACITY);
+
+	/**
+	 * State of the beacons seen by each sender of delta {@link MessageType#PROX_BEACONS} messages
+	 */
+	private final BeaconStateTable beaconStates = new BeaconStateTable();
+
+	/**
+	 * If <code>true</code>, {@link MessageType#PROX_BEACONS} messages are published with delta encoding
+	 */
+	private volatile boolean proxBeaconsDeltaEnabled = false;
+
 	/**
 	 * This is the {@link Timer} used to wait for a time equal to {@link #CHECK_IN_AFTER_PROP_UPDATE_DELAY}
 	 * the {@link MessageType#PROPERTIES_UPDATE} corresponding to a {@link MessageType#CHECK_OUT} false. When
@@ -137,22 +204,18 @@ public class GroupEntityManager implements ClientProximityAPI {
 	protected final long CHECK_IN_AFTER_PROP_UPDATE_DELAY = 30000;
 
 
-	private SubscriptionCallback subscriptionCallback;
-
-	/**
-	 * {@link Subscription} list for proximity events
-	 */
-	private ArrayList<Subscription> proximitySubscriptionList;
+	private volatile SubscriptionCallback subscriptionCallback;
 
 	/**
-	 * {@link Subscription} list for group events
+	 * Current {@link SubscriptionSnapshot}, containing proximity, group and geofence {@link Subscription}s.
+	 * It is replaced (never modified) when subscriptions change, holding {@link #subscriptionLock}.
 	 */
-	private ArrayList<Subscription> groupSubscriptionList;
+	private volatile SubscriptionSnapshot subscriptions;
 
 	/**
-	 * {@link Subscription} list for geofence events
+	 * Object used to serialize changes of {@link #subscriptions}
 	 */
-	private ArrayList<Subscription> geofenceSubscriptionList;
+	private final Object subscriptionLock = new Object();
 
 
 	/**
@@ -167,15 +230,22 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 
 	/**
-	 * {@link ArrayList} of {@link Entity} containing the set of {@link Entity} responding to a
-	 * {@link MessageType#SYNC_REQ} message
+	 * Queries started by {@link #getAllEntitiesInProximity(DistanceRange, Group, ProximityQueryCallback, long, int)}
+	 * and waiting for {@link MessageType#SYNC_RESP} messages
 	 */
-	protected ArrayList<Entity> syncRespEntityList;
+	private ProximityQueries proximityQueries;
 
 	/**
-	 * Object used in syncResp to handle the {@link Timer} timeout
+	 * Responses of selfEntity to the {@link MessageType#SYNC_REQ} messages of the other devices
 	 */
-	private Object syncObj = new Object();
+	private SyncResponder syncResponder;
+
+	/**
+	 * <code>true</code> if the {@link MessageType#SYNC_REQ}s sent accept aggregated {@link MessageType#SYNC_RESP}s
+	 */
+	private volatile boolean syncAggregationEnabled = false;
+
+	private volatile ProximityQueryMode proximityQueryMode = ProximityQueryMode.NETWORK;
 
 	private MessageHandler msgHandler;
 
@@ -198,6 +268,22 @@ public class GroupEntityManager implements ClientProximityAPI {
 	 */
 	private int bleScanCounter = 0;
 
+	/**
+	 * Coalescing key of the {@link Scheduler} tasks processing local BLE scans: only the latest scan matters
+	 */
+	private final static String LOCAL_SCAN_KEY = "localScan";
+
+	/**
+	 * Default length (in milliseconds) of the window in which {@link MessageType#PROX_BEACONS} messages of the
+	 * same sender are coalesced
+	 */
+	public final static long DEFAULT_PROX_BEACONS_WINDOW = 2000;
+
+	/**
+	 * Number of delta {@link MessageType#PROX_BEACONS} messages published between two keyframes
+	 */
+	private final static int DEFAULT_PROX_BEACONS_KEYFRAME_INTERVAL = 10;
+
 
 	public static GroupEntityManager getInstance(){
 		return _instance;
@@ -205,7 +291,28 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 	public static void init(Context ctx, Entity self, SecurityManager secureMgr,
 			final ConnectionStateCallback connCallback){
-		_instance = new GroupEntityManager(ctx, self, secureMgr, connCallback);
+		init(ctx, self, secureMgr, connCallback, null);
+	}
+
+	/**
+	 * Method that initializes the {@link GroupEntityManager} using a custom {@link Scheduler}, e.g. with a
+	 * different queue capacity or {@link it.polimi.geinterface.concurrency.OverflowPolicy}
+	 * @param scheduler - the {@link Scheduler} executing evaluation tasks; if <code>null</code>, a default
+	 * {@link Scheduler} is used
+	 */
+	public static void init(Context ctx, Entity self, SecurityManager secureMgr,
+			final ConnectionStateCallback connCallback, Scheduler scheduler){
+		init(ctx, self, secureMgr, connCallback, scheduler, null);
+	}
+
+	/**
+	 * Method that initializes the {@link GroupEntityManager} choosing the encoding of the messages published
+	 * @param codec - the {@link MessageCodec} used to encode published messages, or <code>null</code> to use
+	 * the JSON format ({@link JsonMessageCodec}). Messages are decoded in any format.
+	 */
+	public static void init(Context ctx, Entity self, SecurityManager secureMgr,
+			final ConnectionStateCallback connCallback, Scheduler scheduler, MessageCodec codec){
+		_instance = new GroupEntityManager(ctx, self, secureMgr, connCallback, scheduler, codec);
 		Log.d(TAG, "NEW GROUPENTITYMANAGER INSTANCE");
 	}
 
@@ -217,9 +324,10 @@ public class GroupEntityManager implements ClientProximityAPI {
 	 * @param secureMgr - {@link SecurityManager} used to set security policies.
 	 * @param connCallback - {@link ConnectionStateCallback} used to set callback functions for 
 	 * network events (disconnection, connection failed, successful connection)
+	 * @param scheduler - {@link Scheduler} executing evaluation tasks, or <code>null</code> for the default one
 	 */
 	private GroupEntityManager(Context ctx, Entity self, SecurityManager secureMgr,
-			final ConnectionStateCallback connCallback){
+			final ConnectionStateCallback connCallback, Scheduler scheduler, MessageCodec codec){
 		_instance = this;
 		appCtx = ctx;
 		selfEntity = self;
@@ -238,9 +346,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 		techManager.startProximiyUpdates();
 
 		proximityDataList = new ArrayList<ProximityData>();
-		proximitySubscriptionList = new ArrayList<Subscription>();
-		groupSubscriptionList = new ArrayList<Subscription>();
-		geofenceSubscriptionList = new ArrayList<Subscription>();
+		subscriptions = SubscriptionSnapshot.empty();
 
 		lastSeenBeacons = new ArrayList<Entity>();	
 
@@ -250,25 +356,57 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 		checkInTimer = new Timer(true);
 
+		proximityQueries = new ProximityQueries(self.getEntityID(), checkInTimer, new ProximityQueries.Listener() {
+
+			@Override
+			public void onExpectedCountReached(String replyTopic) {
+				//the entities still in their backoff do not have to respond anymore, even if they subscribe later
+				networkClient.publishRetainedMessage(MessageUtils.getSyncClosedTopic(replyTopic), MessageType.SYNC_RESP,
+						MessageUtils.buildSyncRespMessage(selfEntity, replyTopic));
+			}
+
+			@Override
+			public void onQueryExpired(String replyTopic) {
+				networkClient.clearRetained(MessageUtils.getSyncClosedTopic(replyTopic), MessageType.SYNC_RESP);
+			}
+		});
+
 		this.connStateCallback = connCallback;
 
-		networkClient = new MQTTPahoClient(appCtx,self, securityManager,connCallback);
+		networkClient = new MQTTPahoClient(appCtx,self, securityManager,connCallback,
+				(codec == null) ? new JsonMessageCodec() : codec);
+
+		proximityTopics = new ProximityTopics(networkClient, DEFAULT_PROX_BEACONS_KEYFRAME_INTERVAL);
+
+		//a timer of its own: the responses do not wait for, nor depend on, the other tasks of checkInTimer
+		syncResponder = new SyncResponder(networkClient, new Timer("SyncResponder", true), directory);
+
+		interests = new InterestManager(networkClient, proximityTopics, securityManager, self.getEntityID());
+		interests.update(subscriptions);
+		networkClient.susbcribe(self.getEntityID());
+		networkClient.susbcribe(proximityQueries.getReplyFilter());
 
 		networkClient.setMessageArrivedCallback(new MessageCallback() {
 
 			@Override
-			public void onMessageReceived(String m) {
+			public void onMessageReceived(InboundMessage m) {
 
 				//timestamp used for logging
 				long timestamp = Calendar.getInstance().getTimeInMillis() + LoggerService.NTP_DELAY;
 
-				String senderID = MessageUtils.getSenderID(m);
-				MessageType type = MessageUtils.getMsgType(m);
+				String senderID = m.getSenderID();
+				MessageType type = m.getType();
 
 				//skip messages from myself
 				if(senderID.equalsIgnoreCase(selfEntity.getEntityID()))
 					return;
 
+				//skip messages received before the topic was unsubscribed, or sharing the topic with needed ones
+				if(!interests.isInterested(type)){
+					unneededMessagesCount.incrementAndGet();
+					return;
+				}
+
 				Log.i(TAG, "Message received from " + senderID );
 
 				/*
@@ -277,27 +415,26 @@ public class GroupEntityManager implements ClientProximityAPI {
 				 * 
 				 */
 				String log, topicReply,logId; 
-				JSONObject status = LogMessageUtils.buildStatus(proximitySubscriptionList.size(),
-						groupSubscriptionList.size(), geofenceSubscriptionList.size());
+				JSONObject status = buildStatus(subscriptions);
 
 				if(type.equals(MessageType.SYNC_RESP))
-					topicReply = MessageUtils.getRequestTopicFromMessage(m);
+					topicReply = m.getRequestTopic();
 				else {
 					topicReply = null;
 				}
 
 				if(type.equals(MessageType.CHECK_OUT)){
-					if(MessageUtils.getValidBitFromMessage(m))
+					if(m.isValid())
 						logId = selfEntity.getEntityID() + timestamp;
 					else {
-						logId = MessageUtils.getSenderID(m);
+						logId = m.getSenderID();
 					}
 					log = LogMessageUtils.buildMessageReceivedLog(logId, selfEntity.getEntityID(), 
 							Type.DEVICE, type, topicReply, status, timestamp);
-					m = MessageUtils.addLogField(m, logId);
+					m = m.withLogId(logId);
 				}
 				else{
-					log = LogMessageUtils.buildMessageReceivedLog(MessageUtils.getLogIdFromMessage(m),
+					log = LogMessageUtils.buildMessageReceivedLog(m.getLogId(),
 							selfEntity.getEntityID(), Type.DEVICE, type, topicReply, status, timestamp);
 				}
 
@@ -315,8 +452,23 @@ public class GroupEntityManager implements ClientProximityAPI {
 			}
 		});
 
-		scheduler = new Scheduler();
-		scheduler.resume();
+		this.scheduler = (scheduler == null) ? new Scheduler() : scheduler;
+		entityLanes = new KeyedSerialExecutor(this.scheduler);
+		proxBeaconsCoalescer = new WindowCoalescer<String, InboundMessage>(DEFAULT_PROX_BEACONS_WINDOW,
+				new WindowCoalescer.Handler<InboundMessage>() {
+
+			@Override
+			public void handle(InboundMessage message) {
+				msgHandler.handleProxBeacons(message);
+			}
+
+			@Override
+			public void onSkipped(InboundMessage message) {
+				//evaluateGeofence, plus evaluateProximityD2D and one evaluateProximity for each beacon if there are any
+				int beacons = message.getBeacons().size();
+				skippedProxBeaconsEvaluations.addAndGet((beacons == 0) ? 1 : beacons + 2);
+			}
+		});
 	}
 
 
@@ -326,8 +478,19 @@ public class GroupEntityManager implements ClientProximityAPI {
 	 * @param host_url - IP address of the PubSub broker
 	 */
 	public void connect(String host_url){
+		connect(Collections.singletonList(host_url));
+	}
+
+	/**
+	 * Method that has to be called in order to connect to the network, with failover between several brokers.
+	 * The connection is restored automatically (with the subscriptions) after an unexpected disconnection, until
+	 * {@link #stop()} is called: {@link ConnectionStateCallback#onConnected()} is called at every connection.
+	 * 
+	 * @param host_urls - URIs of the PubSub brokers, in order of preference
+	 */
+	public void connect(List<String> host_urls){
 
-		networkClient.connect(host_url, new ActionOutcomeCallback() {
+		networkClient.connect(host_urls, new ActionOutcomeCallback() {
 
 			@Override
 			public void onCompleted() {
@@ -336,8 +499,9 @@ public class GroupEntityManager implements ClientProximityAPI {
 					long timestamp = Calendar.getInstance().getTimeInMillis() + LoggerService.NTP_DELAY;
 					String logId = selfEntity.getEntityID() + timestamp;
 
-					networkClient.publishMessage(MessageTopic.BROADCAST.name(), 
+					networkClient.publishMessage(MessageTopic.BROADCAST.name(), MessageType.CHECK_IN,
 							MessageUtils.buildCheckInMessage(selfEntity, logId));
+					networkClient.publishState(true);
 
 					//logging
 					String log = LogMessageUtils.buildMessageSentLog(logId, selfEntity.getEntityID(), 
@@ -345,10 +509,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 					LoggerService.writeToFile(appCtx, log);
 				}
 
-				networkClient.susbcribe(MessageTopic.BROADCAST.name());
-				networkClient.susbcribe(MessageTopic.PROXIMITY.name());
-				networkClient.susbcribe(MessageTopic.GROUP.name());
-				networkClient.susbcribe(selfEntity.getEntityID());
+				interests.onConnected();
 
 				if(connStateCallback != null)
 					connStateCallback.onConnected();
@@ -410,6 +571,9 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 					Log.i(TAG, "Beacon found with BLE scan: " + beacons.size());
 
+					//the device is at the POI even if no geofence entry was notified (e.g. it started inside it)
+					proximityTopics.enterShard(p.getBeaconUuid());
+
 					for(Beacon b: beacons){
 						temp = new Entity.Builder(b.getId1() + ":" + b.getId2() + ":" + b.getId3(),
 								Entity.Type.BLE_BEACON)
@@ -427,14 +591,28 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 					if(securityManager.check_proximity_changes_enabled()){
 
+						networkClient.updatePresenceBeacons(beaconEntities);
+
 						bleScanCounter++;
 
+						//no other device is interested in the beacons seen: the message is skipped
+						if(bleScanCounter == DEFAULT_BLE_SCAN_COUNTER
+								&& !interests.shouldPublishProxBeacons(selfEntity, beaconEntities))
+							bleScanCounter = 0;
+
 						if(bleScanCounter == DEFAULT_BLE_SCAN_COUNTER){
 							long timestamp = Calendar.getInstance().getTimeInMillis() + LoggerService.NTP_DELAY;
 							String logId = selfEntity.getEntityID() + timestamp;
 
-							networkClient.publishMessage(MessageTopic.PROXIMITY.name(), 
-									MessageUtils.buildProxBeaconsMessage(beaconEntities, selfEntity, logId));
+							Beacon nearest = Collections.min(beacons, new Comparator<Beacon>() {
+
+								@Override
+								public int compare(Beacon lhs, Beacon rhs) {
+									return Double.compare(lhs.getDistance(), rhs.getDistance());
+								}
+							});
+							proximityTopics.publishProxBeacons(beaconEntities, selfEntity, p.getBeaconUuid(),
+									nearest.getId2().toString(), proxBeaconsDeltaEnabled, logId);
 
 							bleScanCounter = 0;
 
@@ -452,6 +630,10 @@ public class GroupEntityManager implements ClientProximityAPI {
 				@Override
 				public void onExitGeofenceArea(ProximityResult result) {
 
+					proximityTopics.exitShard(p.getBeaconUuid());
+					if(securityManager.check_proximity_changes_enabled())
+						networkClient.updatePresenceBeacons(Collections.<Entity>emptyList());
+
 					Intent poiExitIntent = new Intent(getPOIEventBroadcastAction());
 					poiExitIntent.putExtra(SELF_ENTITY_INTENT_KEY, selfEntity);
 					poiExitIntent.putExtra(POI_OBJ_INTENT_KEY, p);
@@ -462,6 +644,8 @@ public class GroupEntityManager implements ClientProximityAPI {
 				@Override
 				public void onEnterGeofenceArea(ProximityResult result) {
 
+					proximityTopics.enterShard(p.getBeaconUuid());
+
 					Intent poiEntryIntent = new Intent(getPOIEventBroadcastAction());
 					poiEntryIntent.putExtra(SELF_ENTITY_INTENT_KEY, selfEntity);
 					poiEntryIntent.putExtra(POI_OBJ_INTENT_KEY, p);
@@ -549,7 +733,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 				}
 
 			}
-		});
+		}, TaskPriority.LOCAL_SCAN, LOCAL_SCAN_KEY);
 
 	}
 
@@ -574,7 +758,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 		/**
 		 * The message is sent on <code>e2</code> topic
 		 */
-		networkClient.publishMessage(e2.getEntityID(),
+		networkClient.publishMessage(e2.getEntityID(), MessageType.PROXIMITY_UPDATE,
 				MessageUtils.buildProximityMessage(selfEntity.getEntityID(),MessageType.PROXIMITY_UPDATE,
 						e1, e2,distance, logId));
 
@@ -603,11 +787,13 @@ public class GroupEntityManager implements ClientProximityAPI {
 			throw new Exception("Self Entity ID modified!");
 		}
 
-		Log.w(TAG, "waiting scheduler pause");
-		scheduler.pause();
 		Log.w(TAG, "Modifying entity");
 		final Entity oldEntity = selfEntity;
 
+		//properties may have been modified in place: the serialization used in outgoing messages is rebuilt
+		newSelfEntity.invalidateJsonFragment();
+		proximityTopics.resetEncoders();
+
 		networkClient.onSelfEntityUpdate(oldEntity, newSelfEntity, fromGhost_toVisible, 
 				new ActionOutcomeCallback() {
 
@@ -619,6 +805,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 					String logId = selfEntity.getEntityID();
 
 					networkClient.publishMessage(MessageUtils.getMsgTopic(MessageType.PROPERTIES_UPDATE).name(),
+							MessageType.PROPERTIES_UPDATE,
 							MessageUtils.buildGroupMessage(newSelfEntity.getEntityID(),
 									newSelfEntity,
 									oldEntity.getProperties(), logId));
@@ -628,17 +815,10 @@ public class GroupEntityManager implements ClientProximityAPI {
 							Type.DEVICE, MessageType.PROPERTIES_UPDATE, null, false, timestamp);
 					LoggerService.writeToFile(appCtx, log);
 				}
-
-				networkClient.susbcribe(MessageTopic.BROADCAST.name());
-				networkClient.susbcribe(MessageTopic.PROXIMITY.name());
-				networkClient.susbcribe(MessageTopic.GROUP.name());
-				networkClient.susbcribe(selfEntity.getEntityID());
-
 			}
 		});
 
 		selfEntity = newSelfEntity;
-		scheduler.resume();
 	}
 
 
@@ -667,10 +847,13 @@ public class GroupEntityManager implements ClientProximityAPI {
 			return null;
 		}
 
-		scheduler.pause();
-		proximitySubscriptionList.add(ret);
-		scheduler.resume();
-		Log.d(TAG, "Proximity subs size: " + proximitySubscriptionList.size());
+		int size;
+		synchronized (subscriptionLock) {
+			subscriptions = subscriptions.addProximity(ret);
+			interests.update(subscriptions);
+			size = subscriptions.getProximitySubscriptions().size();
+		}
+		Log.d(TAG, "Proximity subs size: " + size);
 		return ret;
 	}
 
@@ -679,7 +862,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 			DistanceRange distance) {
 		Subscription ret = new Subscription(e1, g2, distance);
 
-		//boolean value used to determine if an EventError has to be notified, after the Scheduler is resumed
+		//boolean value used to determine if an EventError has to be notified, after the lock is released
 		boolean handleError = false;	
 
 		//if e1 is not selfEntity or a beacon, an ErrorEvent is notified
@@ -688,17 +871,19 @@ public class GroupEntityManager implements ClientProximityAPI {
 			return null;
 		}
 
-		scheduler.pause();
-
-		/*
-		 * if the limit on geofence subscription is reached, an ErrorEvent has to be fired on Scheduler resume,
-		 * otherwise the subscription is added to the geofenceSubscriptionList
-		 */	
-		if(geofenceSubscriptionList.size() >= GEOFENCE_SUBSCRIPTION_LIMIT )
-			handleError = true;
-		else
-			geofenceSubscriptionList.add(ret);
-		scheduler.resume();
+		synchronized (subscriptionLock) {
+
+			/*
+			 * if the limit on geofence subscription is reached, an ErrorEvent has to be fired once the lock
+			 * is released, otherwise the subscription is added to the geofence subscriptions
+			 */	
+			if(subscriptions.getGeofenceSubscriptions().size() >= GEOFENCE_SUBSCRIPTION_LIMIT )
+				handleError = true;
+			else{
+				subscriptions = subscriptions.addGeofence(ret);
+				interests.update(subscriptions);
+			}
+		}
 
 		if(handleError){
 			getSubscriptionCallback().handleSubscriptionError(ret,ErrorEvent.ERROR_SUBSCRIPTION_NUMBER_LIMIT_EXCEEDED);
@@ -712,9 +897,10 @@ public class GroupEntityManager implements ClientProximityAPI {
 	public Subscription subscribeGroupChanges(Group g) {
 		//Group g2 set to null as is not needed in group subscriptions
 		Subscription ret = new Subscription(g, null, DistanceRange.UNKNOWN);
-		scheduler.pause();
-		groupSubscriptionList.add(ret);
-		scheduler.resume();
+		synchronized (subscriptionLock) {
+			subscriptions = subscriptions.addGroup(ret);
+			interests.update(subscriptions);
+		}
 
 		return ret;
 	}
@@ -722,57 +908,55 @@ public class GroupEntityManager implements ClientProximityAPI {
 	@Override
 	public boolean unsubscribe(final Subscription sub){
 
-		scheduler.pause();
-
 		boolean found = false;
 
-		for(Subscription s : groupSubscriptionList)
-			if(s.equals(sub)){
-				groupSubscriptionList.remove(s);
+		synchronized (subscriptionLock) {
+			SubscriptionSnapshot updated = subscriptions.remove(sub);
+			if(updated != null){
+				subscriptions = updated;
+				interests.update(subscriptions);
 				found = true;
-				break;
 			}
-
-		if(!found)
-			for(Subscription s : proximitySubscriptionList)
-				if(s.equals(sub)){
-					proximitySubscriptionList.remove(s);
-					found = true;
-					break;
-				}
-
-		if(!found)
-			for(Subscription s : geofenceSubscriptionList)
-				if(s.equals(sub)){
-					geofenceSubscriptionList.remove(s);
-					found = true;
-					break;
-				}
+		}
 
 		if(found)
 			Log.i(TAG, "Subscription removed correctly!");
 		else
 			Log.w(TAG, "Subscription does not exists!");
 
-		scheduler.resume();
 		return found;
 	}
 
 
 	@Override
-	public void getAllEntitiesInProximity(final DistanceRange distance, Group g,
+	public void getAllEntitiesInProximity(DistanceRange distance, Group g,
 			final ActionOutcomeCallback callback, long millisec, final ArrayList<Entity> result) {
 
-		//In this case, it means that a syncRequest is already running
-		if(syncRespEntityList != null)
-			return;		
+		getAllEntitiesInProximity(distance, g, new ProximityQueryCallback() {
 
-		syncRespEntityList = result;
+			@Override
+			public void onEntityFound(long requestId, Entity e) {
+				synchronized (result) {
+					result.add(e);
+				}
+			}
 
-		//Creation of a unique topic where receive syncResp messages
-		final String newTopic = new Random().nextInt(10000) +"-reqTopic";
+			@Override
+			public void onCompleted(long requestId, List<Entity> found) {
+				callback.onCompleted();
+			}
+		}, millisec, 0);
+	}
 
-		networkClient.susbcribe(newTopic);
+	@Override
+	public long getAllEntitiesInProximity(DistanceRange distance, Group g,
+			ProximityQueryCallback callback, long millisec, int expectedCount) {
+
+		boolean aggregate = syncAggregationEnabled;
+		ProximityQueryMode mode = proximityQueryMode;
+		ProximityQueries.Query query = proximityQueries.start(expectedCount, millisec,
+				SyncResponder.getResponseWindow(distance, aggregate), callback);
+		String replyTopic = query.getReplyTopic();
 
 		ArrayList<Entity> lastBeacons;
 
@@ -780,47 +964,44 @@ public class GroupEntityManager implements ClientProximityAPI {
 			lastBeacons = new ArrayList<>(lastSeenBeacons);
 		}
 
+		//Beacons in proximity are known locally, so they are reported immediately
+		for(Entity e: lastBeacons)
+			if(e.getDistanceRange().ordinal() <= distance.ordinal())
+				query.add(e, false);
+
+		if(mode != ProximityQueryMode.NETWORK){
+			//the PROX_BEACONS discarded by the inbound queue may be the only ones of some devices
+			directory.markIncomplete(networkClient.getInboundDispatcher().getLastDroppedMillis(MessageLane.BULK));
+			ProximityDirectory.Lookup lookup = directory.lookup(lastBeacons, g, distance);
+			for(Entity e : lookup.found)
+				query.add(e, true);
+
+			if(mode == ProximityQueryMode.LOCAL || lookup.isLocal()){
+				query.complete(true);
+				return query.getId();
+			}
+
+			//only the devices near the beacons not known locally have to respond
+			if(lookup.complete)
+				lastBeacons = new ArrayList<>(lookup.staleBeacons);
+		}
+
+		if(!query.markRequested())
+			return query.getId();
+
 		long timestamp = Calendar.getInstance().getTimeInMillis() + LoggerService.NTP_DELAY;
 		String logId = selfEntity.getEntityID() + timestamp;
 
-		networkClient.publishMessage(MessageTopic.BROADCAST.name(),
+		networkClient.publishMessage(MessageTopic.BROADCAST.name(), MessageType.SYNC_REQ,
 				MessageUtils.buildSyncReqMessage(selfEntity.getEntityID(),
-						newTopic, lastBeacons, g, distance, logId));
+						replyTopic, lastBeacons, g, distance, expectedCount, aggregate, logId));
 
 		//logging
 		String log = LogMessageUtils.buildMessageSentLog(logId, selfEntity.getEntityID(), 
-				Type.DEVICE, MessageType.SYNC_REQ, newTopic, false, timestamp);
+				Type.DEVICE, MessageType.SYNC_REQ, replyTopic, false, timestamp);
 		LoggerService.writeToFile(appCtx, log);
 
-
-		if(checkInTimer == null)
-			checkInTimer = new Timer(true);
-
-		checkInTimer.schedule(new TimerTask() {
-
-			@Override
-			public void run() {
-				networkClient.unsusbcribe(newTopic);
-
-				synchronized (syncObj) {
-					syncRespEntityList = null;
-				}
-
-				ArrayList<Entity> lastBeacons;
-
-				synchronized (lastSeenBeacons) {
-					lastBeacons = new ArrayList<>(lastSeenBeacons);
-				}
-
-				//Beacons in proximity added to result list
-				ArrayList<Entity> beacons = lastBeacons;
-				for(Entity e: beacons)
-					if(e.getDistanceRange().ordinal() <= distance.ordinal())
-						result.add(e);
-
-				callback.onCompleted();
-			}
-		}, millisec);
+		return query.getId();
 	}
 
 	/**
@@ -828,8 +1009,12 @@ public class GroupEntityManager implements ClientProximityAPI {
 	 */
 	public void stop(){
 		techManager.stop();
+		proxBeaconsCoalescer.stop();
 		scheduler.stop();
+		proximityQueries.completeAll();
+		syncResponder.cancelAll();
 
+		interests.stop();
 		networkClient.disconnect();
 		_instance = null;
 	}
@@ -844,14 +1029,271 @@ public class GroupEntityManager implements ClientProximityAPI {
 	 * @param sub
 	 */
 	public void setSubscriptionCallback(SubscriptionCallback sub){
-		scheduler.pause();
 		this.subscriptionCallback = sub;
-		scheduler.resume();
 	}
 
 	public SubscriptionCallback getSubscriptionCallback(){
 		return this.subscriptionCallback;
 	}
+
+	/**
+	 * Method returning the {@link Scheduler} executing the evaluation tasks, e.g. to monitor its queue depth
+	 * and the number of discarded tasks
+	 */
+	public Scheduler getScheduler(){
+		return this.scheduler;
+	}
+
+	/**
+	 * Method that sets the time a query started by {@link #getAllEntitiesInProximity(DistanceRange, Group,
+	 * ProximityQueryCallback, long, int)} waits after the last {@link MessageType#SYNC_RESP} before completing,
+	 * when less entities than expected responded
+	 * @param millis - the quiet period; 0 to wait always until the expected count or the timeout
+	 */
+	public void setProximityQueryQuietPeriod(long millis){
+		proximityQueries.setQuietPeriod(millis);
+	}
+
+	/**
+	 * Method that enables or disables aggregated responses to the {@link MessageType#SYNC_REQ}s sent: the devices
+	 * near the same beacon are then reported by a single {@link MessageType#SYNC_RESP}, sent by one of them.
+	 * Devices running a version of the framework without aggregation respond separately anyway.
+	 */
+	public void setSyncResponseAggregationEnabled(boolean enabled){
+		this.syncAggregationEnabled = enabled;
+	}
+
+	/**
+	 * Method that sets how the queries started by {@link #getAllEntitiesInProximity(DistanceRange, Group,
+	 * ProximityQueryCallback, long, int)} are answered (by default {@link ProximityQueryMode#NETWORK}).
+	 * Except with {@link ProximityQueryMode#NETWORK}, the presence records retained by the broker for the other
+	 * devices are loaded at every connection, so that queries can be answered right after joining, and the other
+	 * devices are asked (when interests are advertised) not to suppress their {@link MessageType#PROX_BEACONS}: the
+	 * directory is trusted only once they all had the time to publish them.
+	 */
+	public void setProximityQueryMode(ProximityQueryMode mode){
+		boolean directoryQueries = (mode != ProximityQueryMode.NETWORK);
+		if(directoryQueries && proximityQueryMode == ProximityQueryMode.NETWORK)
+			directory.markIncomplete(System.currentTimeMillis());
+		this.proximityQueryMode = mode;
+		interests.setPresenceSnapshotEnabled(directoryQueries);
+		interests.setDirectoryQueriesEnabled(directoryQueries);
+	}
+
+	public ProximityQueryMode getProximityQueryMode(){
+		return proximityQueryMode;
+	}
+
+	/**
+	 * Method that sets the time after which the beacons reported by another device are not used anymore to
+	 * answer proximity queries locally
+	 */
+	public void setProximityDirectoryTtl(long millis){
+		directory.setTtl(millis);
+	}
+
+	/**
+	 * @return the number of devices whose state is known locally
+	 */
+	public int getProximityDirectorySize(){
+		return directory.size();
+	}
+
+	/**
+	 * @return the fraction (between 0 and 1) of the beacons of the proximity queries answered locally, with
+	 * {@link ProximityQueryMode#LOCAL} or {@link ProximityQueryMode#HYBRID}
+	 */
+	public double getProximityDirectoryHitRate(){
+		return directory.getHitRate();
+	}
+
+	/**
+	 * @return the number of devices forgotten because the capacity of the directory was reached
+	 */
+	public long getProximityDirectoryEvictedCount(){
+		return directory.getEvictedCount();
+	}
+
+	/**
+	 * @return the number of responses to the {@link MessageType#SYNC_REQ}s of the other devices not sent because
+	 * the requester already received enough of them, or because selfEntity was reported by an aggregated response
+	 */
+	public long getSuppressedSyncResponsesCount(){
+		return syncResponder.getCancelledCount() + syncResponder.getCoveredCount();
+	}
+
+	/**
+	 * @return the number of {@link MessageType#SYNC_RESP}s sent
+	 */
+	public long getSentSyncResponsesCount(){
+		return syncResponder.getSentCount();
+	}
+
+	/**
+	 * @return the number of queries started by {@link #getAllEntitiesInProximity(DistanceRange, Group,
+	 * ProximityQueryCallback, long, int)} still waiting for responses
+	 */
+	public int getProximityQueriesInFlight(){
+		return proximityQueries.getInFlightCount();
+	}
+
+	/**
+	 * @return the number of proximity queries completed before their timeout
+	 */
+	public long getEarlyCompletedProximityQueries(){
+		return proximityQueries.getEarlyCompletedCount();
+	}
+
+	/**
+	 * @return the average duration in milliseconds of the completed proximity queries
+	 */
+	public long getAverageProximityQueryMillis(){
+		return proximityQueries.getAverageMillis();
+	}
+
+	/**
+	 * Method that sets the QoS used to publish each {@link MessageType}
+	 */
+	public void setDeliveryPolicy(DeliveryPolicy deliveryPolicy){
+		networkClient.setDeliveryPolicy(deliveryPolicy);
+	}
+
+	/**
+	 * Method returning the {@link OutboundPublisher} publishing the messages sent, e.g. to monitor its queue depth
+	 * and publish latency
+	 */
+	public OutboundPublisher getOutboundPublisher(){
+		return networkClient.getOutboundPublisher();
+	}
+
+	/**
+	 * Method that sets the length of the window in which {@link MessageType#PROX_BEACONS} messages of the same
+	 * sender are coalesced, so that only the latest beacon set of each sender is evaluated
+	 * @param millis - length of the window in milliseconds; 0 to evaluate every message
+	 */
+	public void setProxBeaconsWindow(long millis){
+		proxBeaconsCoalescer.setWindowMillis(millis);
+	}
+
+	/**
+	 * Method that enables or disables the delta encoding of the {@link MessageType#PROX_BEACONS} messages published:
+	 * when enabled, each message contains only the beacons that appeared, disappeared or whose {@link DistanceRange}
+	 * changed since the previous one, and a full keyframe is published periodically and whenever selfEntity changes.
+	 * Receivers rebuild the full beacon set, so the evaluation is the same in both modes, but devices running
+	 * a version of the framework without delta support would see only the changed beacons.
+	 */
+	public void setProxBeaconsDeltaEnabled(boolean enabled){
+		if(enabled && !proxBeaconsDeltaEnabled)
+			proximityTopics.resetEncoders();
+		proxBeaconsDeltaEnabled = enabled;
+	}
+
+	/**
+	 * Method that sets the topics where {@link MessageType#PROX_BEACONS} messages are published and received.
+	 * With {@link ProximityTopicMode#SHARDED} only the messages about the {@link POI}s where this device is are
+	 * received, but devices using {@link ProximityTopicMode#FLAT} (the default, and the only mode of older versions
+	 * of the framework) do not see the messages of this device: {@link ProximityTopicMode#BOTH} can be used while
+	 * the network migrates.
+	 */
+	public void setProximityTopicMode(ProximityTopicMode mode){
+		proximityTopics.setMode(mode);
+	}
+
+	public ProximityTopicMode getProximityTopicMode(){
+		return proximityTopics.getMode();
+	}
+
+	/**
+	 * Method that enables the publication of {@link MessageType#PROX_BEACONS} messages on the shard of the major of
+	 * the nearest beacon (<code>PROXIMITY/uuid/major</code>) instead of the shard of the whole UUID. Devices of the
+	 * framework subscribe to all the majors of a {@link POI} anyway, but external consumers can follow a single major.
+	 */
+	public void setProximityShardByMajor(boolean enabled){
+		proximityTopics.setShardByMajor(enabled);
+	}
+
+	/**
+	 * @return the {@link MessageType}s needed by this device with the current subscriptions and security
+	 * configuration: only the topics carrying them are subscribed
+	 */
+	public Set<MessageType> getInterestedMessageTypes(){
+		return interests.getInterestedTypes();
+	}
+
+	/**
+	 * Method that enables or disables the advertisement of the interests of this device. When enabled, the keys of
+	 * the proximity and geofence subscriptions are periodically advertised as a Bloom filter, retained on the topic
+	 * <code>INTEREST/selfEntityId</code>, and the advertisements of the other devices are collected: a
+	 * {@link MessageType#PROX_BEACONS} no device can be interested in is then published only once every few times.
+	 * Devices running a version of the framework without advertisements cannot be taken into account, so it has to
+	 * be enabled on every device of the network.
+	 */
+	public void setInterestAdvertisementEnabled(boolean enabled){
+		interests.setAdvertisementEnabled(enabled);
+	}
+
+	/**
+	 * @return the number of {@link MessageType#PROX_BEACONS} not published because no other device was interested in them
+	 */
+	public long getSuppressedProxBeaconsCount(){
+		return interests.getSuppressedProxBeaconsCount();
+	}
+
+	/**
+	 * @return the number of messages received but discarded because their {@link MessageType} was not needed
+	 */
+	public long getUnneededMessagesCount(){
+		return unneededMessagesCount.get();
+	}
+
+	/**
+	 * @return the number of received delta {@link MessageType#PROX_BEACONS} messages discarded because a previous
+	 * message of the same sender was missed
+	 */
+	public long getDiscardedProxBeaconsDeltaCount(){
+		return beaconStates.getDiscardedCount();
+	}
+
+	/**
+	 * @return the number of {@link MessageType#PROX_BEACONS} messages not evaluated because superseded by a newer
+	 * message from the same sender
+	 */
+	public long getSkippedProxBeaconsCount(){
+		return proxBeaconsCoalescer.getSkippedCount();
+	}
+
+	/**
+	 * @return the number of evaluation tasks not scheduled because of coalesced {@link MessageType#PROX_BEACONS}
+	 * messages
+	 */
+	public long getSkippedProxBeaconsEvaluations(){
+		return skippedProxBeaconsEvaluations.get();
+	}
+
+	/**
+	 * Method returning the key of the {@link #entityLanes} lane used for tasks concerning the {@link Entity} <code>e</code>
+	 */
+	private static String laneKey(Entity e){
+		return e.getEntityID().toLowerCase();
+	}
+
+	/**
+	 * Method returning the key of the {@link #entityLanes} lane used for tasks concerning two entities: the lane
+	 * of the remote one, i.e. <code>e2</code> if <code>e1</code> is selfEntity, otherwise <code>e1</code>
+	 */
+	private String laneKey(Entity e1, Entity e2){
+		return laneKey(e1.equals(selfEntity) ? e2 : e1);
+	}
+
+	/**
+	 * Method that builds the status used for logging, containing the number of subscriptions for each type
+	 * @param snapshot - the {@link SubscriptionSnapshot} used for the evaluation that is logged
+	 */
+	private static JSONObject buildStatus(SubscriptionSnapshot snapshot){
+		return LogMessageUtils.buildStatus(snapshot.getProximitySubscriptions().size(),
+				snapshot.getGroupSubscriptions().size(), snapshot.getGeofenceSubscriptions().size());
+	}
+
 	/**
 	 * Method that computes the {@link DistanceRange} corresponding to the distance (in meters) 
 	 * received from BLE scan
@@ -879,20 +1321,22 @@ public class GroupEntityManager implements ClientProximityAPI {
 	 */
 	private class MessageHandler {
 
-		public void messageConsumer(String message){
+		public void messageConsumer(InboundMessage message){
 
-			MessageType msgType = MessageUtils.getMsgType(message);
+			MessageType msgType = message.getType();
 
 			//used for logging
 			String logId; 
 
-			Log.d(TAG, "Message received: "+  message);
+			Log.d(TAG, "Message received: "+  msgType + " from " + message.getSenderID());
 			switch (msgType) {
 			case PROXIMITY_UPDATE:
-				Entity e1 = MessageUtils.getEntityFromMessage(1, message);
-				Entity e2 = MessageUtils.getEntityFromMessage(2, message);
-				DistanceRange distance = MessageUtils.getDistanceRangeFromMessage(message);
-				logId = MessageUtils.getLogIdFromMessage(message);
+				Entity e1 = message.getEntity1();
+				Entity e2 = message.getEntity2();
+				DistanceRange distance = message.getDistanceRange();
+				logId = message.getLogId();
+
+				directory.onProximityUpdate(e1, e2, distance);
 
 				evaluateProximity(e1, e2, distance, logId);
 
@@ -901,32 +1345,17 @@ public class GroupEntityManager implements ClientProximityAPI {
 				break;
 
 			case PROX_BEACONS:
-				Entity e = MessageUtils.getEntityFromMessage(1, message);
-				ArrayList<Entity> beacons = MessageUtils.getBeaconsFromMsg(message);
-				logId = MessageUtils.getLogIdFromMessage(message);
-
-				evaluateGeofence(e, beacons, logId);
-
-				if(beacons.size() == 0)
-					return;
-
-				for(Entity b : beacons)
-					evaluateProximity(e, b, b.getDistanceRange(), logId);
-
-				synchronized (lastSeenBeacons) {
-					//storing in beacons the intersection between lastSeenBeacons and beacons
-					beacons.retainAll(lastSeenBeacons);
-				}
-
-				evaluateProximityD2D(beacons, e, logId);
+				//delta messages are applied in the order they are received, before being coalesced
+				InboundMessage fullMessage = beaconStates.apply(message);
+				if(fullMessage != null)
+					proxBeaconsCoalescer.submit(laneKey(fullMessage.getEntity1()), fullMessage);
 				break;
 
 			case PROPERTIES_UPDATE:
 
 				long timestamp = Calendar.getInstance().getTimeInMillis() + LoggerService.NTP_DELAY;
-				logId = MessageUtils.getLogIdFromMessage(message) + timestamp;
-				JSONObject status = LogMessageUtils.buildStatus(proximitySubscriptionList.size(), 
-						groupSubscriptionList.size(), geofenceSubscriptionList.size());
+				logId = message.getLogId() + timestamp;
+				JSONObject status = buildStatus(subscriptions);
 
 				/*
 				 * logging
@@ -935,11 +1364,13 @@ public class GroupEntityManager implements ClientProximityAPI {
 						Type.DEVICE, MessageType.PROPERTIES_UPDATE, null, status, timestamp);
 				LoggerService.writeToFile(appCtx, log);
 
-				final Entity updatingEntity = MessageUtils.getEntityFromMessage(1, message);
-				JSONObject oldProperties = MessageUtils.getOldPropertiesFromMessage(message);			
+				final Entity updatingEntity = message.getEntity1();
+				JSONObject oldProperties = message.getOldProperties();			
+				presence.update(updatingEntity);
+				directory.update(updatingEntity);
 
 
-				scheduler.schedule(new Runnable() {
+				entityLanes.execute(laneKey(updatingEntity), new Runnable() {
 
 					@Override
 					public void run() {
@@ -950,7 +1381,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 							Log.i(TAG, "TimerTask for " + updatingEntity.getEntityID() + " stopped");
 						}
 					}
-				});
+				}, TaskPriority.GROUP);
 
 				evaluateGroup(updatingEntity, oldProperties, logId);
 				break;
@@ -961,32 +1392,39 @@ public class GroupEntityManager implements ClientProximityAPI {
 				if(!securityManager.check_proximity_changes_enabled())
 					return;
 
-				String topic = MessageUtils.getRequestTopicFromMessage(message);
-
-				ArrayList<Entity> bcns = MessageUtils.getBeaconsFromMsg(message);
-				String senderID = MessageUtils.getSenderID(message);
+				String senderID = message.getSenderID();
 
 				//skip message from myself
 				if(selfEntity.getEntityID().equalsIgnoreCase(senderID))
 					return;	
 
-				DistanceRange distanceRange = MessageUtils.getDistanceRangeFromMessage(message);
-				JSONObject group = MessageUtils.getGroupFromMessage(message);
-				handleSyncReq(topic, bcns, group, distanceRange);
+				handleSyncReq(message);
 
 				break;
 
 			case SYNC_RESP:
-				Entity respondingEntity = MessageUtils.getEntityFromMessage(1, message);
+				Entity respondingEntity = message.getEntity1();
 
-				handleSyncResp(respondingEntity);
+				//responses of other devices are received also on the topics observed by pending responses
+				if(!proximityQueries.onResponse(message.getRequestTopic(), respondingEntity, message.getEntities())
+						&& !syncResponder.onObservedResponse(message))
+					Log.d(TAG, "Response to a query not in flight: " + message.getRequestTopic());
 
 				break;
 
 			case CHECK_IN:
-				Entity checkInEntity = MessageUtils.getEntityFromMessage(1, message);
-				logId = MessageUtils.getLogIdFromMessage(message);
-				Log.d(TAG, message);
+				Entity checkInEntity = message.getEntity1();
+				logId = message.getLogId();
+				Log.d(TAG, "CHECK_IN from " + checkInEntity.getEntityID());
+
+				//presence records are published again when the beacons seen by the entity change
+				if(message.getBeacons() != null)
+					directory.onPresence(checkInEntity, message.getBeacons(), message.getTimestamp());
+
+				//the same CHECK_IN is received both on the broadcast topic and as retained state
+				if(!presence.checkIn(checkInEntity))
+					return;
+				directory.update(checkInEntity);
 
 				/*
 				 * if checkInEntity matches a proximity subscription, an ENTITY_PROXIMITY_UPDATE
@@ -998,10 +1436,22 @@ public class GroupEntityManager implements ClientProximityAPI {
 				break;
 
 			case CHECK_OUT:
-				Entity checkOutEntity = MessageUtils.getEntityFromMessage(1, message);
-				logId = MessageUtils.getLogIdFromMessage(message);
+				Entity checkOutEntity = message.getEntity1();
+				logId = message.getLogId();
+
+				if(message.isValid()){
+					//the will message contains only id and type: the last known state of the entity is used
+					checkOutEntity = presence.checkOut(checkOutEntity);
+					if(checkOutEntity == null)
+						return;
+				}
+				beaconStates.remove(checkOutEntity);
+				//a PROX_BEACONS still waiting in its window would bring the entity back after its check out
+				proxBeaconsCoalescer.cancel(laneKey(checkOutEntity));
+				if(message.isValid())
+					directory.remove(checkOutEntity);
 
-				evaluateCheckOut(checkOutEntity, MessageUtils.getValidBitFromMessage(message), logId);
+				evaluateCheckOut(checkOutEntity, message.isValid(), logId);
 				break;
 
 			default:
@@ -1009,6 +1459,33 @@ public class GroupEntityManager implements ClientProximityAPI {
 			}
 		}
 
+		/**
+		 * Method that evaluates a {@link MessageType#PROX_BEACONS} message, once it has passed through
+		 * {@link GroupEntityManager#proxBeaconsCoalescer}
+		 */
+		public void handleProxBeacons(InboundMessage message){
+			Entity e = message.getEntity1();
+			ArrayList<Entity> beacons = message.getBeacons();
+			String logId = message.getLogId();
+
+			directory.onProxBeacons(e, beacons);
+
+			evaluateGeofence(e, beacons, logId);
+
+			if(beacons.size() == 0)
+				return;
+
+			for(Entity b : beacons)
+				evaluateProximity(e, b, b.getDistanceRange(), logId);
+
+			synchronized (lastSeenBeacons) {
+				//storing in beacons the intersection between lastSeenBeacons and beacons
+				beacons.retainAll(lastSeenBeacons);
+			}
+
+			evaluateProximityD2D(beacons, e, logId);
+		}
+
 	}
 
 
@@ -1039,16 +1516,18 @@ public class GroupEntityManager implements ClientProximityAPI {
 	 */
 	private void evaluateProximity(final Entity e1, final Entity e2, final DistanceRange distance, final String logId){
 
-		if(proximitySubscriptionList.size() == 0
+		if(subscriptions.getProximitySubscriptions().isEmpty()
 				|| e1.getEntityID().equalsIgnoreCase(e2.getEntityID()))		
 			return;
 
-		scheduler.schedule(new Runnable() {
+		entityLanes.execute(laneKey(e1, e2), new Runnable() {
 
 			@Override
 			public void run() {
 
-				for(Subscription s : proximitySubscriptionList){
+				SubscriptionSnapshot snapshot = subscriptions;
+
+				for(Subscription s : snapshot.getProximityIndex().groupCandidates(e1, e2)){
 
 					//if e1 belongs to g1 and e2 belongs to g2, or vice versa
 					if((s.getG1().evaluate(e1) && s.getG2().evaluate(e2))
@@ -1062,8 +1541,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 						//Logging
 						if(!logId.equals("")){
-							JSONObject status = LogMessageUtils.buildStatus(proximitySubscriptionList.size(),
-									groupSubscriptionList.size(), geofenceSubscriptionList.size());
+							JSONObject status = buildStatus(snapshot);
 							String log = LogMessageUtils.buildEventLog(logId, selfEntity.getEntityID(), 
 									Type.DEVICE, EntityEvent.ENTITY_PROXIMITY_UPDATE.name(), status, timestamp);
 							LoggerService.writeToFile(appCtx, log);
@@ -1071,7 +1549,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 					}
 				}
 			}
-		});
+		}, TaskPriority.PROXIMITY, "proximity:" + e1.getEntityID() + ":" + e2.getEntityID());
 	}
 
 
@@ -1090,7 +1568,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 				sender.getEntityID().equalsIgnoreCase(selfEntity.getEntityID()))
 			return;
 
-		scheduler.schedule(new Runnable() {
+		entityLanes.execute(laneKey(sender), new Runnable() {
 
 			@Override
 			public void run() {
@@ -1136,7 +1614,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 				evaluateGeofenceD2D(selfEntity, sender, bestDistance, logId);
 			} 
-		});
+		}, TaskPriority.PROXIMITY, "proximityD2D:" + sender.getEntityID());
 	}
 
 
@@ -1148,15 +1626,15 @@ public class GroupEntityManager implements ClientProximityAPI {
 	 */
 	private void evaluateGeofence(final Entity e, final ArrayList<Entity> beacons, final String logId) {
 
-		if(geofenceSubscriptionList.size() == 0)
+		if(subscriptions.getGeofenceSubscriptions().isEmpty())
 			return;
 
-		scheduler.schedule(new Runnable() {
+		entityLanes.execute(laneKey(e), new Runnable() {
 
 			@Override
 			public void run() {
 
-				for(Subscription s : geofenceSubscriptionList){
+				for(Subscription s : subscriptions.getGeofenceIndex().geofenceCandidates(e)){
 					Group g = s.getG2();
 					Entity eSub = s.getE1();
 
@@ -1178,7 +1656,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 					}
 				}				
 			}
-		});
+		}, TaskPriority.GEOFENCE, "geofence:" + e.getEntityID());
 
 	}
 
@@ -1192,17 +1670,17 @@ public class GroupEntityManager implements ClientProximityAPI {
 	 */
 	private void evaluateGeofenceD2D(final Entity e1, final Entity e2, final DistanceRange distance, final String logId) {
 
-		if(geofenceSubscriptionList.size() == 0) {
+		if(subscriptions.getGeofenceSubscriptions().isEmpty()) {
 			Log.i(TAG, "Nessuna geofenceSubscription presente");
 			return;
 		}
 
-		scheduler.schedule(new Runnable() {
+		entityLanes.execute(laneKey(e1, e2), new Runnable() {
 
 			@Override
 			public void run() {
 
-				for(Subscription s : geofenceSubscriptionList){
+				for(Subscription s : subscriptions.getGeofenceIndex().subscribedEntityCandidates(e1, e2)){
 					Entity subEntity = s.getE1();
 					Group subGroup = s.getG2();
 
@@ -1225,7 +1703,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 					}
 				}
 			}
-		});
+		}, TaskPriority.GEOFENCE, "geofenceD2D:" + e1.getEntityID() + ":" + e2.getEntityID());
 
 	}
 
@@ -1253,8 +1731,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 				//logging
 				if(!logId.equals("")){
-					JSONObject status = LogMessageUtils.buildStatus(proximitySubscriptionList.size(), 
-							groupSubscriptionList.size(), geofenceSubscriptionList.size());
+					JSONObject status = buildStatus(subscriptions);
 					String log = LogMessageUtils.buildEventLog(logId, selfEntity.getEntityID(), 
 							Type.DEVICE, EntityEvent.ENTITY_GEOFENCE_EXIT.name(), status, timestamp);
 					LoggerService.writeToFile(appCtx, log);
@@ -1275,8 +1752,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 				//logging
 				if(!logId.equals("")){
-					JSONObject status = LogMessageUtils.buildStatus(proximitySubscriptionList.size(), 
-							groupSubscriptionList.size(), geofenceSubscriptionList.size());
+					JSONObject status = buildStatus(subscriptions);
 					String log = LogMessageUtils.buildEventLog(logId, selfEntity.getEntityID(), 
 							Type.DEVICE, EntityEvent.ENTITY_GEOFENCE_ENTRY.name(), status, timestamp);
 					LoggerService.writeToFile(appCtx, log);
@@ -1294,19 +1770,22 @@ public class GroupEntityManager implements ClientProximityAPI {
 	 */
 	private void evaluateGroup(final Entity e, final JSONObject oldProperties, final String logId){
 
-		if(groupSubscriptionList.size() == 0)
+		if(subscriptions.getGroupSubscriptions().isEmpty())
 			return;
 
-		scheduler.schedule(new Runnable() {
+		entityLanes.execute(laneKey(e), new Runnable() {
 
 			@Override
 			public void run() {
 
+				SubscriptionSnapshot snapshot = subscriptions;
+
 				Builder builder = new Builder(e.getEntityID(), e.getEntityType());
 				builder.addProperties(oldProperties);
 				Entity oldEntity = builder.build();
 
-				for(Subscription s : groupSubscriptionList){
+				//entity id and type are the same for old and new entity: only properties can differ
+				for(Subscription s : snapshot.getGroupIndex().groupCandidates(e)){
 
 					/*
 					 * if new entity matches the subscription group AND old entity doesn't match it, it is 
@@ -1318,8 +1797,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 						getSubscriptionCallback().handleGroupEvent(s,GroupEvent.ENTITY_GROUP_JOIN, e, s.getG1());
 
 						//logging
-						JSONObject status = LogMessageUtils.buildStatus(proximitySubscriptionList.size(), 
-								groupSubscriptionList.size(), geofenceSubscriptionList.size());
+						JSONObject status = buildStatus(snapshot);
 						String log = LogMessageUtils.buildEventLog(logId, selfEntity.getEntityID(), 
 								Type.DEVICE, GroupEvent.ENTITY_GROUP_JOIN.name(), status, timestamp);
 						LoggerService.writeToFile(appCtx, log);
@@ -1334,8 +1812,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 						getSubscriptionCallback().handleGroupEvent(s,GroupEvent.ENTITY_GROUP_LEAVE, e, s.getG1());
 
-						JSONObject status = LogMessageUtils.buildStatus(proximitySubscriptionList.size(), 
-								groupSubscriptionList.size(), geofenceSubscriptionList.size());
+						JSONObject status = buildStatus(snapshot);
 						String log = LogMessageUtils.buildEventLog(logId, selfEntity.getEntityID(), 
 								Type.DEVICE, GroupEvent.ENTITY_GROUP_LEAVE.name(), status, timestamp);
 						LoggerService.writeToFile(appCtx, log);
@@ -1344,7 +1821,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 				}
 
 			}
-		});
+		}, TaskPriority.GROUP);
 
 	}
 
@@ -1359,15 +1836,17 @@ public class GroupEntityManager implements ClientProximityAPI {
 	 */
 	private void evaluateCheckOut(final Entity e, final boolean valid_bit, final String logId){
 
-		if(groupSubscriptionList.size() == 0)
+		if(subscriptions.getGroupSubscriptions().isEmpty())
 			return;
 
-		scheduler.schedule(new Runnable() {
+		entityLanes.execute(laneKey(e), new Runnable() {
 
 			@Override
 			public void run() {
 
-				for(Subscription s : groupSubscriptionList){
+				SubscriptionSnapshot snapshot = subscriptions;
+
+				for(Subscription s : snapshot.getGroupIndex().groupCandidates(e)){
  
 					if(s.getG1().evaluate(e)){
 	
@@ -1383,7 +1862,10 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 									Log.w(TAG, "Timeout CheckIn per " + e.getEntityID());
 									waitingForCheckInTasks.remove(e.getEntityID());
-									evaluateCheckOut(e, true, "");	
+									Entity last = presence.checkOut(e);
+									directory.remove(e);
+									if(last != null)
+										evaluateCheckOut(last, true, "");	
 								}
 							};
 
@@ -1399,8 +1881,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 							//logging
 							if(!logId.equals("")){
-								JSONObject status = LogMessageUtils.buildStatus(proximitySubscriptionList.size(), 
-										groupSubscriptionList.size(), geofenceSubscriptionList.size());
+								JSONObject status = buildStatus(snapshot);
 								String log = LogMessageUtils.buildEventLog(logId, selfEntity.getEntityID(), 
 										Type.DEVICE, GroupEvent.ENTITY_CHECK_OUT.name(), status, timestamp);
 								LoggerService.writeToFile(appCtx, log);
@@ -1409,7 +1890,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 					}
 				}
 			}
-		});
+		}, TaskPriority.GROUP);
 
 	}
 
@@ -1421,16 +1902,18 @@ public class GroupEntityManager implements ClientProximityAPI {
 	 */
 	private void evaluateCheckIn(final Entity e, final String logId){
 
-		if(groupSubscriptionList.size() == 0 ||
+		if(subscriptions.getGroupSubscriptions().isEmpty() ||
 				e.getEntityID().equalsIgnoreCase(selfEntity.getEntityID()))
 			return;
 
-		scheduler.schedule(new Runnable() {
+		entityLanes.execute(laneKey(e), new Runnable() {
 
 			@Override
 			public void run() {
 
-				for(Subscription s : groupSubscriptionList){
+				SubscriptionSnapshot snapshot = subscriptions;
+
+				for(Subscription s : snapshot.getGroupIndex().groupCandidates(e)){
 
 					if(s.getG1().evaluate(e)){
 						long timestamp = Calendar.getInstance().getTimeInMillis() + LoggerService.NTP_DELAY;
@@ -1438,8 +1921,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 						getSubscriptionCallback().handleGroupEvent(s,GroupEvent.ENTITY_CHECK_IN, e, s.getG1());
 
 						//logging
-						JSONObject status = LogMessageUtils.buildStatus(proximitySubscriptionList.size(), 
-								groupSubscriptionList.size(), geofenceSubscriptionList.size());
+						JSONObject status = buildStatus(snapshot);
 						String log = LogMessageUtils.buildEventLog(logId, selfEntity.getEntityID(), 
 								Type.DEVICE, GroupEvent.ENTITY_CHECK_IN.name(), status, timestamp);
 						LoggerService.writeToFile(appCtx, log);
@@ -1447,45 +1929,27 @@ public class GroupEntityManager implements ClientProximityAPI {
 
 				}
 			}
-		});
+		}, TaskPriority.GROUP);
 	}
 
 	
 	/**
-	 * Method used to handle an {@link Entity} responding to a {@link MessageType#SYNC_REQ} message
-	 * @param sender - the responding {@link Entity}
+	 * Method used to handle a {@link MessageType#SYNC_REQ} message: if the group of the request is matched
+	 * and the computed {@link DistanceRange} is less or equal than the one of the request, a 
+	 * {@link MessageType#SYNC_RESP} message is scheduled by the {@link SyncResponder} on the reply topic
+	 * @param message - the {@link MessageType#SYNC_REQ} message
 	 */
-	private void handleSyncResp(final Entity sender){
-
-		synchronized (syncObj) {
-			if(syncRespEntityList == null)
-				return;
-
-			syncRespEntityList.add(sender);		
-		}
-	}
-
-	
-	/**
-	 * Method used to handle a {@link MessageType#SYNC_REQ} message: if the <code>group</code> is matched
-	 * and the computed {@link DistanceRange} is less or equal than <code>distanceRange</code>, a 
-	 * {@link MessageType#SYNC_RESP} message is sent on the topic <code>topic</code>
-	 * @param topic - the topic where the {@link MessageType#SYNC_RESP} has to be sent
-	 * @param beacons - beacons contained in the {@link MessageType#SYNC_REQ} message
-	 * @param group - the {@link Group} that has to be matched
-	 * @param distanceRange - the {@link DistanceRange} that has to be matched
-	 */
-	private void handleSyncReq(final String topic, final ArrayList<Entity> beacons,
-			final JSONObject group, final DistanceRange distanceRange) {
+	private void handleSyncReq(final InboundMessage message) {
 
 		scheduler.schedule(new Runnable() {
 
 			@Override
 			public void run() {
 
+				JSONObject group = message.getGroup();
 				PropertiesFilter filter = null;
 
-				DistanceRange maxDistance = distanceRange;
+				DistanceRange maxDistance = message.getDistanceRange();
 
 				if(!((String)group.get(JsonStrings.FILTER)).equals(""))
 					try {
@@ -1506,52 +1970,25 @@ public class GroupEntityManager implements ClientProximityAPI {
 				if(!g.evaluate(selfEntity))
 					return;
 
-				DistanceRange bestDistance = DistanceRange.SAME_WIFI;
 				ArrayList<Entity> queue;
 
 				synchronized (lastSeenBeacons) {
 					queue = new ArrayList<>(lastSeenBeacons);
-					//intersection to obtain common beacons
-					beacons.retainAll(lastSeenBeacons);		
 				}
 
+				SyncResponder.Match match = SyncResponder.match(message.getBeacons(), queue);
+
+				if(match.distance.ordinal() > maxDistance.ordinal())
+					return;
 
 				Builder builder = new Builder(selfEntity.getEntityID(),Type.DEVICE);
 				JSONObject selfProps = selfEntity.getProperties();
 				builder.addProperties(selfProps);
+				builder.setDistance(match.distance);
 
-				if(beacons.size() == 0){
-					if(DistanceRange.SAME_WIFI.ordinal() <= maxDistance.ordinal()){
-						builder.setDistance(DistanceRange.SAME_WIFI);
-						networkClient.publishMessage(topic, MessageUtils.buildSyncRespMessage(builder.build(), topic));
-					}
-					return;
-				}
-
-				for(Entity common : beacons)
-					for(Entity mine : queue)
-						if(common.equals(mine))
-							switch(common.getDistanceRange()){
-							case IMMEDIATE:
-							case NEXT_TO:
-								bestDistance = (mine.getDistanceRange().ordinal() < bestDistance.ordinal())
-								? ((mine.getDistanceRange().ordinal() < common.getDistanceRange().ordinal()) 
-										? common.getDistanceRange() : mine.getDistanceRange()) : bestDistance;
-										break;
-
-							default:
-								bestDistance = (mine.getDistanceRange().ordinal() <= DistanceRange.NEXT_TO.ordinal()
-								&& common.getDistanceRange().ordinal() < bestDistance.ordinal())
-								? common.getDistanceRange() : bestDistance;
-								break;
-							}
-
-				if(bestDistance.ordinal() <= maxDistance.ordinal()){
-					builder.setDistance(bestDistance);
-					networkClient.publishMessage(topic, MessageUtils.buildSyncRespMessage(builder.build(), topic));
-				}
+				syncResponder.respond(builder.build(), match, message, g);
 			}
-		});
+		}, TaskPriority.SYNC);
 
 	}
 
@@ -1561,10 +1998,14 @@ public class GroupEntityManager implements ClientProximityAPI {
 	 */
 	public void enableGhostMode() {
 		if(securityManager.check_old_group_settings())
-			networkClient.publishMessage(MessageTopic.BROADCAST.name(),
+			networkClient.publishMessage(MessageTopic.BROADCAST.name(), MessageType.CHECK_OUT,
 					MessageUtils.buildCheckOutMessage(selfEntity, true));
 
 		securityManager.enableGhostMode();
+		//the messages needed to serve other devices depend on the security configuration
+		synchronized (subscriptionLock) {
+			interests.update(subscriptions);
+		}
 		this.sendFakeUpdateProp();
 	}
 
@@ -1576,7 +2017,7 @@ public class GroupEntityManager implements ClientProximityAPI {
 			long timestamp = Calendar.getInstance().getTimeInMillis() + LoggerService.NTP_DELAY;
 			String logId = selfEntity.getEntityID() + timestamp;
 
-			networkClient.publishMessage(MessageTopic.BROADCAST.name(), 
+			networkClient.publishMessage(MessageTopic.BROADCAST.name(), MessageType.CHECK_IN,
 					MessageUtils.buildCheckInMessage(selfEntity, logId));
 
 			//logging
@@ -1586,6 +2027,10 @@ public class GroupEntityManager implements ClientProximityAPI {
 		}
 
 		securityManager.disableGhostMode();
+		//the messages needed to serve other devices depend on the security configuration
+		synchronized (subscriptionLock) {
+			interests.update(subscriptions);
+		}
 		this.sendFakeUpdateProp();
 	}
 
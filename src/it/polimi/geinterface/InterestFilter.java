@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * 
+ * Bloom filter over {@link String} keys, used to advertise the interests of a device in a compact form
+ * (see {@link InterestManager}). Positions are computed by double hashing from a 64 bit FNV-1a hash of the
+ * characters of the key, so that every device computes the same positions for the same key.
+ * A filter can report a key it does not contain (with a probability depending on the number of keys, the number
+ * of bits and the number of hash functions), but never misses a key it contains.
+ *
+ */
+final class InterestFilter {
+
+	static final int DEFAULT_BITS = 1024;
+	static final int DEFAULT_HASHES = 3;
+
+	/**
+	 * Maximum number of bits accepted when a filter is read from the network
+	 */
+	private static final int MAX_BITS = 1 << 16;
+
+	private final long[] words;
+	private final int bits;
+	private final int hashes;
+
+
+	InterestFilter() {
+		this(DEFAULT_BITS, DEFAULT_HASHES);
+	}
+
+	/**
+	 * @param bits - number of bits of the filter, multiple of 64
+	 * @param hashes - number of hash functions
+	 */
+	InterestFilter(int bits, int hashes) {
+		if(bits <= 0 || bits % 64 != 0 || bits > MAX_BITS || hashes <= 0)
+			throw new IllegalArgumentException("Invalid filter size: " + bits + " bits, " + hashes + " hashes");
+		this.words = new long[bits / 64];
+		this.bits = bits;
+		this.hashes = hashes;
+	}
+
+	/**
+	 * Method returning the 64 bit hash of a key, from which its positions in any filter are computed
+	 */
+	static long hash(String key){
+		long h = 0xcbf29ce484222325L;
+		for(int i = 0; i < key.length(); i++){
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	void add(String key){
+		long h = hash(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		for(int i = 0; i < hashes; i++){
+			int pos = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			words[pos >>> 6] |= 1L << pos;
+		}
+	}
+
+	/**
+	 * Method returning <code>true</code> if the key having hash <code>h</code> (see {@link #hash(String)}) may be
+	 * contained in the filter, <code>false</code> if it is certainly not
+	 */
+	boolean mightContain(long h){
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		for(int i = 0; i < hashes; i++){
+			int pos = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			if((words[pos >>> 6] & (1L << pos)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	boolean mightContain(String key){
+		return mightContain(hash(key));
+	}
+
+	boolean isEmpty(){
+		for(long w : words)
+			if(w != 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the number of bytes written by {@link #writeTo(ByteBuffer)}
+	 */
+	int serializedSize(){
+		return 1 + 4 + words.length * 8;
+	}
+
+	/**
+	 * Method that writes the filter: number of hash functions (1 byte), number of bits (4 bytes), then the bits
+	 */
+	void writeTo(ByteBuffer out){
+		out.put((byte) hashes);
+		out.putInt(bits);
+		for(long w : words)
+			out.putLong(w);
+	}
+
+	/**
+	 * Method that reads a filter written by {@link #writeTo(ByteBuffer)}
+	 * @throws IllegalArgumentException if the filter is not valid
+	 */
+	static InterestFilter readFrom(ByteBuffer in){
+		if(in.remaining() < 5)
+			throw new IllegalArgumentException("Truncated filter");
+		int hashes = in.get() & 0xff;
+		int bits = in.getInt();
+		InterestFilter ret = new InterestFilter(bits, hashes);
+		if(in.remaining() < ret.words.length * 8)
+			throw new IllegalArgumentException("Truncated filter");
+		for(int i = 0; i < ret.words.length; i++)
+			ret.words[i] = in.getLong();
+		return ret;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof InterestFilter))
+			return false;
+		InterestFilter other = (InterestFilter) o;
+		return hashes == other.hashes && Arrays.equals(words, other.words);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(words);
+	}
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import it.polimi.geinterface.DAO.Entity;
+import it.polimi.geinterface.DAO.Entity.Type;
+import it.polimi.geinterface.DAO.Group;
+import it.polimi.geinterface.DAO.Subscription;
+import it.polimi.geinterface.network.MQTTPahoClient;
+import it.polimi.geinterface.network.MessageTopic;
+import it.polimi.geinterface.network.MessageType;
+import it.polimi.geinterface.network.RawMessageCallback;
+import it.polimi.geinterface.security.SecurityManager;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+
+/**
+ * 
+ * Class that computes, from the current {@link SubscriptionSnapshot}, which {@link MessageType}s are needed
+ * by this device, and keeps the {@link MQTTPahoClient} subscribed only to the {@link MessageTopic}s carrying them,
+ * so that a device without subscriptions does not receive (and parse) the traffic of the whole network.
+ * <p>
+ * Besides the local subscriptions, the messages needed to serve other devices are taken into account: when
+ * proximity changes are enabled by the {@link SecurityManager}, {@link MessageType#PROX_BEACONS} are needed to
+ * send {@link MessageType#PROXIMITY_UPDATE}s to the devices nearby, and {@link MessageType#SYNC_REQ} to answer them.
+ * The topic having the id of selfEntity, where messages addressed to this device are received, is always subscribed.
+ * The states of the other devices (see {@link it.polimi.geinterface.network.MessageUtils#getStateTopic(String)})
+ * are subscribed when group or proximity subscriptions need {@link MessageType#CHECK_IN}s, or for
+ * {@link #PRESENCE_SNAPSHOT_WINDOW} milliseconds after a connection to load the presence records of all the devices
+ * connected (see {@link #setPresenceSnapshotEnabled(boolean)}). The other devices needing only
+ * {@link MessageType#CHECK_OUT}s receive them on {@link MessageTopic#BROADCAST}.
+ * <p>
+ * When advertisement is enabled, the keys (entity ids, beacon id prefixes and entity types) of the proximity and
+ * geofence subscriptions are periodically advertised as an {@link InterestFilter}, retained on the topic
+ * <code>INTEREST/selfEntityId</code>. The advertisements of the other devices are collected in {@link PeerInterests},
+ * and a {@link MessageType#PROX_BEACONS} that no device can be interested in is published only once every
+ * {@link #DEFAULT_UNMATCHED_PROX_BEACONS_DIVISOR} times. A device answering proximity queries from its
+ * {@link ProximityDirectory} needs all of them, so it advertises a key matching every message
+ * (see {@link #setDirectoryQueriesEnabled(boolean)}).
+ *
+ */
+final class InterestManager {
+
+	private static final String TAG = "InterestManager";
+
+	/**
+	 * Period (in milliseconds) of the advertisement of the interests
+	 */
+	static final long DEFAULT_ADVERTISEMENT_PERIOD = 60000;
+
+	/**
+	 * Time (in milliseconds) after which the advertisement of a device is forgotten, if it is not renewed
+	 */
+	static final long DEFAULT_ADVERTISEMENT_TTL = 3 * DEFAULT_ADVERTISEMENT_PERIOD;
+
+	/**
+	 * One every this many {@link MessageType#PROX_BEACONS} that no device is interested in is published anyway
+	 */
+	static final int DEFAULT_UNMATCHED_PROX_BEACONS_DIVISOR = 10;
+
+	/**
+	 * Time (in milliseconds) the states of the other devices stay subscribed to load their presence records
+	 */
+	static final long PRESENCE_SNAPSHOT_WINDOW = 3000;
+
+	/**
+	 * Key advertised by a {@link Group} that cannot be described by keys, matching every message
+	 */
+	private static final String ANY_KEY = "*";
+
+	private final MQTTPahoClient client;
+	private final ProximityTopics proximityTopics;
+	private final SecurityManager securityManager;
+	private final String selfId;
+
+	private volatile Set<MessageType> types = Collections.unmodifiableSet(EnumSet.allOf(MessageType.class));
+
+	/**
+	 * {@link MessageTopic}s currently subscribed, except {@link MessageTopic#PROXIMITY}, handled by {@link ProximityTopics}
+	 */
+	private final EnumSet<MessageTopic> subscribed = EnumSet.noneOf(MessageTopic.class);
+
+	private boolean connected = false;
+
+	private volatile boolean advertisementEnabled = false;
+
+	private boolean presenceSnapshotEnabled = false;
+
+	/**
+	 * <code>true</code> if proximity queries are answered from the {@link ProximityDirectory}
+	 */
+	private boolean directoryQueries = false;
+
+	/**
+	 * <code>true</code> while the presence records retained on the state topics are being loaded
+	 */
+	private boolean presenceSnapshotLoading = false;
+
+	private Timer presenceSnapshotTimer;
+
+	/**
+	 * Last {@link SubscriptionSnapshot} passed to {@link #update(SubscriptionSnapshot)}
+	 */
+	private SubscriptionSnapshot snapshot;
+
+	/**
+	 * Filter of the keys of the local subscriptions, advertised to the other devices
+	 */
+	private InterestFilter localFilter = new InterestFilter();
+
+	private final PeerInterests peers = new PeerInterests();
+
+	private Timer advertisementTimer;
+
+	private final AtomicLong unmatchedProxBeacons = new AtomicLong();
+	private final AtomicLong suppressedProxBeacons = new AtomicLong();
+
+
+	InterestManager(MQTTPahoClient client, ProximityTopics proximityTopics, SecurityManager securityManager,
+			String selfId) {
+		this.client = client;
+		this.proximityTopics = proximityTopics;
+		this.securityManager = securityManager;
+		this.selfId = selfId;
+
+		client.setRawMessageCallback(MessageTopic.INTEREST.name() + "/", new RawMessageCallback() {
+
+			@Override
+			public void onRawMessageReceived(String topic, byte[] payload) {
+				String peerId = topic.substring(MessageTopic.INTEREST.name().length() + 1);
+				if(!peerId.equalsIgnoreCase(InterestManager.this.selfId))
+					peers.onAdvertisement(peerId, payload);
+			}
+		});
+	}
+
+	/**
+	 * Method that computes the {@link MessageType}s needed with the subscriptions in <code>snapshot</code>, and
+	 * updates the subscribed {@link MessageTopic}s accordingly
+	 */
+	synchronized void update(SubscriptionSnapshot snapshot){
+
+		this.snapshot = snapshot;
+		boolean proximity = !snapshot.getProximitySubscriptions().isEmpty();
+		boolean geofence = !snapshot.getGeofenceSubscriptions().isEmpty();
+		boolean group = !snapshot.getGroupSubscriptions().isEmpty();
+		boolean d2d = securityManager.check_proximity_changes_enabled();
+
+		EnumSet<MessageType> needed = EnumSet.of(MessageType.SYNC_RESP);
+		if(proximity || geofence || d2d || directoryQueries)
+			needed.add(MessageType.PROX_BEACONS);
+		if(proximity || geofence)
+			needed.add(MessageType.PROXIMITY_UPDATE);
+		if(group)
+			needed.add(MessageType.PROPERTIES_UPDATE);
+		if(d2d)
+			needed.add(MessageType.SYNC_REQ);
+		if(group || proximity || presenceSnapshotLoading)
+			needed.add(MessageType.CHECK_IN);
+		//CHECK_OUT also releases the state of the senders of delta PROX_BEACONS messages
+		if(group || presenceSnapshotLoading || needed.contains(MessageType.PROX_BEACONS))
+			needed.add(MessageType.CHECK_OUT);
+
+		if(!needed.equals(types))
+			Log.d(TAG, "Message types needed: " + needed);
+		types = Collections.unmodifiableSet(needed);
+
+		InterestFilter filter = new InterestFilter();
+		for(String key : subscriptionKeys(snapshot))
+			filter.add(key);
+		if(directoryQueries)
+			filter.add(ANY_KEY);
+		if(!filter.equals(localFilter)){
+			localFilter = filter;
+			if(advertisementEnabled)
+				advertise();
+		}
+
+		apply();
+	}
+
+	/**
+	 * Method called once the client is (re)connected: the subscriptions are restored by the {@link MQTTPahoClient},
+	 * only the advertisement is published again
+	 */
+	synchronized void onConnected(){
+		connected = true;
+		if(advertisementEnabled)
+			advertise();
+		if(presenceSnapshotEnabled)
+			loadPresenceSnapshot();
+	}
+
+	private void apply(){
+		Set<MessageType> t = types;
+
+		setSubscribed(MessageTopic.BROADCAST, t.contains(MessageType.CHECK_IN) || t.contains(MessageType.CHECK_OUT)
+				|| t.contains(MessageType.SYNC_REQ));
+		setSubscribed(MessageTopic.GROUP, t.contains(MessageType.PROPERTIES_UPDATE));
+		//presence records change with the beacons seen: they are received only by who needs CHECK_INs
+		setSubscribed(MessageTopic.STATE, t.contains(MessageType.CHECK_IN));
+		setSubscribed(MessageTopic.INTEREST, advertisementEnabled);
+		proximityTopics.setActive(t.contains(MessageType.PROX_BEACONS));
+	}
+
+	private void setSubscribed(MessageTopic topic, boolean needed){
+		if(needed == subscribed.contains(topic))
+			return;
+
+		//advertisements and states are published on a subtopic for each device
+		String name = (topic == MessageTopic.INTEREST || topic == MessageTopic.STATE) ? topic.name() + "/+" : topic.name();
+		if(needed){
+			client.susbcribe(name);
+			subscribed.add(topic);
+		}
+		else{
+			client.unsusbcribe(name);
+			subscribed.remove(topic);
+		}
+		Log.i(TAG, (needed ? "Subscribed to " : "Unsubscribed from ") + name);
+	}
+
+	/**
+	 * Method returning <code>true</code> if messages of {@link MessageType} <code>type</code> are needed: the
+	 * others, that can still be received until the topic is unsubscribed, are discarded
+	 */
+	boolean isInterested(MessageType type){
+		return types.contains(type);
+	}
+
+	/**
+	 * @return the {@link MessageType}s currently needed
+	 */
+	Set<MessageType> getInterestedTypes(){
+		return types;
+	}
+
+
+	/**
+	 * Method that records whether proximity queries are answered from the {@link ProximityDirectory}: it is
+	 * complete only if every device publishes all its {@link MessageType#PROX_BEACONS}, so they are all received and
+	 * the other devices are asked not to suppress any of them
+	 */
+	synchronized void setDirectoryQueriesEnabled(boolean enabled){
+		if(enabled == directoryQueries)
+			return;
+		directoryQueries = enabled;
+		if(snapshot != null)
+			update(snapshot);
+	}
+
+	/**
+	 * Method that enables or disables the loading of the presence records of the other devices at every connection
+	 * (and now, if connected), even when no subscription needs their states: the states are subscribed for
+	 * {@link #PRESENCE_SNAPSHOT_WINDOW} milliseconds, in which the broker delivers the record retained for each device
+	 */
+	synchronized void setPresenceSnapshotEnabled(boolean enabled){
+		if(enabled == presenceSnapshotEnabled)
+			return;
+		presenceSnapshotEnabled = enabled;
+		if(enabled && connected)
+			loadPresenceSnapshot();
+		else if(!enabled)
+			endPresenceSnapshot();
+	}
+
+	private void loadPresenceSnapshot(){
+		if(presenceSnapshotTimer != null)
+			presenceSnapshotTimer.cancel();
+		presenceSnapshotLoading = true;
+		if(snapshot != null)
+			update(snapshot);
+
+		presenceSnapshotTimer = new Timer(TAG, true);
+		presenceSnapshotTimer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				synchronized (InterestManager.this) {
+					endPresenceSnapshot();
+				}
+			}
+		}, PRESENCE_SNAPSHOT_WINDOW);
+	}
+
+	private void endPresenceSnapshot(){
+		if(presenceSnapshotTimer != null){
+			presenceSnapshotTimer.cancel();
+			presenceSnapshotTimer = null;
+		}
+		if(!presenceSnapshotLoading)
+			return;
+		presenceSnapshotLoading = false;
+		if(snapshot != null)
+			update(snapshot);
+	}
+
+	/**
+	 * Method that enables or disables the advertisement of the interests of this device, and the suppression of
+	 * the {@link MessageType#PROX_BEACONS} no other device is interested in
+	 */
+	synchronized void setAdvertisementEnabled(boolean enabled){
+		if(enabled == advertisementEnabled)
+			return;
+
+		if(!enabled)
+			clearAdvertisement();
+		advertisementEnabled = enabled;
+		apply();
+
+		if(enabled){
+			advertise();
+			advertisementTimer = new Timer(TAG, true);
+			advertisementTimer.schedule(new TimerTask() {
+
+				@Override
+				public void run() {
+					synchronized (InterestManager.this) {
+						advertise();
+					}
+				}
+			}, DEFAULT_ADVERTISEMENT_PERIOD, DEFAULT_ADVERTISEMENT_PERIOD);
+		}
+		else{
+			advertisementTimer.cancel();
+			advertisementTimer = null;
+			peers.clear();
+		}
+	}
+
+	/**
+	 * Method that stops the advertisement, removing the retained advertisement of this device
+	 */
+	synchronized void stop(){
+		if(advertisementEnabled)
+			setAdvertisementEnabled(false);
+		endPresenceSnapshot();
+	}
+
+	private void advertise(){
+		if(connected)
+			client.publishRaw(getAdvertisementTopic(), PeerInterests.encodeAdvertisement(localFilter,
+					DEFAULT_ADVERTISEMENT_TTL), 1, true);
+	}
+
+	private void clearAdvertisement(){
+		//an empty retained message removes the one retained by the broker
+		if(connected)
+			client.publishRaw(getAdvertisementTopic(), new byte[0], 1, true);
+	}
+
+	private String getAdvertisementTopic(){
+		return MessageTopic.INTEREST.name() + "/" + selfId;
+	}
+
+	/**
+	 * Method that decides whether a {@link MessageType#PROX_BEACONS} has to be published. It is always published
+	 * if advertisement is disabled, if this device has proximity or geofence subscriptions (devices nearby answer
+	 * with the {@link MessageType#PROXIMITY_UPDATE}s they need) or if some device may be interested in it;
+	 * otherwise, only once every {@link #DEFAULT_UNMATCHED_PROX_BEACONS_DIVISOR} times.
+	 * @param sender - selfEntity
+	 * @param beacons - the beacons the message would contain
+	 */
+	boolean shouldPublishProxBeacons(Entity sender, List<Entity> beacons){
+
+		if(!advertisementEnabled || types.contains(MessageType.PROXIMITY_UPDATE))
+			return true;
+
+		Collection<String> keys = proxBeaconsKeys(sender, beacons);
+		long[] hashes = new long[keys.size()];
+		int i = 0;
+		for(String key : keys)
+			hashes[i++] = InterestFilter.hash(key);
+
+		if(peers.mightMatch(hashes))
+			return true;
+
+		if(unmatchedProxBeacons.incrementAndGet() % DEFAULT_UNMATCHED_PROX_BEACONS_DIVISOR == 0)
+			return true;
+
+		suppressedProxBeacons.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return the number of {@link MessageType#PROX_BEACONS} not published because no device was interested in them
+	 */
+	long getSuppressedProxBeaconsCount(){
+		return suppressedProxBeacons.get();
+	}
+
+	/**
+	 * @return the number of devices whose interests are known
+	 */
+	int getAdvertisingPeerCount(){
+		return peers.getPeerCount();
+	}
+
+
+	/**
+	 * Method returning the keys of the proximity and geofence {@link Subscription}s, i.e. the keys of every
+	 * {@link Group} (and geofence {@link Entity}) a {@link MessageType#PROX_BEACONS} has to match to be evaluated
+	 */
+	static Set<String> subscriptionKeys(SubscriptionSnapshot snapshot){
+		LinkedHashSet<String> ret = new LinkedHashSet<String>();
+		for(Subscription s : snapshot.getProximitySubscriptions()){
+			addGroupKeys(s.getG1(), ret);
+			addGroupKeys(s.getG2(), ret);
+		}
+		for(Subscription s : snapshot.getGeofenceSubscriptions()){
+			if(s.getE1() != null){
+				ret.add("id:" + s.getE1().getEntityID().toLowerCase());
+				if(Type.BLE_BEACON.equals(s.getE1().getEntityType()))
+					ret.add("beacon:" + join(s.getE1().getBeaconIdTokens(), s.getE1().getBeaconIdTokens().length));
+			}
+			addGroupKeys(s.getG2(), ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Method that adds the keys of a {@link Group}, consistently with {@link Group#evaluate(Entity)}: its entity id
+	 * (matched exactly by devices, and as UUID/major/minor prefix by beacons) or, if it has none, its {@link Type}
+	 */
+	private static void addGroupKeys(Group g, Collection<String> out){
+		if(g == null || g.getEntity_id() == null || g.getType() == null)
+			out.add(ANY_KEY);
+		else if(!g.getEntity_id().equals("")){
+			out.add("id:" + g.getEntity_id().toLowerCase());
+			out.add("beacon:" + join(g.getBeaconIdTokens(), g.getBeaconIdTokens().length));
+		}
+		else
+			out.add("type:" + g.getType().name());
+	}
+
+	/**
+	 * Method returning the keys a {@link MessageType#PROX_BEACONS} can be matched by: those of the sender, and
+	 * every UUID/major/minor prefix of the beacons
+	 */
+	static Set<String> proxBeaconsKeys(Entity sender, List<Entity> beacons){
+		LinkedHashSet<String> ret = new LinkedHashSet<String>();
+		ret.add(ANY_KEY);
+		ret.add("type:" + Type.ALL.name());
+		ret.add("type:" + sender.getEntityType().name());
+		ret.add("id:" + sender.getEntityID().toLowerCase());
+		for(Entity b : beacons){
+			ret.add("type:" + Type.BLE_BEACON.name());
+			String[] tokens = b.getBeaconIdTokens();
+			for(int i = 1; i <= tokens.length; i++)
+				ret.add("beacon:" + join(tokens, i));
+		}
+		return ret;
+	}
+
+	private static String join(String[] tokens, int count){
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < count; i++){
+			if(i > 0)
+				sb.append(':');
+			sb.append(tokens[i]);
+		}
+		return sb.toString();
+	}
+}
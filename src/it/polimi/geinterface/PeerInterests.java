@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.util.Log;
+
+
+/**
+ * 
+ * Interests advertised by the other devices, as received on the retained interest topics (see {@link InterestManager}).
+ * An advertisement contains the {@link InterestFilter} of the keys a device is interested in and the time it is
+ * valid for: a device that stops advertising (e.g. because it left without clearing its retained advertisement)
+ * is forgotten once its advertisement expires. Filters are checked one by one instead of being merged, so that
+ * the probability of a false match grows with the number of devices, not with the number of keys of all of them.
+ * <p>
+ * The checks fail open: with no valid advertisement, or with a device whose advertisement cannot be read,
+ * every key may match.
+ *
+ */
+final class PeerInterests {
+
+	private static final String TAG = "PeerInterests";
+
+	private static final byte VERSION = 1;
+
+	private final HashMap<String, Peer> peers = new HashMap<String, Peer>();
+
+	private long malformedCount = 0;
+
+
+	/**
+	 * Method that builds the payload of an advertisement: version (1 byte), validity in seconds (4 bytes), then
+	 * the {@link InterestFilter}
+	 * @param ttlMillis - time after which receivers forget the advertisement, if it is not renewed
+	 */
+	static byte[] encodeAdvertisement(InterestFilter filter, long ttlMillis){
+		ByteBuffer out = ByteBuffer.allocate(1 + 4 + filter.serializedSize());
+		out.put(VERSION);
+		out.putInt((int) Math.max(1, ttlMillis / 1000));
+		filter.writeTo(out);
+		return out.array();
+	}
+
+	/**
+	 * Method that records the advertisement of a device
+	 * @param payload - the advertisement; empty if the device cleared it
+	 */
+	synchronized void onAdvertisement(String peerId, byte[] payload){
+
+		if(payload.length == 0){
+			peers.remove(peerId);
+			return;
+		}
+
+		Peer peer = new Peer();
+		try {
+			ByteBuffer in = ByteBuffer.wrap(payload);
+			if(in.get() != VERSION)
+				throw new IllegalArgumentException("Unknown version " + payload[0]);
+			long ttl = in.getInt() * 1000L;
+			peer.expiresAt = now() + ttl;
+			peer.filter = InterestFilter.readFrom(in);
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			//the device is interested in everything, until its advertisement expires
+			malformedCount++;
+			Log.w(TAG, "Advertisement of " + peerId + " not valid: " + e.getMessage());
+			peer.filter = null;
+			if(peer.expiresAt == 0)
+				peer.expiresAt = now() + InterestManager.DEFAULT_ADVERTISEMENT_TTL;
+		}
+		peers.put(peerId, peer);
+	}
+
+	/**
+	 * Method returning <code>true</code> if a device may be interested in at least one of the keys
+	 * @param keyHashes - hashes of the keys, as computed by {@link InterestFilter#hash(String)}
+	 */
+	synchronized boolean mightMatch(long[] keyHashes){
+
+		expire();
+		if(peers.isEmpty())
+			return true;
+
+		for(Peer peer : peers.values()){
+			if(peer.filter == null)
+				return true;
+			for(long h : keyHashes)
+				if(peer.filter.mightContain(h))
+					return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of devices whose advertisement is valid
+	 */
+	synchronized int getPeerCount(){
+		expire();
+		return peers.size();
+	}
+
+	/**
+	 * @return the number of advertisements that could not be read
+	 */
+	synchronized long getMalformedCount(){
+		return malformedCount;
+	}
+
+	synchronized void clear(){
+		peers.clear();
+	}
+
+	private void expire(){
+		long now = now();
+		for(Iterator<Peer> it = peers.values().iterator(); it.hasNext();)
+			if(it.next().expiresAt <= now)
+				it.remove();
+	}
+
+	private static long now(){
+		return System.nanoTime() / 1000000;
+	}
+
+
+	private static final class Peer {
+
+		/**
+		 * Filter of the device, <code>null</code> if its advertisement could not be read
+		 */
+		private InterestFilter filter;
+
+		private long expiresAt;
+	}
+}
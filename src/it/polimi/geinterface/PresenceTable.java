@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import it.polimi.geinterface.DAO.Entity;
+import it.polimi.geinterface.network.MessageType;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * 
+ * Last known presence of the other entities, used to handle {@link MessageType#CHECK_IN} and
+ * {@link MessageType#CHECK_OUT} idempotently: the same change can be received more than once (on the
+ * {@link it.polimi.geinterface.network.MessageTopic#BROADCAST} topic and as retained state, or again after a
+ * reconnection), but it has to fire events only once. The {@link MessageType#CHECK_OUT} conveyed by the will message
+ * does not contain the properties of the entity, so the ones of its last state are used.
+ * The least recently updated entities are forgotten once {@link #DEFAULT_CAPACITY} is reached.
+ *
+ */
+final class PresenceTable {
+
+	static final int DEFAULT_CAPACITY = 4096;
+
+	private final LinkedHashMap<String, Record> records;
+
+
+	PresenceTable(final int capacity) {
+		records = new LinkedHashMap<String, Record>(16, 0.75f, true){
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Record> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Method that records a {@link MessageType#CHECK_IN}
+	 * @return <code>true</code> if the {@link Entity} was not known to be connected, i.e. if events have to be fired
+	 */
+	synchronized boolean checkIn(Entity e){
+		Record r = records.get(key(e));
+		boolean changed = (r == null || !r.present);
+		records.put(key(e), new Record(e, true));
+		return changed;
+	}
+
+	/**
+	 * Method that records a (valid) {@link MessageType#CHECK_OUT}
+	 * @return the last known state of the {@link Entity}, <code>e</code> itself if it is unknown, or <code>null</code>
+	 * if it was already known to be disconnected, i.e. if no event has to be fired
+	 */
+	synchronized Entity checkOut(Entity e){
+		Record r = records.get(key(e));
+		if(r != null && !r.present)
+			return null;
+		records.put(key(e), new Record((r == null) ? e : r.entity, false));
+		return (r == null) ? e : r.entity;
+	}
+
+	/**
+	 * Method that records the new state of a connected {@link Entity}, e.g. after a {@link MessageType#PROPERTIES_UPDATE}
+	 */
+	synchronized void update(Entity e){
+		Record r = records.get(key(e));
+		if(r != null && r.present)
+			records.put(key(e), new Record(e, true));
+	}
+
+	private static String key(Entity e){
+		return e.getEntityID().toLowerCase();
+	}
+
+
+	private static final class Record {
+
+		private final Entity entity;
+		private final boolean present;
+
+		Record(Entity entity, boolean present) {
+			this.entity = entity;
+			this.present = present;
+		}
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import it.polimi.geinterface.DAO.Entity;
+import it.polimi.geinterface.DAO.Entity.Type;
+import it.polimi.geinterface.DAO.Group;
+import it.polimi.geinterface.network.MessageType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 
+ * Soft state about the other devices, built from the messages received ({@link MessageType#PROX_BEACONS},
+ * {@link MessageType#PROXIMITY_UPDATE}, {@link MessageType#CHECK_IN}, {@link MessageType#CHECK_OUT} and
+ * {@link MessageType#PROPERTIES_UPDATE}) and from the presence records retained on the state topics: the last
+ * known properties of each device and the beacons it sees.
+ * It is used to answer proximity queries without a {@link MessageType#SYNC_REQ}.
+ * <p>
+ * The beacons seen by a device are valid for the TTL after they were received. A beacon is a region known
+ * locally if a {@link MessageType#PROX_BEACONS} mentioning it was received within the TTL: the devices near it
+ * are then publishing, so the ones not in the directory are not there. This holds only if no
+ * {@link MessageType#PROX_BEACONS} was missed (e.g. discarded by a full inbound queue, or suppressed by a device
+ * not yet aware that they are needed): after {@link #markIncomplete(long)}, no beacon is known locally for the TTL.
+ * The least recently updated devices are forgotten once the capacity is reached.
+ *
+ */
+final class ProximityDirectory {
+
+	static final int DEFAULT_CAPACITY = 2048;
+
+	/**
+	 * Default time in milliseconds after which the beacons seen by a device are not valid anymore
+	 */
+	static final long DEFAULT_TTL = 30000;
+
+	private final int capacity;
+
+	private final LinkedHashMap<String, Record> records;
+
+	/**
+	 * Time of the last {@link MessageType#PROX_BEACONS} mentioning each beacon, by id
+	 */
+	private final LinkedHashMap<String, Long> heardBeacons;
+
+	private volatile long ttl = DEFAULT_TTL;
+
+	/**
+	 * Last time some {@link MessageType#PROX_BEACONS} may have been missed
+	 */
+	private long incompleteAt = 0;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictedCount = new AtomicLong();
+	private final AtomicLong expiredCount = new AtomicLong();
+
+
+	ProximityDirectory(final int capacity) {
+		this.capacity = capacity;
+		records = new LinkedHashMap<String, Record>(16, 0.75f, true){
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Record> eldest) {
+				if(size() <= capacity)
+					return false;
+				evictedCount.incrementAndGet();
+				return true;
+			}
+		};
+		heardBeacons = new LinkedHashMap<String, Long>(16, 0.75f, true){
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Method that sets the time in milliseconds after which the beacons seen by a device are not valid anymore
+	 */
+	void setTtl(long millis){
+		this.ttl = millis;
+	}
+
+	/**
+	 * Method that records that some {@link MessageType#PROX_BEACONS} may have been missed at <code>time</code>
+	 * (in milliseconds): the devices they report may be missing until all of them publish again, i.e. for the TTL
+	 */
+	synchronized void markIncomplete(long time){
+		incompleteAt = Math.max(incompleteAt, time);
+	}
+
+	/**
+	 * Method that records the beacons seen by a device, reported by a (full) {@link MessageType#PROX_BEACONS}
+	 */
+	synchronized void onProxBeacons(Entity sender, List<Entity> beacons){
+		if(sender.getEntityType() != Type.DEVICE)
+			return;
+		Record r = records.get(key(sender));
+		put(sender, beacons, (r == null) ? 0 : r.presenceTimestamp);
+	}
+
+	/**
+	 * Method that records the presence record of a device, retained on its state topic: the beacons it saw the last
+	 * time they changed. The device publishes the record again when they change, and it is removed when the device
+	 * leaves, so they are taken as reported now, unless the record is not newer than the last one received from
+	 * the device (e.g. it is the retained copy of a record already received). The time the record was built is
+	 * compared only with those of the other records of the same device, since the clocks of the devices differ.
+	 * @param timestamp - time the record was built by the device, on its own clock
+	 */
+	synchronized void onPresence(Entity sender, List<Entity> beacons, long timestamp){
+		if(sender.getEntityType() != Type.DEVICE)
+			return;
+		Record r = records.get(key(sender));
+		if(r != null && r.presenceTimestamp >= timestamp)
+			update(sender);
+		else
+			put(sender, beacons, timestamp);
+	}
+
+	private void put(Entity sender, List<Entity> beacons, long presenceTimestamp){
+		long now = System.currentTimeMillis();
+		records.put(key(sender), new Record(sender,
+				Collections.unmodifiableList(new ArrayList<Entity>(beacons)), now, presenceTimestamp));
+		for(Entity b : beacons)
+			heardBeacons.put(key(b), now);
+	}
+
+	/**
+	 * Method that records a {@link MessageType#PROXIMITY_UPDATE}: the properties of the devices involved, and the
+	 * {@link DistanceRange} of <code>e1</code> from <code>e2</code> if it is a beacon
+	 */
+	synchronized void onProximityUpdate(Entity e1, Entity e2, DistanceRange distance){
+		if(e1.getEntityType() != Type.DEVICE)
+			return;
+
+		Record r = records.get(key(e1));
+		if(e2.getEntityType() != Type.BLE_BEACON || r == null){
+			update(e1);
+			if(e2.getEntityType() == Type.DEVICE)
+				update(e2);
+			return;
+		}
+
+		ArrayList<Entity> beacons = new ArrayList<Entity>(r.beacons.size() + 1);
+		for(Entity b : r.beacons)
+			if(!b.equals(e2))
+				beacons.add(b);
+		beacons.add(new Entity.Builder(e2.getEntityID(), Type.BLE_BEACON).setDistance(distance).build());
+		records.put(key(e1), new Record(e1, Collections.unmodifiableList(beacons), r.beaconsTimestamp,
+				r.presenceTimestamp));
+	}
+
+	/**
+	 * Method that records the current properties of a known device, e.g. after a {@link MessageType#CHECK_IN} or a
+	 * {@link MessageType#PROPERTIES_UPDATE}. Devices are added only by the beacons they see.
+	 */
+	synchronized void update(Entity e){
+		Record r = records.get(key(e));
+		if(r != null)
+			records.put(key(e), new Record(e, r.beacons, r.beaconsTimestamp, r.presenceTimestamp));
+	}
+
+	/**
+	 * Method that forgets a device that disconnected
+	 */
+	synchronized void remove(Entity e){
+		records.remove(key(e));
+	}
+
+	/**
+	 * @return the devices whose beacons are still valid
+	 */
+	synchronized List<Record> getFreshRecords(){
+		long oldest = System.currentTimeMillis() - ttl;
+		ArrayList<Record> ret = new ArrayList<Record>();
+		Iterator<Record> it = records.values().iterator();
+		while(it.hasNext()){
+			Record r = it.next();
+			if(r.beaconsTimestamp >= oldest)
+				ret.add(r);
+			else{
+				it.remove();
+				expiredCount.incrementAndGet();
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Method that answers a proximity query with the known devices
+	 * @param requested - beacons seen by the requester
+	 * @param g - the {@link Group} the devices have to belong to
+	 * @param maxDistance - maximum {@link DistanceRange} from the requester
+	 * @return the {@link Lookup} containing the devices found and the beacons not known locally
+	 */
+	Lookup lookup(List<Entity> requested, Group g, DistanceRange maxDistance){
+
+		ArrayList<Entity> found = new ArrayList<Entity>();
+		for(Record r : getFreshRecords()){
+			SyncResponder.Match m = SyncResponder.match(requested, r.beacons);
+			if(m.distance.ordinal() <= maxDistance.ordinal() && g.evaluate(r.entity))
+				found.add(new Entity.Builder(r.entity.getEntityID(), r.entity.getEntityType())
+				.addProperties(r.entity.getProperties())
+				.setDistance(m.distance)
+				.build());
+		}
+
+		ArrayList<Entity> stale = new ArrayList<Entity>();
+		long oldest = System.currentTimeMillis() - ttl;
+		synchronized (this) {
+			for(Entity b : requested){
+				Long heard = heardBeacons.get(key(b));
+				if(heard == null || heard < oldest || incompleteAt >= oldest)
+					stale.add(b);
+			}
+		}
+
+		//devices not sharing any beacon with the requester are not known by region
+		boolean complete = maxDistance.ordinal() <= DistanceRange.REMOTE.ordinal();
+
+		hitCount.addAndGet(requested.size() - stale.size());
+		missCount.addAndGet(complete ? stale.size() : Math.max(1, stale.size()));
+
+		return new Lookup(found, stale, complete);
+	}
+
+	synchronized int size(){
+		return records.size();
+	}
+
+	/**
+	 * @return the number of beacons of the requesters found in the directory
+	 */
+	long getHitCount(){
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of beacons of the requesters (or whole queries, when the devices sharing no beacon with
+	 * the requester were requested) that had to be queried on the network
+	 */
+	long getMissCount(){
+		return missCount.get();
+	}
+
+	/**
+	 * @return the fraction of the lookups answered by the directory, between 0 and 1
+	 */
+	double getHitRate(){
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return (total == 0) ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * @return the number of devices forgotten because the capacity was reached
+	 */
+	long getEvictedCount(){
+		return evictedCount.get();
+	}
+
+	/**
+	 * @return the number of devices forgotten because their beacons were older than the TTL
+	 */
+	long getExpiredCount(){
+		return expiredCount.get();
+	}
+
+	private static String key(Entity e){
+		return e.getEntityID().toLowerCase();
+	}
+
+
+	/**
+	 * Last known state of a device
+	 */
+	static final class Record {
+
+		final Entity entity;
+
+		/**
+		 * Beacons seen by the device (unmodifiable)
+		 */
+		final List<Entity> beacons;
+
+		/**
+		 * Time the beacons were received
+		 */
+		final long beaconsTimestamp;
+
+		/**
+		 * Time the last presence record of the device was built, on the clock of the device (0 if none was received)
+		 */
+		final long presenceTimestamp;
+
+		Record(Entity entity, List<Entity> beacons, long beaconsTimestamp, long presenceTimestamp) {
+			this.entity = entity;
+			this.beacons = beacons;
+			this.beaconsTimestamp = beaconsTimestamp;
+			this.presenceTimestamp = presenceTimestamp;
+		}
+	}
+
+	/**
+	 * Result of {@link ProximityDirectory#lookup(List, Group, DistanceRange)}
+	 */
+	static final class Lookup {
+
+		/**
+		 * Devices found, with their {@link DistanceRange} from the requester
+		 */
+		final List<Entity> found;
+
+		/**
+		 * Beacons of the requester no device near which is known to be publishing
+		 */
+		final List<Entity> staleBeacons;
+
+		/**
+		 * <code>false</code> if also devices not sharing any beacon with the requester were requested: they can
+		 * be found only on the network
+		 */
+		final boolean complete;
+
+		Lookup(List<Entity> found, List<Entity> staleBeacons, boolean complete) {
+			this.found = found;
+			this.staleBeacons = staleBeacons;
+			this.complete = complete;
+		}
+
+		/**
+		 * @return <code>true</code> if the query does not need a {@link MessageType#SYNC_REQ}
+		 */
+		boolean isLocal(){
+			return complete && staleBeacons.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import it.polimi.geinterface.DAO.Entity;
+import it.polimi.geinterface.network.MessageType;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+
+/**
+ * 
+ * Queries in flight started by {@link ClientProximityAPI#getAllEntitiesInProximity(DistanceRange,
+ * it.polimi.geinterface.DAO.Group, ProximityQueryCallback, long, int)}. Each query has its own id and reply topic
+ * (<code>selfEntityId/SYNC_RESP/session-id</code>), all matched by the single subscription returned by
+ * {@link #getReplyFilter()}, so any number of queries can run at the same time and no subscription is needed to
+ * start one. A query is completed as soon as the expected number of entities responded, when no
+ * {@link MessageType#SYNC_RESP} arrived for the quiet period after the last one and after the backoff window of the
+ * responders (see {@link SyncResponder#getResponseWindow(DistanceRange, boolean)}), or at the timeout.
+ * <p>
+ * The results are delivered to the {@link ProximityQueryCallback}s in order on a thread of their own, so that an
+ * application callback never runs holding the lock of a query or on the {@link Timer} completing the queries.
+ *
+ */
+final class ProximityQueries {
+
+	private static final String TAG = "ProximityQueries";
+
+	/**
+	 * Default time to wait after the last {@link MessageType#SYNC_RESP} before completing a query
+	 */
+	static final long DEFAULT_QUIET_PERIOD = 60;
+
+	private final String replyPrefix;
+
+	private final Timer timer;
+
+	private final Listener listener;
+
+	/**
+	 * Executor delivering the results to the {@link ProximityQueryCallback}s, in the order they are produced
+	 */
+	private final ThreadPoolExecutor callbackExecutor;
+
+	private final ConcurrentHashMap<String, Query> inFlight = new ConcurrentHashMap<String, Query>();
+
+	private final AtomicLong nextId = new AtomicLong();
+
+	private volatile long quietPeriod = DEFAULT_QUIET_PERIOD;
+
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong earlyCompletedCount = new AtomicLong();
+	private final AtomicLong totalMillis = new AtomicLong();
+
+
+	/**
+	 * @param selfId - id of selfEntity, used to build the reply topics
+	 * @param timer - {@link Timer} used to complete the queries
+	 * @param listener - the {@link Listener} notified when the expected number of entities responded to a query
+	 */
+	ProximityQueries(String selfId, Timer timer, Listener listener) {
+		//the session id keeps the replies to the queries of a previous run from being taken as new ones
+		this.replyPrefix = selfId + "/" + MessageType.SYNC_RESP.name() + "/"
+				+ Long.toString(System.currentTimeMillis(), 36) + "-";
+		this.timer = timer;
+		this.listener = listener;
+		callbackExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		callbackExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return the topic filter matching the reply topics of all the queries (and the topics of the aggregated
+	 * responses below them), that has to be subscribed
+	 */
+	String getReplyFilter(){
+		return replyPrefix.substring(0, replyPrefix.lastIndexOf('/') + 1) + "#";
+	}
+
+	/**
+	 * Method that sets the time to wait after the last {@link MessageType#SYNC_RESP} before completing a query
+	 * @param millis - the quiet period; 0 to wait always until the expected count or the timeout
+	 */
+	void setQuietPeriod(long millis){
+		this.quietPeriod = millis;
+	}
+
+	long getQuietPeriod(){
+		return quietPeriod;
+	}
+
+	/**
+	 * Method that starts a query: the {@link MessageType#SYNC_REQ} has to be published afterwards, with
+	 * {@link Query#getReplyTopic()} as reply topic
+	 * @param expectedCount - number of entities expected to respond; 0 if unknown
+	 * @param timeout - maximum time in milliseconds to wait for responses
+	 * @param window - time in milliseconds within which the responders send their responses: the query is not
+	 * completed by the quiet period before
+	 * @param callback - the {@link ProximityQueryCallback} receiving the results
+	 */
+	Query start(int expectedCount, long timeout, long window, ProximityQueryCallback callback){
+		long id = nextId.incrementAndGet();
+		final Query q = new Query(id, replyPrefix + id, expectedCount, timeout, window, callback);
+		inFlight.put(q.replyTopic, q);
+
+		q.deadline = new TimerTask() {
+
+			@Override
+			public void run() {
+				q.complete(false);
+			}
+		};
+		timer.schedule(q.deadline, timeout);
+		return q;
+	}
+
+	/**
+	 * Method that handles a {@link MessageType#SYNC_RESP}
+	 * @param replyTopic - the reply topic contained in the response
+	 * @param sender - the responding {@link Entity}
+	 * @param others - the other entities reported by an aggregated response, or <code>null</code>
+	 * @return <code>false</code> if the response does not belong to a query in flight (e.g. it is late)
+	 */
+	boolean onResponse(String replyTopic, Entity sender, List<Entity> others){
+		Query q = (replyTopic == null) ? null : inFlight.get(replyTopic);
+		if(q == null)
+			return false;
+		q.add(sender, true);
+		if(others != null)
+			for(Entity e : others)
+				q.add(e, true);
+		return true;
+	}
+
+	/**
+	 * Method that delivers a result to a {@link ProximityQueryCallback}. Called holding the lock of the query, so
+	 * that the results of a query are delivered in the order they are produced.
+	 */
+	private void deliver(final Runnable notification){
+		callbackExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					notification.run();
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Query callback failed: " + e);
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Method that completes all the queries in flight
+	 */
+	void completeAll(){
+		for(Query q : inFlight.values())
+			q.complete(false);
+	}
+
+	/**
+	 * @return the number of queries in flight
+	 */
+	int getInFlightCount(){
+		return inFlight.size();
+	}
+
+	/**
+	 * @return the number of queries completed
+	 */
+	long getCompletedCount(){
+		return completedCount.get();
+	}
+
+	/**
+	 * @return the number of queries completed before the timeout
+	 */
+	long getEarlyCompletedCount(){
+		return earlyCompletedCount.get();
+	}
+
+	/**
+	 * @return the average duration in milliseconds of the completed queries
+	 */
+	long getAverageMillis(){
+		long n = completedCount.get();
+		return (n == 0) ? 0 : totalMillis.get() / n;
+	}
+
+
+	/**
+	 * Interface used to announce to the responders that a query does not need more responses
+	 */
+	interface Listener {
+
+		/**
+		 * Method called when the expected number of entities responded to the query having reply topic
+		 * <code>replyTopic</code>, after the query is completed
+		 */
+		void onExpectedCountReached(String replyTopic);
+
+		/**
+		 * Method called, after {@link #onExpectedCountReached(String)}, at the timeout of the query having reply topic
+		 * <code>replyTopic</code>: its responses are not accepted anymore, so the announcement can be removed
+		 */
+		void onQueryExpired(String replyTopic);
+	}
+
+	/**
+	 * A query in flight
+	 */
+	final class Query {
+
+		private final long id;
+		private final String replyTopic;
+		private final int expectedCount;
+		private final ProximityQueryCallback callback;
+		private final long startNanos = System.nanoTime();
+		private final long timeout;
+		private final long window;
+
+		/**
+		 * Entities found, by id
+		 */
+		private final LinkedHashMap<String, Entity> results = new LinkedHashMap<String, Entity>();
+		private int responses;
+		private boolean completed;
+
+		/**
+		 * <code>true</code> once the {@link MessageType#SYNC_REQ} is sent
+		 */
+		private boolean requested;
+
+		private TimerTask deadline;
+		private TimerTask quiet;
+
+
+		private Query(long id, String replyTopic, int expectedCount, long timeout, long window,
+				ProximityQueryCallback callback) {
+			this.id = id;
+			this.timeout = timeout;
+			this.window = window;
+			this.replyTopic = replyTopic;
+			this.expectedCount = expectedCount;
+			this.callback = callback;
+		}
+
+		long getId(){
+			return id;
+		}
+
+		String getReplyTopic(){
+			return replyTopic;
+		}
+
+		/**
+		 * Method that records that the {@link MessageType#SYNC_REQ} of the query is being sent
+		 * @return <code>false</code> if the query is already completed, so that it does not have to be sent
+		 */
+		synchronized boolean markRequested(){
+			requested = !completed;
+			return requested;
+		}
+
+		/**
+		 * Method that adds an {@link Entity} to the results, reporting it if it was not found yet
+		 * @param response - <code>true</code> if <code>e</code> responded to the query, <code>false</code> if it
+		 * is known locally (e.g. a beacon seen by selfEntity)
+		 */
+		synchronized void add(final Entity e, boolean response){
+			if(completed || results.containsKey(e.getEntityID()))
+				return;
+
+			results.put(e.getEntityID(), e);
+			deliver(new Runnable() {
+
+				@Override
+				public void run() {
+					callback.onEntityFound(id, e);
+				}
+			});
+
+			if(!response)
+				return;
+
+			responses++;
+			if(expectedCount > 0 && responses >= expectedCount){
+				complete(true);
+				if(requested){
+					listener.onExpectedCountReached(replyTopic);
+					//the responders still in their backoff may need the announcement until the timeout
+					timer.schedule(new TimerTask() {
+
+						@Override
+						public void run() {
+							listener.onQueryExpired(replyTopic);
+						}
+					}, Math.max(0, timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+				}
+				return;
+			}
+
+			long period = quietPeriod;
+			if(period > 0){
+				//responders further away may still be in their backoff
+				period += Math.max(0, window - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+				if(quiet != null)
+					quiet.cancel();
+				quiet = new TimerTask() {
+
+					@Override
+					public void run() {
+						complete(true);
+					}
+				};
+				timer.schedule(quiet, period);
+			}
+		}
+
+		/**
+		 * Method that completes the query, if it is not completed yet
+		 * @param early - <code>true</code> if the query is completed before the timeout
+		 */
+		synchronized void complete(boolean early){
+			if(completed)
+				return;
+			completed = true;
+
+			inFlight.remove(replyTopic, this);
+			deadline.cancel();
+			if(quiet != null)
+				quiet.cancel();
+
+			completedCount.incrementAndGet();
+			if(early)
+				earlyCompletedCount.incrementAndGet();
+			totalMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+			final List<Entity> found = new ArrayList<Entity>(results.values());
+			deliver(new Runnable() {
+
+				@Override
+				public void run() {
+					callback.onCompleted(id, found);
+				}
+			});
+		}
+	}
+}
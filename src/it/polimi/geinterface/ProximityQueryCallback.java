@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import it.polimi.geinterface.DAO.Entity;
+import it.polimi.geinterface.DAO.Group;
+
+import java.util.List;
+
+/**
+ * Interface that has to be implemented in order to receive the results of a query started with
+ * {@link ClientProximityAPI#getAllEntitiesInProximity(DistanceRange, Group, ProximityQueryCallback, long, int)}.
+ * Callbacks are invoked on the threads of the framework, so they have to return quickly.
+ *
+ */
+public interface ProximityQueryCallback {
+
+	/**
+	 * Method called for each {@link Entity} found in proximity, as soon as it is known: first the beacons
+	 * seen by selfEntity, then the entities responding to the query. Every {@link Entity} is reported once.
+	 * @param requestId - identifier of the query, as returned when it was started
+	 * @param e - the {@link Entity} found
+	 */
+	public void onEntityFound(long requestId, Entity e);
+
+	/**
+	 * Method called once, when the query is completed. No {@link #onEntityFound(long, Entity)} is called
+	 * for the query afterwards.
+	 * @param requestId - identifier of the query, as returned when it was started
+	 * @param result - all the entities found, in the order they were reported
+	 */
+	public void onCompleted(long requestId, List<Entity> result);
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import it.polimi.geinterface.network.MessageType;
+
+/**
+ * How the queries started by {@link ClientProximityAPI#getAllEntitiesInProximity(DistanceRange,
+ * it.polimi.geinterface.DAO.Group, ProximityQueryCallback, long, int)} are answered
+ *
+ */
+public enum ProximityQueryMode {
+
+	/**
+	 * A {@link MessageType#SYNC_REQ} is always sent, and the entities in proximity are the ones responding.
+	 * Understood by every version of the framework.
+	 */
+	NETWORK,
+
+	/**
+	 * Queries are answered only with the devices known from the messages already received, without any
+	 * {@link MessageType#SYNC_REQ}: devices that are not publishing their beacons (or whose messages are not
+	 * received, e.g. because of the {@link it.polimi.geinterface.network.ProximityTopicMode}) are not found
+	 */
+	LOCAL,
+
+	/**
+	 * Queries are answered with the devices known from the messages already received, and a
+	 * {@link MessageType#SYNC_REQ} is sent only for the beacons about which no message was received recently
+	 * (or for the whole network, if devices not sharing any beacon with selfEntity are requested)
+	 */
+	HYBRID
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import it.polimi.geinterface.DAO.Entity;
+import it.polimi.geinterface.DAO.POI;
+import it.polimi.geinterface.network.MQTTPahoClient;
+import it.polimi.geinterface.network.MessageTopic;
+import it.polimi.geinterface.network.MessageType;
+import it.polimi.geinterface.network.MessageUtils;
+import it.polimi.geinterface.network.ProximityTopicMode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+
+/**
+ * 
+ * Topics used for {@link MessageType#PROX_BEACONS} messages, according to the {@link ProximityTopicMode}.
+ * When sharding is used, each message is published on the shard of the UUID of the beacons it contains
+ * (all the beacons of a scan belong to the region of a single {@link POI}), and the device subscribes only to
+ * the shards of the {@link POI}s it currently is in, as notified by geofence and BLE events, so the messages
+ * received grow with the number of devices around it instead of with the size of the whole network.
+ * Since a receiver gets each message exactly once, every stream of messages has its own {@link BeaconDeltaEncoder}.
+ *
+ */
+final class ProximityTopics {
+
+	private final MQTTPahoClient client;
+
+	private final int keyframeInterval;
+
+	private ProximityTopicMode mode = ProximityTopicMode.FLAT;
+
+	/**
+	 * If <code>false</code>, {@link MessageType#PROX_BEACONS} messages are not needed and no topic is subscribed
+	 */
+	private boolean active = true;
+
+	/**
+	 * If <code>true</code>, messages are published on the shard of the major of the nearest beacon
+	 */
+	private boolean shardByMajor = false;
+
+	/**
+	 * UUIDs of the {@link POI}s the device currently is in
+	 */
+	private final LinkedHashSet<String> activeShards = new LinkedHashSet<String>();
+
+	/**
+	 * Encoder of each stream of delta messages, identified by the topic (or topic filter) it is received from
+	 */
+	private final HashMap<String, BeaconDeltaEncoder> encoders = new HashMap<String, BeaconDeltaEncoder>();
+
+
+	/**
+	 * @param keyframeInterval - keyframe interval of the {@link BeaconDeltaEncoder}s
+	 */
+	ProximityTopics(MQTTPahoClient client, int keyframeInterval) {
+		this.client = client;
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	/**
+	 * Method returning the topics (and topic filters) the device has to be subscribed to, in the current
+	 * {@link ProximityTopicMode}
+	 */
+	synchronized List<String> getSubscriptionTopics(){
+		ArrayList<String> ret = new ArrayList<String>();
+		if(!active)
+			return ret;
+		if(mode == ProximityTopicMode.FLAT)
+			ret.add(MessageTopic.PROXIMITY.name());
+		else
+			for(String uuid : activeShards)
+				ret.add(MessageUtils.getProximityShardFilter(uuid));
+		return ret;
+	}
+
+	/**
+	 * Method that changes the {@link ProximityTopicMode}, updating the subscriptions
+	 */
+	synchronized void setMode(ProximityTopicMode mode){
+		List<String> old = getSubscriptionTopics();
+		this.mode = mode;
+		updateSubscriptions(old);
+	}
+
+	/**
+	 * Method that subscribes (or unsubscribes) the topics where {@link MessageType#PROX_BEACONS} messages are received
+	 * @param active - <code>true</code> if the messages are needed
+	 */
+	synchronized void setActive(boolean active){
+		List<String> old = getSubscriptionTopics();
+		this.active = active;
+		updateSubscriptions(old);
+	}
+
+	private void updateSubscriptions(List<String> old){
+		List<String> current = getSubscriptionTopics();
+
+		for(String topic : old)
+			if(!current.contains(topic))
+				client.unsusbcribe(topic);
+		for(String topic : current)
+			if(!old.contains(topic))
+				client.susbcribe(topic);
+	}
+
+	synchronized ProximityTopicMode getMode(){
+		return mode;
+	}
+
+	synchronized void setShardByMajor(boolean shardByMajor){
+		this.shardByMajor = shardByMajor;
+	}
+
+	/**
+	 * Method called when the device enters (or detects the beacons of) the {@link POI} whose beacons have UUID
+	 * <code>uuid</code>: the shard of the {@link POI} is subscribed, if it was not already
+	 */
+	synchronized void enterShard(String uuid){
+		uuid = uuid.toLowerCase();
+		if(activeShards.add(uuid) && active && mode != ProximityTopicMode.FLAT)
+			client.susbcribe(MessageUtils.getProximityShardFilter(uuid));
+	}
+
+	/**
+	 * Method called when the device exits the {@link POI} whose beacons have UUID <code>uuid</code>
+	 */
+	synchronized void exitShard(String uuid){
+		uuid = uuid.toLowerCase();
+		if(activeShards.remove(uuid) && active && mode != ProximityTopicMode.FLAT)
+			client.unsusbcribe(MessageUtils.getProximityShardFilter(uuid));
+	}
+
+	/**
+	 * Method that publishes a {@link MessageType#PROX_BEACONS} message on the topics of the current {@link ProximityTopicMode}
+	 * @param beacons - all the beacons seen in the last scan, having UUID <code>uuid</code>
+	 * @param nearestMajor - major of the nearest beacon, used when {@link #setShardByMajor(boolean)} is enabled
+	 * @param delta - <code>true</code> if delta encoding is enabled
+	 * @param logId - Parameter used only for logging
+	 */
+	synchronized void publishProxBeacons(ArrayList<Entity> beacons, Entity sender, String uuid, String nearestMajor,
+			boolean delta, String logId){
+
+		String fullMsg = delta ? null : MessageUtils.buildProxBeaconsMessage(beacons, sender, logId);
+
+		if(mode != ProximityTopicMode.SHARDED){
+			String topic = MessageTopic.PROXIMITY.name();
+			client.publishMessage(topic, MessageType.PROX_BEACONS,
+					delta ? getEncoder(topic).encode(beacons, sender, logId) : fullMsg);
+		}
+
+		if(mode != ProximityTopicMode.FLAT){
+			//the messages of all the majors of a UUID are received through the same filter, so they are a single stream
+			String topic = MessageUtils.getProximityShardTopic(uuid, shardByMajor ? nearestMajor : null);
+			client.publishMessage(topic, MessageType.PROX_BEACONS,
+					delta ? getEncoder(MessageUtils.getProximityShardFilter(uuid)).encode(beacons, sender, logId) : fullMsg);
+		}
+	}
+
+	private BeaconDeltaEncoder getEncoder(String stream){
+		BeaconDeltaEncoder ret = encoders.get(stream);
+		if(ret == null){
+			ret = new BeaconDeltaEncoder(keyframeInterval);
+			encoders.put(stream, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Method that forces the next message of every stream to be a keyframe
+	 */
+	synchronized void resetEncoders(){
+		for(BeaconDeltaEncoder e : encoders.values())
+			e.reset();
+	}
+}
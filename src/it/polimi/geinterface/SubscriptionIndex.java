@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import it.polimi.geinterface.DAO.Entity;
+import it.polimi.geinterface.DAO.Entity.Type;
+import it.polimi.geinterface.DAO.Group;
+import it.polimi.geinterface.DAO.Subscription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * 
+ * Immutable index over a list of {@link Subscription}, used by {@link GroupEntityManager} to select only the
+ * subscriptions whose {@link Group} can contain a given {@link Entity}, before evaluating group filters.
+ * {@link Group}s are indexed on their entity id (exact id or BLE UUID/major/minor prefix) and, when no id is
+ * set, on their {@link Type}. The returned candidates still have to be checked with {@link Group#evaluate(Entity)}.
+ * The index has to be rebuilt every time the list of subscriptions changes.
+ *
+ */
+final class SubscriptionIndex {
+
+	private static final int[] EMPTY = new int[0];
+
+	/**
+	 * Copy of the indexed subscriptions, in subscription order
+	 */
+	private final Subscription[] subscriptions;
+
+	/**
+	 * Positions of subscriptions whose {@link Group} has an entity id, keyed on the lowercase id
+	 */
+	private final Map<String, int[]> byEntityId;
+
+	/**
+	 * Positions of subscriptions whose {@link Group} has an entity id, stored under the UUID/major/minor
+	 * prefix used to match {@link Type#BLE_BEACON} entities
+	 */
+	private final BeaconGroupTrie<Integer> byBeaconPrefix;
+
+	/**
+	 * Positions of subscriptions whose {@link Group} has no entity id, keyed on the {@link Group} {@link Type}
+	 */
+	private final Map<Type, int[]> byType;
+
+	/**
+	 * Positions of geofence subscriptions, keyed on the lowercase id of {@link Subscription#getE1()}
+	 */
+	private final Map<String, int[]> bySubscribedEntity;
+
+	/**
+	 * Positions of subscriptions that cannot be indexed, always returned as candidates
+	 */
+	private final int[] unindexed;
+
+
+	private SubscriptionIndex(List<Subscription> list, boolean geofence) {
+
+		subscriptions = list.toArray(new Subscription[list.size()]);
+
+		Map<String, List<Integer>> ids = new HashMap<String, List<Integer>>();
+		BeaconGroupTrie<Integer> prefixes = new BeaconGroupTrie<Integer>();
+		Map<Type, List<Integer>> types = new HashMap<Type, List<Integer>>();
+		Map<String, List<Integer>> subscribed = new HashMap<String, List<Integer>>();
+		List<Integer> others = new ArrayList<Integer>();
+
+		for(int i = 0; i < subscriptions.length; i++){
+			Subscription s = subscriptions[i];
+			Group g = geofence ? s.getG2() : s.getG1();
+
+			if(geofence && s.getE1() != null)
+				add(subscribed, s.getE1().getEntityID().toLowerCase(), i);
+
+			if(g == null || g.getEntity_id() == null || g.getType() == null)
+				others.add(i);
+			else if(!g.getEntity_id().equals("")){
+				add(ids, g.getEntity_id().toLowerCase(), i);
+				prefixes.put(g.getBeaconIdTokens(), i);
+			}
+			else
+				add(types, g.getType(), i);
+		}
+
+		byEntityId = toArrays(ids);
+		byBeaconPrefix = prefixes;
+		byType = toArrays(types);
+		bySubscribedEntity = toArrays(subscribed);
+		unindexed = toArray(others);
+	}
+
+	/**
+	 * Method that builds the index for proximity and group subscriptions, indexed on {@link Subscription#getG1()}
+	 */
+	static SubscriptionIndex build(List<Subscription> list){
+		return new SubscriptionIndex(list, false);
+	}
+
+	/**
+	 * Method that builds the index for geofence subscriptions, indexed on {@link Subscription#getG2()} and
+	 * on {@link Subscription#getE1()}
+	 */
+	static SubscriptionIndex buildGeofence(List<Subscription> list){
+		return new SubscriptionIndex(list, true);
+	}
+
+
+	/**
+	 * Method returning, in subscription order, the subscriptions whose indexed {@link Group} can contain
+	 * at least one of the given entities
+	 */
+	List<Subscription> groupCandidates(Entity... entities){
+		int[][] positions = new int[entities.length * 3 + 1][];
+		int n = 0;
+		for(Entity e : entities)
+			n = collectGroup(e, positions, n);
+		positions[n++] = unindexed;
+		return merge(positions, n);
+	}
+
+	/**
+	 * Method returning, in subscription order, the geofence subscriptions whose {@link Subscription#getE1()}
+	 * is one of the given entities
+	 */
+	List<Subscription> subscribedEntityCandidates(Entity... entities){
+		int[][] positions = new int[entities.length][];
+		int n = 0;
+		for(Entity e : entities)
+			positions[n++] = get(bySubscribedEntity, e.getEntityID().toLowerCase());
+		return merge(positions, n);
+	}
+
+	/**
+	 * Method returning, in subscription order, the geofence subscriptions whose {@link Subscription#getE1()}
+	 * is <code>e</code> or whose {@link Subscription#getG2()} can contain <code>e</code>
+	 */
+	List<Subscription> geofenceCandidates(Entity e){
+		int[][] positions = new int[5][];
+		int n = collectGroup(e, positions, 0);
+		positions[n++] = unindexed;
+		positions[n++] = get(bySubscribedEntity, e.getEntityID().toLowerCase());
+		return merge(positions, n);
+	}
+
+
+	private int collectGroup(Entity e, int[][] positions, int n){
+
+		if(Type.BLE_BEACON.equals(e.getEntityType()))
+			positions[n++] = toArray(byBeaconPrefix.match(e.getBeaconIdTokens()));
+		else
+			positions[n++] = get(byEntityId, e.getEntityID().toLowerCase());
+
+		positions[n++] = get(byType, e.getEntityType());
+		if(!Type.ALL.equals(e.getEntityType()))
+			positions[n++] = get(byType, Type.ALL);
+		return n;
+	}
+
+	private List<Subscription> merge(int[][] positions, int n){
+
+		int size = 0;
+		for(int i = 0; i < n; i++)
+			size += positions[i].length;
+		if(size == 0)
+			return Collections.emptyList();
+
+		int[] all = new int[size];
+		size = 0;
+		for(int i = 0; i < n; i++){
+			System.arraycopy(positions[i], 0, all, size, positions[i].length);
+			size += positions[i].length;
+		}
+		Arrays.sort(all);
+
+		List<Subscription> ret = new ArrayList<Subscription>(size);
+		for(int i = 0; i < size; i++)
+			if(i == 0 || all[i] != all[i - 1])
+				ret.add(subscriptions[all[i]]);
+		return ret;
+	}
+
+	private static <K> void add(Map<K, List<Integer>> map, K key, int position){
+		List<Integer> l = map.get(key);
+		if(l == null){
+			l = new ArrayList<Integer>();
+			map.put(key, l);
+		}
+		l.add(position);
+	}
+
+	private static <K> Map<K, int[]> toArrays(Map<K, List<Integer>> map){
+		Map<K, int[]> ret = new HashMap<K, int[]>();
+		for(Map.Entry<K, List<Integer>> entry : map.entrySet())
+			ret.put(entry.getKey(), toArray(entry.getValue()));
+		return ret;
+	}
+
+	private static int[] toArray(List<Integer> list){
+		int[] ret = new int[list.size()];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = list.get(i);
+		return ret;
+	}
+
+	private static <K> int[] get(Map<K, int[]> map, K key){
+		int[] ret = map.get(key);
+		return (ret == null) ? EMPTY : ret;
+	}
+
+}
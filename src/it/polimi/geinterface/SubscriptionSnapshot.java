@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import it.polimi.geinterface.DAO.Subscription;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * 
+ * Immutable snapshot of the subscriptions registered with {@link GroupEntityManager}, together with the
+ * corresponding {@link SubscriptionIndex}es. Subscription changes create a new snapshot (copy-on-write),
+ * that replaces the current one atomically: evaluation tasks read a consistent snapshot without any locking,
+ * and never see a list while it is being modified.
+ *
+ */
+final class SubscriptionSnapshot {
+
+	private static final SubscriptionSnapshot EMPTY = new SubscriptionSnapshot(new ArrayList<Subscription>(),
+			new ArrayList<Subscription>(), new ArrayList<Subscription>());
+
+	private final List<Subscription> proximitySubscriptions;
+	private final List<Subscription> groupSubscriptions;
+	private final List<Subscription> geofenceSubscriptions;
+
+	private final SubscriptionIndex proximityIndex;
+	private final SubscriptionIndex groupIndex;
+	private final SubscriptionIndex geofenceIndex;
+
+
+	private SubscriptionSnapshot(ArrayList<Subscription> proximity, ArrayList<Subscription> group,
+			ArrayList<Subscription> geofence) {
+		this.proximitySubscriptions = Collections.unmodifiableList(proximity);
+		this.groupSubscriptions = Collections.unmodifiableList(group);
+		this.geofenceSubscriptions = Collections.unmodifiableList(geofence);
+		this.proximityIndex = SubscriptionIndex.build(proximity);
+		this.groupIndex = SubscriptionIndex.build(group);
+		this.geofenceIndex = SubscriptionIndex.buildGeofence(geofence);
+	}
+
+	static SubscriptionSnapshot empty(){
+		return EMPTY;
+	}
+
+
+	/**
+	 * Method returning a new snapshot, equal to this one plus a proximity {@link Subscription}
+	 */
+	SubscriptionSnapshot addProximity(Subscription s){
+		return new SubscriptionSnapshot(copyAdding(proximitySubscriptions, s),
+				new ArrayList<Subscription>(groupSubscriptions), new ArrayList<Subscription>(geofenceSubscriptions));
+	}
+
+	/**
+	 * Method returning a new snapshot, equal to this one plus a group {@link Subscription}
+	 */
+	SubscriptionSnapshot addGroup(Subscription s){
+		return new SubscriptionSnapshot(new ArrayList<Subscription>(proximitySubscriptions),
+				copyAdding(groupSubscriptions, s), new ArrayList<Subscription>(geofenceSubscriptions));
+	}
+
+	/**
+	 * Method returning a new snapshot, equal to this one plus a geofence {@link Subscription}
+	 */
+	SubscriptionSnapshot addGeofence(Subscription s){
+		return new SubscriptionSnapshot(new ArrayList<Subscription>(proximitySubscriptions),
+				new ArrayList<Subscription>(groupSubscriptions), copyAdding(geofenceSubscriptions, s));
+	}
+
+	/**
+	 * Method returning a new snapshot, equal to this one without the {@link Subscription} <code>s</code>.
+	 * Group subscriptions are searched first, then proximity and geofence ones.
+	 * @return the new snapshot, or <code>null</code> if <code>s</code> is not contained in this snapshot
+	 */
+	SubscriptionSnapshot remove(Subscription s){
+		ArrayList<Subscription> proximity = new ArrayList<Subscription>(proximitySubscriptions);
+		ArrayList<Subscription> group = new ArrayList<Subscription>(groupSubscriptions);
+		ArrayList<Subscription> geofence = new ArrayList<Subscription>(geofenceSubscriptions);
+
+		if(group.remove(s) || proximity.remove(s) || geofence.remove(s))
+			return new SubscriptionSnapshot(proximity, group, geofence);
+		return null;
+	}
+
+
+	List<Subscription> getProximitySubscriptions() {
+		return proximitySubscriptions;
+	}
+
+	List<Subscription> getGroupSubscriptions() {
+		return groupSubscriptions;
+	}
+
+	List<Subscription> getGeofenceSubscriptions() {
+		return geofenceSubscriptions;
+	}
+
+	SubscriptionIndex getProximityIndex() {
+		return proximityIndex;
+	}
+
+	SubscriptionIndex getGroupIndex() {
+		return groupIndex;
+	}
+
+	SubscriptionIndex getGeofenceIndex() {
+		return geofenceIndex;
+	}
+
+
+	private static ArrayList<Subscription> copyAdding(List<Subscription> list, Subscription s){
+		ArrayList<Subscription> ret = new ArrayList<Subscription>(list.size() + 1);
+		ret.addAll(list);
+		ret.add(s);
+		return ret;
+	}
+
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface;
+
+import it.polimi.geinterface.DAO.Entity;
+import it.polimi.geinterface.DAO.Group;
+import it.polimi.geinterface.network.InboundMessage;
+import it.polimi.geinterface.network.MQTTPahoClient;
+import it.polimi.geinterface.network.MessageType;
+import it.polimi.geinterface.network.MessageUtils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 
+ * Responses of selfEntity to the {@link MessageType#SYNC_REQ} messages of the other devices. A
+ * {@link MessageType#SYNC_REQ} is received by every device at the same time, so the responses are spread over
+ * time to avoid a burst towards the requester and the broker:
+ * <ul>
+ * <li>each response is delayed by a random backoff within the slot of its {@link DistanceRange}
+ * (see {@link #getBackoffSlot(DistanceRange)}), so that nearer entities respond first</li>
+ * <li>if the requester set a limit on the number of responses, the responses that are still pending after the
+ * first slot are cancelled when the requester announces that the limit was reached, with a retained message on
+ * the topic returned by {@link MessageUtils#getSyncClosedTopic(String)}. Observing the reply topic itself would
+ * deliver every response to every pending responder.</li>
+ * <li>if the requester accepts aggregated responses, the devices near the same beacon (as known by the
+ * {@link ProximityDirectory}) are reported by a single designated responder, chosen by all of them
+ * with the same hash of the reply topic and of their ids, on the topic returned by
+ * {@link MessageUtils#getSyncAggregateTopic(String, Entity)}. The others observe that topic for an additional
+ * slot and respond anyway if the aggregated response does not report them.</li>
+ * </ul>
+ * Both topics are observed through a single subscription per requester (see
+ * {@link MessageUtils#getSyncObservedFilter(String)}), kept across its requests: subscribing to them for each
+ * request would spread a burst of SUBSCRIBE/UNSUBSCRIBE packets over the broker instead of the responses.
+ *
+ */
+final class SyncResponder {
+
+	/**
+	 * Length in milliseconds of the backoff slot of each {@link DistanceRange}. It is the same on every device,
+	 * since requesters use it to know when all the responses are expected.
+	 */
+	static final long SLOT = 40;
+
+	/**
+	 * Maximum number of requesters whose closed and aggregate topics stay observed
+	 */
+	static final int MAX_OBSERVED_REQUESTERS = 32;
+
+	/**
+	 * Time in milliseconds after which the topics of a requester stop being observed, if none of its requests
+	 * needed them
+	 */
+	static final long OBSERVED_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	private final MQTTPahoClient networkClient;
+
+	private final Timer timer;
+
+	/**
+	 * {@link ProximityDirectory} providing the beacons seen by the other devices, used to aggregate responses
+	 */
+	private final ProximityDirectory directory;
+
+	private final Random random = new Random();
+
+	/**
+	 * Responses waiting for their backoff, by reply topic
+	 */
+	private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+
+	/**
+	 * Subscribed filters observing the closed and aggregate topics of the requesters, with the time they were last
+	 * needed, least recently needed first
+	 */
+	private final LinkedHashMap<String, Long> observed = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong cancelledCount = new AtomicLong();
+	private final AtomicLong coveredCount = new AtomicLong();
+	private final AtomicLong aggregatedCount = new AtomicLong();
+
+
+	SyncResponder(MQTTPahoClient networkClient, Timer timer, ProximityDirectory directory) {
+		this.networkClient = networkClient;
+		this.timer = timer;
+		this.directory = directory;
+	}
+
+	/**
+	 * @return the delay in milliseconds after which the responses of the entities at <code>distance</code> start,
+	 * i.e. the beginning of its backoff slot
+	 */
+	static long getBackoffSlot(DistanceRange distance){
+		return distance.ordinal() * SLOT;
+	}
+
+	/**
+	 * @return the time in milliseconds within which all the responses to a {@link MessageType#SYNC_REQ} for entities
+	 * up to <code>maxDistance</code> are sent, apart from network latency
+	 * @param aggregate - <code>true</code> if the requester accepts aggregated responses
+	 */
+	static long getResponseWindow(DistanceRange maxDistance, boolean aggregate){
+		return getBackoffSlot(maxDistance) + (aggregate ? 2 : 1) * SLOT;
+	}
+
+	/**
+	 * Method that computes the {@link DistanceRange} between the requester of a {@link MessageType#SYNC_REQ} and an
+	 * entity, comparing the beacons seen by both
+	 * @param requested - beacons seen by the requester
+	 * @param seen - beacons seen by the entity
+	 */
+	static Match match(List<Entity> requested, List<Entity> seen){
+
+		DistanceRange bestDistance = DistanceRange.SAME_WIFI;
+		Entity anchor = null;
+
+		for(Entity common : requested)
+			for(Entity mine : seen)
+				if(common.equals(mine)){
+					DistanceRange d;
+					switch(common.getDistanceRange()){
+					case IMMEDIATE:
+					case NEXT_TO:
+						d = (mine.getDistanceRange().ordinal() < bestDistance.ordinal())
+						? ((mine.getDistanceRange().ordinal() < common.getDistanceRange().ordinal()) 
+								? common.getDistanceRange() : mine.getDistanceRange()) : bestDistance;
+						break;
+
+					default:
+						d = (mine.getDistanceRange().ordinal() <= DistanceRange.NEXT_TO.ordinal()
+						&& common.getDistanceRange().ordinal() < bestDistance.ordinal())
+						? common.getDistanceRange() : bestDistance;
+						break;
+					}
+					if(d != bestDistance){
+						bestDistance = d;
+						anchor = common;
+					}
+				}
+
+		return new Match(bestDistance, anchor);
+	}
+
+	/**
+	 * Method that schedules the response of selfEntity to a {@link MessageType#SYNC_REQ}
+	 * @param self - selfEntity, with the {@link DistanceRange} from the requester
+	 * @param m - the {@link Match} of selfEntity
+	 * @param request - the {@link MessageType#SYNC_REQ}
+	 * @param g - the {@link Group} of the request
+	 */
+	void respond(Entity self, Match m, InboundMessage request, Group g){
+
+		String topic = request.getRequestTopic();
+		if(pending.containsKey(topic))
+			return;
+
+		List<Entity> others = null;
+		boolean deferred = false;
+		long delay = getBackoffSlot(m.distance) + random.nextInt((int) SLOT);
+
+		if(request.isAggregate() && m.anchor != null){
+			others = new ArrayList<Entity>();
+			String designated = self.getEntityID();
+			DistanceRange designatedDistance = m.distance;
+			for(ProximityDirectory.Record p : directory.getFreshRecords()){
+				if(p.entity.getEntityID().equals(self.getEntityID()))
+					continue;
+				Match pm = match(request.getBeacons(), p.beacons);
+				if(!m.anchor.equals(pm.anchor) || pm.distance.ordinal() > request.getDistanceRange().ordinal()
+						|| !g.evaluate(p.entity))
+					continue;
+
+				others.add(new Entity.Builder(p.entity.getEntityID(), p.entity.getEntityType())
+				.addProperties(p.entity.getProperties())
+				.setDistance(pm.distance)
+				.build());
+				if(rank(topic, p.entity.getEntityID()) < rank(topic, designated)){
+					designated = p.entity.getEntityID();
+					designatedDistance = pm.distance;
+				}
+			}
+			if(!designated.equals(self.getEntityID())){
+				//waiting until the aggregated response had the time to arrive, i.e. a slot after the one of its sender
+				deferred = true;
+				others = null;
+				delay = Math.max(delay, getBackoffSlot(designatedDistance) + 2 * SLOT);
+			}
+		}
+
+		//the responses of the first slot are sent before the requester could announce anything
+		String closedTopic = (request.getMaxResponses() > 0 && delay >= SLOT)
+				? MessageUtils.getSyncClosedTopic(topic) : null;
+		String aggregateTopic = (m.anchor != null && request.isAggregate())
+				? MessageUtils.getSyncAggregateTopic(topic, m.anchor) : null;
+
+		final Pending p = new Pending(topic, request.getSenderID(), self, others, closedTopic,
+				deferred ? aggregateTopic : null, (others != null && !others.isEmpty()) ? aggregateTopic : topic);
+		if(pending.putIfAbsent(topic, p) != null)
+			return;
+		if(p.closedTopic != null || p.coverTopic != null)
+			observe(MessageUtils.getSyncObservedFilter(topic));
+
+		timer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				p.finish(true);
+			}
+		}, delay);
+	}
+
+	/**
+	 * Method that keeps <code>filter</code> subscribed, subscribing to it only if it is not yet, and unsubscribes
+	 * the filters exceeding {@link #MAX_OBSERVED_REQUESTERS} or not needed for {@link #OBSERVED_IDLE_TIMEOUT}
+	 */
+	private void observe(String filter){
+		long now = System.currentTimeMillis();
+		boolean subscribe;
+		List<String> dropped = new ArrayList<String>();
+
+		synchronized (observed) {
+			subscribe = (observed.put(filter, now) == null);
+			Iterator<Map.Entry<String, Long>> it = observed.entrySet().iterator();
+			while(it.hasNext()){
+				Map.Entry<String, Long> e = it.next();
+				if(e.getKey().equals(filter)
+						|| (observed.size() <= MAX_OBSERVED_REQUESTERS && now - e.getValue() < OBSERVED_IDLE_TIMEOUT))
+					break;
+				it.remove();
+				dropped.add(e.getKey());
+			}
+		}
+
+		if(subscribe)
+			networkClient.susbcribe(filter);
+		for(String f : dropped)
+			networkClient.unsusbcribe(f);
+	}
+
+	/**
+	 * Method that handles a {@link MessageType#SYNC_RESP} of another device, concerning a pending response
+	 * @return <code>false</code> if no response is pending on its reply topic
+	 */
+	boolean onObservedResponse(InboundMessage response){
+		Pending p = pending.get(response.getRequestTopic());
+		if(p == null)
+			return false;
+		p.observe(response);
+		return true;
+	}
+
+	/**
+	 * Method that cancels all the pending responses and stops observing the topics of the requesters
+	 */
+	void cancelAll(){
+		for(Pending p : pending.values())
+			p.finish(false);
+
+		List<String> filters;
+		synchronized (observed) {
+			filters = new ArrayList<String>(observed.keySet());
+			observed.clear();
+		}
+		for(String f : filters)
+			networkClient.unsusbcribe(f);
+	}
+
+	/**
+	 * @return the number of {@link MessageType#SYNC_RESP} sent
+	 */
+	long getSentCount(){
+		return sentCount.get();
+	}
+
+	/**
+	 * @return the number of responses cancelled because the requester received enough of them
+	 */
+	long getCancelledCount(){
+		return cancelledCount.get();
+	}
+
+	/**
+	 * @return the number of responses cancelled because selfEntity was reported by an aggregated response
+	 */
+	long getCoveredCount(){
+		return coveredCount.get();
+	}
+
+	/**
+	 * @return the number of other devices reported by the aggregated responses sent
+	 */
+	long getAggregatedCount(){
+		return aggregatedCount.get();
+	}
+
+	/**
+	 * Rendezvous hash used to choose the designated responder: the device with the lowest rank among the ones
+	 * near the same beacon
+	 */
+	private static long rank(String topic, String id){
+		long h = topic.hashCode() * 0x9E3779B97F4A7C15L + id.hashCode();
+		h ^= (h >>> 33);
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= (h >>> 33);
+		return h;
+	}
+
+
+	/**
+	 * {@link DistanceRange} between the requester of a {@link MessageType#SYNC_REQ} and an entity, with the beacon
+	 * it was computed from (<code>null</code> if there are no common beacons)
+	 */
+	static final class Match {
+
+		final DistanceRange distance;
+		final Entity anchor;
+
+		Match(DistanceRange distance, Entity anchor) {
+			this.distance = distance;
+			this.anchor = anchor;
+		}
+	}
+
+	/**
+	 * A response waiting for its backoff
+	 */
+	private final class Pending {
+
+		private final String topic;
+		private final String requesterId;
+		private final Entity self;
+		private final List<Entity> others;
+
+		/**
+		 * Topic observed to know when the requester received enough responses, or <code>null</code>
+		 */
+		private final String closedTopic;
+
+		/**
+		 * Topic observed to know if selfEntity is reported by an aggregated response, or <code>null</code>
+		 */
+		private final String coverTopic;
+
+		/**
+		 * Topic where the response is published
+		 */
+		private final String publishTopic;
+
+		private boolean finished;
+
+
+		Pending(String topic, String requesterId, Entity self, List<Entity> others, String closedTopic,
+				String coverTopic, String publishTopic) {
+			this.topic = topic;
+			this.requesterId = requesterId;
+			this.self = self;
+			this.others = others;
+			this.closedTopic = closedTopic;
+			this.coverTopic = coverTopic;
+			this.publishTopic = publishTopic;
+		}
+
+		synchronized void observe(InboundMessage response){
+			if(finished)
+				return;
+
+			List<Entity> reported = response.getEntities();
+
+			if(closedTopic != null && requesterId != null && requesterId.equalsIgnoreCase(response.getSenderID())){
+				cancelledCount.incrementAndGet();
+				finish(false);
+			}
+			else if(coverTopic != null && reported != null && reported.contains(self)){
+				coveredCount.incrementAndGet();
+				finish(false);
+			}
+		}
+
+		/**
+		 * Method that completes the response, sending it if <code>send</code> is <code>true</code>
+		 */
+		synchronized void finish(boolean send){
+			if(finished)
+				return;
+			finished = true;
+
+			pending.remove(topic, this);
+
+			if(!send)
+				return;
+
+			networkClient.publishMessage(publishTopic, MessageType.SYNC_RESP,
+					MessageUtils.buildSyncRespMessage(self, topic, others));
+			sentCount.incrementAndGet();
+			if(others != null)
+				aggregatedCount.addAndGet(others.size());
+		}
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.concurrency;
+
+/**
+ * A task that has to be notified when the {@link Scheduler} discards it without executing it (because of
+ * its {@link OverflowPolicy}, or because it is replaced by a newer task with the same coalescing key).
+ */
+public interface DiscardableTask extends Runnable {
+
+    /**
+     * Called, instead of {@link #run()}, when the task is discarded
+     */
+    public void onDiscarded();
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.concurrency;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor that runs tasks on a {@link Scheduler} serializing them per key (e.g. per entity id): tasks
+ * submitted with the same key are executed one at a time, in submission order, while tasks with different
+ * keys run in parallel on the {@link Scheduler} threads.
+ * <p>
+ * Each key has a lane holding its pending tasks, queued on the {@link Scheduler} with the highest
+ * {@link TaskPriority} among its pending tasks: when a task of a higher priority is added to a queued lane, the
+ * lane is queued again with that priority, and its previous entry does nothing. If the {@link Scheduler}
+ * discards the entry of a lane, the first pending task of the discarded class is discarded and the lane goes on.
+ * A task with a coalescing key replaces a pending task of the same lane having the same coalescing key.
+ * Lanes are bounded: when a lane is full, its oldest pending {@link TaskPriority#PROXIMITY} task is discarded
+ * (or the new one, if it is a proximity task and no proximity task is pending); tasks of other classes are
+ * always accepted.
+ */
+public class KeyedSerialExecutor {
+
+    /**
+     * Default maximum number of pending tasks per lane
+     */
+    public static final int DEFAULT_LANE_CAPACITY = 64;
+
+    private final Scheduler scheduler;
+    private final int laneCapacity;
+
+    /**
+     * Active lanes, i.e. lanes with pending or running tasks. Lanes are modified holding the lock on this map.
+     */
+    private final HashMap<Object, Lane> lanes = new HashMap<Object, Lane>();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public KeyedSerialExecutor(Scheduler scheduler) {
+        this(scheduler, DEFAULT_LANE_CAPACITY);
+    }
+
+    /**
+     * @param scheduler - the {@link Scheduler} executing the tasks
+     * @param laneCapacity - maximum number of pending tasks per lane
+     */
+    public KeyedSerialExecutor(Scheduler scheduler, int laneCapacity) {
+        this.scheduler = scheduler;
+        this.laneCapacity = laneCapacity;
+    }
+
+    public void execute(Object key, Runnable task, TaskPriority priority) {
+        execute(key, task, priority, null);
+    }
+
+    /**
+     * Method that submits a task to the lane identified by <code>key</code>
+     * @param key - key of the lane
+     * @param task - the task. If it is a {@link DiscardableTask}, it is notified when it is discarded
+     * @param priority - the {@link TaskPriority} of the task
+     * @param coalescingKey - key identifying tasks of the same lane superseded by newer tasks with the same key,
+     * or <code>null</code> if the task cannot be coalesced
+     */
+    public void execute(Object key, Runnable task, TaskPriority priority, Object coalescingKey) {
+
+        Item item = new Item(task, priority, coalescingKey);
+        Item replaced = null;
+        boolean dropped = false;
+        Ticket toSchedule = null;
+
+        synchronized (lanes) {
+            Lane lane = lanes.get(key);
+            if(lane == null){
+                lane = new Lane(key);
+                lanes.put(key, lane);
+                toSchedule = lane.queue(priority);
+            }
+            else if(lane.queued != null && priority.ordinal() < lane.queued.priority.ordinal())
+                //otherwise the task would wait behind all the queued tasks of the lower priority
+                toSchedule = lane.queue(priority);
+
+            if(coalescingKey != null)
+                for(Iterator<Item> it = lane.pending.iterator(); it.hasNext();){
+                    Item pending = it.next();
+                    if(coalescingKey.equals(pending.coalescingKey)){
+                        it.remove();
+                        replaced = pending;
+                        break;
+                    }
+                }
+
+            if(replaced == null && lane.pending.size() >= laneCapacity){
+                for(Iterator<Item> it = lane.pending.iterator(); it.hasNext();){
+                    Item pending = it.next();
+                    if(pending.priority == TaskPriority.PROXIMITY){
+                        it.remove();
+                        replaced = pending;
+                        break;
+                    }
+                }
+                dropped = (replaced != null) || (priority == TaskPriority.PROXIMITY);
+            }
+
+            if(replaced != null || !dropped)
+                lane.pending.add(item);
+        }
+
+        if(dropped){
+            droppedCount.incrementAndGet();
+            (replaced != null ? replaced : item).discard();
+        }
+        else if(replaced != null){
+            coalescedCount.incrementAndGet();
+            replaced.discard();
+        }
+
+        if(toSchedule != null)
+            scheduler.schedule(toSchedule, toSchedule.priority);
+    }
+
+    /**
+     * @return the number of lanes having pending or running tasks
+     */
+    public int getActiveLaneCount() {
+        synchronized (lanes) {
+            return lanes.size();
+        }
+    }
+
+    /**
+     * @return the number of tasks discarded because their lane was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of pending tasks replaced by a newer task of the same lane with the same coalescing key
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+
+    private static final class Item {
+
+        private final Runnable task;
+        private final TaskPriority priority;
+        private final Object coalescingKey;
+
+        Item(Runnable task, TaskPriority priority, Object coalescingKey) {
+            this.task = task;
+            this.priority = priority;
+            this.coalescingKey = coalescingKey;
+        }
+
+        void discard() {
+            if(task instanceof DiscardableTask)
+                ((DiscardableTask) task).onDiscarded();
+        }
+    }
+
+
+    /**
+     * Lane of a key, queued on the {@link Scheduler} through a {@link Ticket} executing the first pending task of
+     * the lane
+     */
+    private final class Lane {
+
+        private final Object key;
+        private final ArrayDeque<Item> pending = new ArrayDeque<Item>();
+
+        /**
+         * Ticket of the lane queued on the {@link Scheduler}, or <code>null</code> while a task of the lane is
+         * running. Accessed holding the lock on {@link KeyedSerialExecutor#lanes}.
+         */
+        private Ticket queued;
+
+        Lane(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * Method that creates the ticket queuing the lane with the given priority. A ticket queued before does
+         * nothing when the {@link Scheduler} executes or discards it. Called holding the lock on
+         * {@link KeyedSerialExecutor#lanes}.
+         */
+        private Ticket queue(TaskPriority priority) {
+            queued = new Ticket(this, priority);
+            return queued;
+        }
+
+        private void run(Ticket ticket) {
+            Item item;
+            synchronized (lanes) {
+                if(queued != ticket)
+                    return;
+                queued = null;
+                item = pending.poll();
+            }
+            try {
+                if(item != null)
+                    item.task.run();
+            } finally {
+                next();
+            }
+        }
+
+        /**
+         * The {@link Scheduler} discards only tasks of the class the ticket has been queued with: the first
+         * pending task of that class (or of a lower one) is discarded, so that higher priority tasks are kept
+         */
+        private void discard(Ticket ticket) {
+            Item item = null;
+            synchronized (lanes) {
+                if(queued != ticket)
+                    return;
+                queued = null;
+                for(Iterator<Item> it = pending.iterator(); it.hasNext();){
+                    Item i = it.next();
+                    if(i.priority.ordinal() >= ticket.priority.ordinal()){
+                        it.remove();
+                        item = i;
+                        break;
+                    }
+                }
+            }
+            try {
+                if(item != null)
+                    item.discard();
+            } finally {
+                next();
+            }
+        }
+
+        /**
+         * Method that schedules the lane again if it has pending tasks, otherwise it removes it
+         */
+        private void next() {
+            Ticket ticket;
+            synchronized (lanes) {
+                if(pending.isEmpty()){
+                    lanes.remove(key);
+                    return;
+                }
+                TaskPriority priority = TaskPriority.PROXIMITY;
+                for(Item i : pending)
+                    if(i.priority.ordinal() < priority.ordinal())
+                        priority = i.priority;
+                ticket = queue(priority);
+            }
+            scheduler.schedule(ticket, ticket.priority);
+        }
+    }
+
+
+    /**
+     * Entry of a {@link Lane} in the {@link Scheduler}, with the priority it has been queued with
+     */
+    private static final class Ticket implements DiscardableTask {
+
+        private final Lane lane;
+        private final TaskPriority priority;
+
+        Ticket(Lane lane, TaskPriority priority) {
+            this.lane = lane;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            lane.run(this);
+        }
+
+        @Override
+        public void onDiscarded() {
+            lane.discard(this);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.concurrency;
+
+/**
+ * Policies applied by the {@link Scheduler} when a task is submitted and the queue is full.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The oldest queued {@link TaskPriority#PROXIMITY} task is discarded to make room. If no proximity task
+     * is queued, a new proximity task is discarded, while a task of any other class is executed by the
+     * submitting thread.
+     */
+    DROP_OLDEST_PROXIMITY,
+
+    /**
+     * A queued task having the same coalescing key of the new one is replaced by it. If there is no such task,
+     * {@link #DROP_OLDEST_PROXIMITY} is applied.
+     */
+    COALESCE,
+
+    /**
+     * The new task is executed by the submitting thread, slowing down the producer.
+     */
+    CALLER_RUNS
+}
@@ -20,44 +20,168 @@
 
 package it.polimi.geinterface.concurrency;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.util.Log;
 
 /**
  * A thin wrapper around a thread pool executor that only exposes partially what the executor is
  * doing. This is so that we don't make a mistake somewhere along the way and jack something up.
+ * <p>
+ * Tasks are queued by {@link TaskPriority} (FIFO within the same priority) in a bounded queue: when the queue
+ * is full, the configured {@link OverflowPolicy} is applied. Queue depth and the number of discarded tasks
+ * are exposed for monitoring.
  *
  * @author Matthew A. Johnston (warmwaffles)
  */
 public class Scheduler {
-    private PausableThreadPoolExecutor executor;
-    private LinkedBlockingQueue<Runnable> queue;
+
+    private static final String TAG = "Scheduler";
+
+    /**
+     * Default maximum number of queued tasks
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private ThreadPoolExecutor executor;
+    private PriorityBlockingQueue<Runnable> queue;
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    /**
+     * Queued tasks having a coalescing key, used by {@link OverflowPolicy#COALESCE}
+     */
+    private final ConcurrentHashMap<Object, QueuedTask> queuedByKey = new ConcurrentHashMap<Object, QueuedTask>();
+
+    /**
+     * Lock held while checking the queue size and applying the {@link OverflowPolicy}
+     */
+    private final Object overflowLock = new Object();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong callerRunsCount = new AtomicLong();
 
     public Scheduler() {
+        this(DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST_PROXIMITY);
+    }
+
+    /**
+     * @param capacity - maximum number of queued tasks
+     * @param policy - the {@link OverflowPolicy} applied when the queue is full
+     */
+    public Scheduler(int capacity, OverflowPolicy policy) {
         int processors = Runtime.getRuntime().availableProcessors();
-        queue = new LinkedBlockingQueue<Runnable>();
-        executor = new PausableThreadPoolExecutor(processors, 10, 10, TimeUnit.SECONDS, queue);
+        this.capacity = capacity;
+        this.policy = policy;
+        queue = new PriorityBlockingQueue<Runnable>();
+        //the queue is never full for the executor (bounds are enforced by schedule), so all threads are core threads
+        executor = new ThreadPoolExecutor(processors, processors, 10, TimeUnit.SECONDS, queue);
+        executor.allowCoreThreadTimeOut(true);
     }
 
+    /**
+     * Method that schedules a task with the lowest priority ({@link TaskPriority#PROXIMITY})
+     */
     public void schedule(Runnable runnable) {
-        executor.execute(runnable);
-        
+        schedule(runnable, TaskPriority.PROXIMITY, null);
     }
 
-    public void pause() {
-    	Log.d("Scheduler", "PAUSED!");
-        executor.pause();
+    public void schedule(Runnable runnable, TaskPriority priority) {
+        schedule(runnable, priority, null);
+    }
+
+    /**
+     * Method that schedules a task
+     * @param runnable - the task. If it is a {@link DiscardableTask}, it is notified when it is discarded
+     * @param priority - the {@link TaskPriority} of the task
+     * @param coalescingKey - key identifying tasks that are superseded by newer tasks with the same key,
+     * used by {@link OverflowPolicy#COALESCE}; <code>null</code> if the task cannot be coalesced
+     */
+    public void schedule(Runnable runnable, TaskPriority priority, Object coalescingKey) {
+
+        QueuedTask task = new QueuedTask(runnable, priority, coalescingKey, sequence.getAndIncrement());
+        QueuedTask discarded = null;
+        boolean runInCaller = false;
+
+        synchronized (overflowLock) {
+
+            if(queue.size() >= capacity){
+
+                if(policy == OverflowPolicy.CALLER_RUNS)
+                    runInCaller = true;
+                else{
+                    if(policy == OverflowPolicy.COALESCE && coalescingKey != null){
+                        QueuedTask old = queuedByKey.get(coalescingKey);
+                        if(old != null && queue.remove(old)){
+                            queuedByKey.remove(coalescingKey, old);
+                            discarded = old;
+                            coalescedCount.incrementAndGet();
+                        }
+                    }
+
+                    if(discarded == null){
+                        QueuedTask oldest = oldestProximityTask();
+                        if(oldest != null && queue.remove(oldest)){
+                            if(oldest.key != null)
+                                queuedByKey.remove(oldest.key, oldest);
+                            discarded = oldest;
+                            droppedCount.incrementAndGet();
+                        }
+                        else if(priority == TaskPriority.PROXIMITY){
+                            rejectedCount.incrementAndGet();
+                            discard(task);
+                            return;
+                        }
+                        else
+                            runInCaller = true;
+                    }
+                }
+            }
+
+            if(!runInCaller){
+                if(coalescingKey != null)
+                    queuedByKey.put(coalescingKey, task);
+                executor.execute(task);
+            }
+        }
+
+        if(discarded != null)
+            discard(discarded);
+
+        if(runInCaller){
+            callerRunsCount.incrementAndGet();
+            Log.w(TAG, "Queue full: task executed by the caller");
+            task.run();
+        }
     }
 
-    public void resume() {
-    	Log.d("Scheduler", "RESUMED!");
-        executor.resume();
+    private QueuedTask oldestProximityTask(){
+        QueuedTask ret = null;
+        for(Runnable r : queue){
+            QueuedTask t = (QueuedTask) r;
+            if(t.priority == TaskPriority.PROXIMITY && (ret == null || t.sequence < ret.sequence))
+                ret = t;
+        }
+        return ret;
+    }
+
+    private void discard(QueuedTask task){
+        if(task.runnable instanceof DiscardableTask)
+            ((DiscardableTask) task.runnable).onDiscarded();
     }
 
     public void clear() {
         queue.clear();
+        queuedByKey.clear();
     }
     
     public void stop(){
@@ -67,4 +191,72 @@ public class Scheduler {
     public boolean isEmpty() {
         return queue.isEmpty();
     }
+
+    /**
+     * @return the number of tasks waiting to be executed
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of queued tasks discarded to make room for new tasks
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of new tasks discarded because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return the number of queued tasks replaced by a newer task with the same coalescing key
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return the number of tasks executed by the submitting thread because the queue was full
+     */
+    public long getCallerRunsCount() {
+        return callerRunsCount.get();
+    }
+
+
+    /**
+     * Task as stored in the queue, ordered by {@link TaskPriority} and then by submission order
+     */
+    private final class QueuedTask implements Runnable, Comparable<QueuedTask> {
+
+        private final Runnable runnable;
+        private final TaskPriority priority;
+        private final Object key;
+        private final long sequence;
+
+        QueuedTask(Runnable runnable, TaskPriority priority, Object key, long sequence) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.key = key;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if(key != null)
+                queuedByKey.remove(key, this);
+            runnable.run();
+        }
+
+        @Override
+        public int compareTo(QueuedTask another) {
+            if(priority != another.priority)
+                return priority.ordinal() - another.priority.ordinal();
+            return (sequence < another.sequence) ? -1 : ((sequence == another.sequence) ? 0 : 1);
+        }
+    }
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.concurrency;
+
+/**
+ * Classes of tasks executed by the {@link Scheduler}, in decreasing order of priority: a queued task is
+ * always executed before the queued tasks of the following classes.
+ */
+public enum TaskPriority {
+
+    /**
+     * Group membership evaluation (CHECK_IN, CHECK_OUT and PROPERTIES_UPDATE messages)
+     */
+    GROUP,
+
+    /**
+     * Geofence evaluation, firing geofence entry and exit events
+     */
+    GEOFENCE,
+
+    /**
+     * Handling of SYNC_REQ messages
+     */
+    SYNC,
+
+    /**
+     * Processing of the beacons detected by the local BLE scan
+     */
+    LOCAL_SCAN,
+
+    /**
+     * Proximity evaluation (PROX_BEACONS fan-out and PROXIMITY_UPDATE messages)
+     */
+    PROXIMITY
+}
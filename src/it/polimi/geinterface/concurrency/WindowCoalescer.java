@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.concurrency;
+
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Stage that coalesces values submitted with the same key within a time window. The first value of a key is
+ * handled immediately and opens a window; values of the same key submitted while the window is open are not
+ * handled, except the latest one, that is handled when the window closes (opening a new window). So each key
+ * is handled at most once per window and always with its latest value.
+ * With a window of 0 milliseconds, every value is handled immediately.
+ *
+ * @param <K> - type of the keys
+ * @param <V> - type of the values
+ */
+public class WindowCoalescer<K, V> {
+
+    private static final String TAG = "WindowCoalescer";
+
+    /**
+     * Callback receiving the values from a {@link WindowCoalescer}
+     */
+    public interface Handler<V> {
+
+        /**
+         * Called with each value that has to be handled
+         */
+        public void handle(V value);
+
+        /**
+         * Called with each value that is skipped, because superseded by a newer value with the same key
+         */
+        public void onSkipped(V value);
+    }
+
+    private final Handler<V> handler;
+    private volatile long windowMillis;
+
+    private final Timer timer = new Timer("WindowCoalescer", true);
+
+    /**
+     * Keys having an open window, with the task closing it. Accessed holding the lock on the map.
+     */
+    private final HashMap<K, CloseWindowTask> openWindows = new HashMap<K, CloseWindowTask>();
+
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    /**
+     * @param windowMillis - length of the window, in milliseconds
+     * @param handler - the {@link Handler} receiving the values
+     */
+    public WindowCoalescer(long windowMillis, Handler<V> handler) {
+        this.windowMillis = windowMillis;
+        this.handler = handler;
+    }
+
+    /**
+     * Method that submits a value for the given key
+     */
+    public void submit(K key, V value) {
+
+        long window = windowMillis;
+        if(window <= 0){
+            handler.handle(value);
+            return;
+        }
+
+        V skipped = null;
+        boolean handleNow = false;
+
+        synchronized (openWindows) {
+            CloseWindowTask open = openWindows.get(key);
+            if(open == null){
+                open(key, window);
+                handleNow = true;
+            }
+            else{
+                skipped = open.pending;
+                open.pending = value;
+            }
+        }
+
+        if(skipped != null){
+            skippedCount.incrementAndGet();
+            handler.onSkipped(skipped);
+        }
+        if(handleNow)
+            handler.handle(value);
+    }
+
+    /**
+     * Method that closes the window of the given key, if open, without handling its pending value: a value
+     * submitted afterwards is handled immediately
+     */
+    public void cancel(K key) {
+        synchronized (openWindows) {
+            CloseWindowTask open = openWindows.remove(key);
+            if(open != null)
+                open.cancel();
+        }
+    }
+
+    /**
+     * Method that opens a window for the given key. Called holding the lock on {@link #openWindows}.
+     */
+    private void open(K key, long window) {
+        CloseWindowTask task = new CloseWindowTask(key);
+        openWindows.put(key, task);
+        timer.schedule(task, window);
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Method that changes the length of the window. Windows already open are not affected.
+     */
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * @return the number of values skipped because superseded by a newer value with the same key
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * Method that stops the coalescer: values still pending in open windows are not handled
+     */
+    public void stop() {
+        timer.cancel();
+    }
+
+
+    private final class CloseWindowTask extends TimerTask {
+
+        private final K key;
+
+        /**
+         * Latest value submitted while the window is open, or <code>null</code> if none
+         */
+        private V pending;
+
+        CloseWindowTask(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            V value;
+            synchronized (openWindows) {
+                //the window may have been cancelled, and a new one opened, after the task started
+                if(openWindows.get(key) != this)
+                    return;
+                value = pending;
+                openWindows.remove(key);
+                if(value != null && windowMillis > 0)
+                    //the latest value is handled now, and a new window is opened
+                    open(key, windowMillis);
+            }
+            if(value == null)
+                return;
+            //an exception would cancel the timer, and every following submit would fail
+            try {
+                handler.handle(value);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Handler failed: " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.filter;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+
+import com.jayway.jsonpath.Filter;
+import com.jayway.jsonpath.JsonPath;
+
+
+/**
+ * 
+ * Predicate obtained compiling a {@link PropertiesFilter} with {@link PropertiesFilter#compile(JSONObject)}.
+ * It is immutable, so it can be built once and evaluated concurrently by many threads. Evaluation walks the
+ * properties {@link JSONObject} directly, giving the same results as the corresponding {@link JsonPath} filter.
+ *
+ */
+public abstract class CompiledFilter {
+
+	CompiledFilter(){}
+
+	/**
+	 * Method that checks if a {@link JSONObject} matches the filter
+	 * @param toFilter - the {@link JSONObject} (usually {@link it.polimi.geinterface.DAO.Entity#getProperties()})
+	 * that has to match the filter
+	 * @return <code>true</code> if the {@link JSONObject} matches the filter, otherwise <code>false</code>
+	 */
+	public abstract boolean matches(JSONObject toFilter);
+
+
+	static final class And extends CompiledFilter{
+
+		private final CompiledFilter filter1;
+		private final CompiledFilter filter2;
+
+		And(CompiledFilter filter1, CompiledFilter filter2) {
+			this.filter1 = filter1;
+			this.filter2 = filter2;
+		}
+
+		@Override
+		public boolean matches(JSONObject toFilter) {
+			return filter1.matches(toFilter) && filter2.matches(toFilter);
+		}
+	}
+
+
+	static final class Or extends CompiledFilter{
+
+		private final CompiledFilter filter1;
+		private final CompiledFilter filter2;
+
+		Or(CompiledFilter filter1, CompiledFilter filter2) {
+			this.filter1 = filter1;
+			this.filter2 = filter2;
+		}
+
+		@Override
+		public boolean matches(JSONObject toFilter) {
+			return filter1.matches(toFilter) || filter2.matches(toFilter);
+		}
+	}
+
+
+	/**
+	 * Filter evaluated through {@link JsonPath}, used for paths that cannot be walked directly
+	 * (e.g. paths containing array indexes or wildcards)
+	 */
+	static final class JsonPathFilter extends CompiledFilter{
+
+		private final Filter filter;
+
+		JsonPathFilter(Filter filter) {
+			this.filter = filter;
+		}
+
+		@Override
+		public boolean matches(JSONObject toFilter) {
+			return !((List<?>)JsonPath.parse(toFilter).read("$.[?]", filter)).isEmpty();
+		}
+	}
+
+
+	/**
+	 * Primitive predicate on a simple dotted path (e.g. <code>properties.address.city</code>)
+	 */
+	static final class Leaf extends CompiledFilter{
+
+		private static final int NOT_COMPARABLE = Integer.MIN_VALUE;
+
+		private final FilterType type;
+		private final String[] path;
+		private final Object value;
+
+		/**
+		 * Operand pre-processed for comparisons, computed at compile time
+		 */
+		private final String stringValue;
+		private final BigDecimal decimalValue;
+		private final Boolean booleanValue;
+
+		/**
+		 * Filter to be used when the path traverses an array
+		 */
+		private final JsonPathFilter fallback;
+
+		Leaf(FilterType type, String[] path, Object value, Filter fallback) {
+			this.type = type;
+			this.path = path;
+			this.value = value;
+			this.fallback = new JsonPathFilter(fallback);
+
+			String s = null;
+			BigDecimal d = null;
+			Boolean b = null;
+			if(value instanceof String){
+				s = ((String) value).replace("\\'", "'");
+				b = Boolean.valueOf((String) value);
+				try {
+					d = new BigDecimal((String) value);
+				} catch (NumberFormatException e) {
+					d = null;
+				}
+			}
+			else if(value instanceof Number && !isIntegral(value))
+				d = new BigDecimal(value.toString());
+			this.stringValue = s;
+			this.decimalValue = d;
+			this.booleanValue = b;
+		}
+
+		@Override
+		public boolean matches(JSONObject toFilter) {
+
+			Object current = toFilter;
+			for(int i = 0; i < path.length; i++){
+				if(current instanceof List)
+					return fallback.matches(toFilter);
+				if(!(current instanceof Map) || !((Map<?, ?>) current).containsKey(path[i]))
+					return (type == FilterType.EXISTS || type == FilterType.NOT_EXISTS) ? !(Boolean) value : false;
+				current = ((Map<?, ?>) current).get(path[i]);
+			}
+
+			switch (type) {
+			case EXISTS:
+			case NOT_EXISTS:
+				return (current != null) == (Boolean) value;
+
+			case CONTAINS:
+				if(current instanceof List)
+					return ((List<?>) current).contains(value);
+				if(current instanceof String && value instanceof String && !isNullish(value))
+					return ((String) current).contains((String) value);
+				return false;
+
+			case EQUALS:
+				return compare(current) == 0;
+
+			case GT:
+				if((value == null) != (current == null))
+					return false;
+				int gt = compare(current);
+				return gt != NOT_COMPARABLE && gt < 0;
+
+			case LT:
+				if((value == null) != (current == null))
+					return false;
+				int lt = compare(current);
+				return lt != NOT_COMPARABLE && lt > 0;
+
+			default:
+				return false;
+			}
+		}
+
+		/**
+		 * Method comparing the operand of the filter with the value read from the properties,
+		 * following the same rules of {@link JsonPath} criteria.
+		 * @return a negative number, zero, or a positive number as the operand is less than, equal to,
+		 * or greater than <code>actual</code>, or {@link #NOT_COMPARABLE} if the two values cannot be compared
+		 */
+		private int compare(Object actual){
+
+			if(value == actual)
+				return 0;
+
+			boolean valueNullish = isNullish(value);
+			boolean actualNullish = isNullish(actual);
+			if(valueNullish && !actualNullish)
+				return -1;
+			if(!valueNullish && actualNullish)
+				return 1;
+			if(valueNullish && actualNullish)
+				return 0;
+
+			if(value instanceof String && actual instanceof String)
+				return stringValue.compareTo((String) actual);
+
+			if(value instanceof Number && actual instanceof Number){
+				if(decimalValue == null && isIntegral(actual)){
+					long v = ((Number) value).longValue();
+					long a = ((Number) actual).longValue();
+					return (v < a) ? -1 : ((v == a) ? 0 : 1);
+				}
+				return toDecimal(value).compareTo(new BigDecimal(actual.toString()));
+			}
+
+			if(value instanceof String && actual instanceof Number)
+				return toDecimal(value).compareTo(new BigDecimal(actual.toString()));
+
+			if(value instanceof String && actual instanceof Boolean)
+				return booleanValue.compareTo((Boolean) actual);
+
+			if(value instanceof Boolean && actual instanceof Boolean)
+				return ((Boolean) value).compareTo((Boolean) actual);
+
+			return NOT_COMPARABLE;
+		}
+
+		private BigDecimal toDecimal(Object o){
+			if(decimalValue != null)
+				return decimalValue;
+			//not a valid number: fails as the JsonPath evaluation would do
+			return new BigDecimal(o.toString());
+		}
+	}
+
+
+	private static boolean isNullish(Object o){
+		return o == null || ((o instanceof String) && "null".equals(o));
+	}
+
+	private static boolean isIntegral(Object o){
+		return o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte;
+	}
+
+}
@@ -20,9 +20,6 @@
 
 package it.polimi.geinterface.filter;
 
-import java.util.List;
-import java.util.Map;
-
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -189,13 +186,68 @@ public class PropertiesFilter extends JSONObject{
 
 
 	/**
-	 * Method used to evaluate a {@link PropertiesFilter} on a {@link JSONObject}
+	 * Method that compiles a {@link PropertiesFilter} into a {@link CompiledFilter}, that can be evaluated
+	 * many times (also concurrently) without rebuilding the filter.
+	 * Primitive predicates on simple dotted paths are evaluated walking directly the properties, while
+	 * predicates on other {@link JsonPath} paths are delegated to {@link JsonPath}.
+	 * @param json - the {@link PropertiesFilter} to be compiled
+	 * @return the corresponding {@link CompiledFilter}
+	 */
+	public static CompiledFilter compile(JSONObject json){
+
+		if(json == null || json.size() != 3)
+			return new CompiledFilter.JsonPathFilter(buildJSONPathFilter(json));
+
+		FilterType op_type = FilterType.valueOf((String)json.get(ReservedKeys.$op.name()));
+
+		if(op_type.equals(FilterType.AND))
+			return new CompiledFilter.And(compile((JSONObject) json.get(ReservedKeys.$filter_1.name())),
+					compile((JSONObject) json.get(ReservedKeys.$filter_2.name())));
+
+		if(op_type.equals(FilterType.OR))
+			return new CompiledFilter.Or(compile((JSONObject) json.get(ReservedKeys.$filter_1.name())),
+					compile((JSONObject) json.get(ReservedKeys.$filter_2.name())));
+
+		Filter filter = buildJSONPathFilter(json);
+		String[] path = splitPath((String)json.get(ReservedKeys.$key.name()));
+		if(path == null)
+			return new CompiledFilter.JsonPathFilter(filter);
+
+		return new CompiledFilter.Leaf(op_type, path, json.get(ReservedKeys.$val.name()), filter);
+	}
+
+	/**
+	 * Method that splits a {@link JsonPath} path made only of property names separated by dots
+	 * @return the property names, or <code>null</code> if the path uses other {@link JsonPath} operators
+	 */
+	private static String[] splitPath(String key){
+
+		if(key == null)
+			return null;
+		if(key.startsWith("$.") || key.startsWith("@."))
+			key = key.substring(2);
+
+		for(int i = 0; i < key.length(); i++)
+			if("$@[]*?(),'\"".indexOf(key.charAt(i)) >= 0)
+				return null;
+
+		String[] path = key.split("\\.", -1);
+		for(String property : path)
+			if(property.length() == 0)
+				return null;
+		return path;
+	}
+
+
+	/**
+	 * Method used to evaluate a {@link PropertiesFilter} on a {@link JSONObject}.
+	 * The filter is compiled at every call: when the same filter has to be evaluated many times,
+	 * use {@link #compile(JSONObject)} instead.
 	 * @param f - the {@link PropertiesFilter} to be evaluated
 	 * @param toFilter - the {@link JSONObject} that has to match the filter 
 	 * @return
 	 */
 	public static boolean evalFilter(PropertiesFilter f, JSONObject toFilter){
-		Filter filter = buildJSONPathFilter(f);
-		return !((List<Map<String, Object>>)JsonPath.parse(toFilter).read("$.[?]",filter)).isEmpty();
+		return compile(f).matches(toFilter);
 	}
 }
\ No newline at end of file
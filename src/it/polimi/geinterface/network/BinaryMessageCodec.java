@@ -0,0 +1,718 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.network;
+
+import it.polimi.geinterface.DistanceRange;
+import it.polimi.geinterface.DAO.Entity.Type;
+import it.polimi.geinterface.DAO.JsonStrings;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import android.util.Log;
+
+
+/**
+ * {@link MessageCodec} publishing messages in a compact binary format. The payload is made of:
+ * <ul>
+ * <li>the format marker {@link #FORMAT_MARKER} (a JSON payload never starts with it) and the format version: the
+ * lowest one knowing all the fields of the message, so that older clients still decode the messages they
+ * understand</li>
+ * <li>the {@link MessageType} ordinal</li>
+ * <li>a bitmask of the fields present, followed by the fields, in the order of {@link #MESSAGE_FIELDS}</li>
+ * </ul>
+ * Strings are written as a varint length followed by UTF-8 bytes, enumerations ({@link MessageType},
+ * {@link Type}, {@link DistanceRange}) as their ordinal, and beacon ids as the index of their UUID in a table of
+ * the UUIDs of the message, followed by major and minor as varints. Properties and groups are kept in JSON format:
+ * messages are encoded reading their fields directly from the JSON built by {@link MessageUtils}, so the
+ * pre-serialized properties of entities are copied without being parsed.
+ * <p>
+ * Messages containing fields this format does not know are published in JSON format, and payloads in JSON format
+ * are decoded too, so clients using {@link JsonMessageCodec} and {@link BinaryMessageCodec} can coexist.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+	private static final String TAG = "BinaryMessageCodec";
+
+	/**
+	 * First byte of a payload in binary format
+	 */
+	public static final byte FORMAT_MARKER = (byte) 0xAD;
+
+	/**
+	 * Latest version of the binary format, written by this codec for the messages having fields added by it
+	 */
+	public static final byte FORMAT_VERSION = 2;
+
+	/**
+	 * Number of the {@link #MESSAGE_FIELDS} known by version 1 of the binary format
+	 */
+	private static final int VERSION_1_FIELDS = 14;
+
+	/**
+	 * Fields of a message, in the order they are written. The position is the bit in the fields bitmask.
+	 */
+	private static final String[] MESSAGE_FIELDS = {
+		JsonStrings.SENDER, JsonStrings.LOG_ID, JsonStrings.ENTITY, JsonStrings.ENTITY_1, JsonStrings.ENTITY_2,
+		JsonStrings.DISTANCE_RANGE, JsonStrings.BEACONS, JsonStrings.TOPIC_REPLY, JsonStrings.VALID,
+		JsonStrings.GROUP, JsonStrings.DELTA, JsonStrings.SEQUENCE, JsonStrings.REMOVED_BEACONS, JsonStrings.TIMESTAMP,
+		//version 2
+		JsonStrings.MAX_RESPONSES, JsonStrings.AGGREGATE, JsonStrings.ENTITIES
+	};
+
+	/**
+	 * Fields of an entity, in the order they are written. The position is the bit in the fields bitmask.
+	 */
+	private static final String[] ENTITY_FIELDS = {
+		JsonStrings.ENTITY_ID, JsonStrings.ENTITY_TYPE, JsonStrings.DISTANCE_RANGE,
+		JsonStrings.PROPERTIES, JsonStrings.CURRENT_PROPERTIES, JsonStrings.OLD_PROPERTIES
+	};
+
+	/**
+	 * Fields of a beacon, as written in JSON format
+	 */
+	private static final String[] BEACON_FIELDS = { JsonStrings.BEACON_ID, JsonStrings.DISTANCE_RANGE };
+
+	private static final MessageType[] MESSAGE_TYPES = MessageType.values();
+	private static final Type[] ENTITY_TYPES = Type.values();
+	private static final DistanceRange[] DISTANCE_RANGES = DistanceRange.values();
+
+
+	@Override
+	public byte[] encode(String message) {
+		byte[] json = message.getBytes(JsonMessageCodec.UTF_8);
+		try {
+			return encodeBinary(new Scanner(json));
+		} catch (RuntimeException e) {
+			//fields or values not supported by the binary format
+			Log.w(TAG, "Message published in JSON format: " + e);
+		}
+		return json;
+	}
+
+	private final JsonMessageReader reader = new JsonMessageReader();
+
+	@Override
+	public InboundMessage decode(byte[] payload) {
+		if(isBinary(payload))
+			return decodeBinary(payload);
+		return JsonMessageCodec.decodeJson(reader, payload);
+	}
+
+	/**
+	 * Method returning <code>true</code> if <code>payload</code> is in binary format
+	 */
+	static boolean isBinary(byte[] payload){
+		return payload.length > 0 && payload[0] == FORMAT_MARKER;
+	}
+
+	/**
+	 * Method that decodes a payload in binary format
+	 * @return the corresponding {@link InboundMessage}, or <code>null</code> if the payload is not valid
+	 */
+	static InboundMessage decodeBinary(byte[] payload){
+		try {
+			Reader in = new Reader(payload);
+			in.readByte();
+			int version = in.readByte();
+			if(version < 1 || version > FORMAT_VERSION){
+				Log.e(TAG, "Unsupported binary format version: " + version);
+				return null;
+			}
+
+			JSONObject msg = new JSONObject();
+			msg.put(JsonStrings.MSG_TYPE, MESSAGE_TYPES[in.readByte()].name());
+
+			long fields = in.readVarint();
+			String[] uuids = null;
+			if(hasField(fields, JsonStrings.BEACONS) || hasField(fields, JsonStrings.REMOVED_BEACONS)){
+				uuids = new String[in.readCount()];
+				for(int i = 0; i < uuids.length; i++)
+					uuids[i] = in.readString();
+			}
+
+			for(int i = 0; i < MESSAGE_FIELDS.length; i++){
+				if((fields & (1L << i)) == 0)
+					continue;
+
+				String field = MESSAGE_FIELDS[i];
+				Object value;
+				if(field.equals(JsonStrings.ENTITY) || field.equals(JsonStrings.ENTITY_1) || field.equals(JsonStrings.ENTITY_2))
+					value = readEntity(in);
+				else if(field.equals(JsonStrings.DISTANCE_RANGE))
+					value = DISTANCE_RANGES[in.readByte()].name();
+				else if(field.equals(JsonStrings.BEACONS)){
+					JSONArray beacons = new JSONArray();
+					int count = in.readCount();
+					for(int b = 0; b < count; b++){
+						JSONObject beacon = new JSONObject();
+						beacon.put(JsonStrings.BEACON_ID, readBeaconId(in, uuids));
+						beacon.put(JsonStrings.DISTANCE_RANGE, DISTANCE_RANGES[in.readByte()].name());
+						beacons.add(beacon);
+					}
+					value = beacons;
+				}
+				else if(field.equals(JsonStrings.REMOVED_BEACONS)){
+					JSONArray removed = new JSONArray();
+					int count = in.readCount();
+					for(int b = 0; b < count; b++)
+						removed.add(readBeaconId(in, uuids));
+					value = removed;
+				}
+				else if(field.equals(JsonStrings.ENTITIES)){
+					JSONArray entities = new JSONArray();
+					int count = in.readCount();
+					for(int e = 0; e < count; e++)
+						entities.add(readEntity(in));
+					value = entities;
+				}
+				else if(field.equals(JsonStrings.VALID) || field.equals(JsonStrings.DELTA)
+						|| field.equals(JsonStrings.AGGREGATE))
+					value = in.readByte() != 0;
+				else if(field.equals(JsonStrings.SEQUENCE) || field.equals(JsonStrings.TIMESTAMP)
+						|| field.equals(JsonStrings.MAX_RESPONSES))
+					value = in.readVarint();
+				else if(field.equals(JsonStrings.GROUP))
+					value = new JSONParser().parse(in.readString());
+				else
+					value = in.readString();
+
+				msg.put(field, value);
+			}
+
+			return InboundMessage.fromJson(msg);
+
+		} catch (ParseException e) {
+			e.printStackTrace();
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Binary message not valid: " + e);
+		}
+		return null;
+	}
+
+
+	/*
+	 * 
+	 * ENCODING
+	 * 
+	 */
+
+	/**
+	 * Method that encodes a message in JSON format, reading its fields directly from the bytes of the message:
+	 * properties and groups, that the binary format keeps in JSON format, are copied without being parsed
+	 */
+	private static byte[] encodeBinary(Scanner in){
+
+		in.expect('{');
+		if(!JsonStrings.MESSAGE.equals(in.readString()))
+			throw new IllegalArgumentException("Message not valid");
+		in.expect(':');
+		int[] values = in.readObject(MESSAGE_FIELDS, JsonStrings.MSG_TYPE);
+		in.expect('}');
+		if(values[MESSAGE_FIELDS.length] < 0)
+			throw new IllegalArgumentException("Message type missing");
+
+		long fields = 0;
+		for(int i = 0; i < MESSAGE_FIELDS.length; i++)
+			if(values[i] >= 0)
+				fields |= 1L << i;
+
+		Writer out = new Writer();
+		out.writeByte(FORMAT_MARKER);
+		out.writeByte((fields >>> VERSION_1_FIELDS == 0) ? 1 : FORMAT_VERSION);
+		in.pos = values[MESSAGE_FIELDS.length];
+		out.writeByte(MessageType.valueOf(in.readString()).ordinal());
+		out.writeVarint(fields);
+
+		//table of the beacon UUIDs of the message
+		HashMap<String, Integer> uuids = null;
+		List<String> beaconIds = new ArrayList<String>();
+		List<String> beaconRanges = new ArrayList<String>();
+		List<String> removedIds = new ArrayList<String>();
+		if(hasField(fields, JsonStrings.BEACONS) || hasField(fields, JsonStrings.REMOVED_BEACONS)){
+			if(hasField(fields, JsonStrings.BEACONS)){
+				in.pos = values[indexOf(MESSAGE_FIELDS, JsonStrings.BEACONS)];
+				in.expect('[');
+				if(!in.tryConsume(']')) do{
+					int[] beacon = in.readObject(BEACON_FIELDS, null);
+					if(beacon[0] < 0 || beacon[1] < 0)
+						throw new IllegalArgumentException("Beacon fields not supported");
+					int next = in.pos;
+					in.pos = beacon[0];
+					beaconIds.add(in.readString());
+					in.pos = beacon[1];
+					beaconRanges.add(in.readString());
+					in.pos = next;
+				} while(in.tryConsume(','));
+				in.expect(']');
+			}
+			if(hasField(fields, JsonStrings.REMOVED_BEACONS)){
+				in.pos = values[indexOf(MESSAGE_FIELDS, JsonStrings.REMOVED_BEACONS)];
+				in.expect('[');
+				if(!in.tryConsume(']')) do{
+					removedIds.add(in.readString());
+				} while(in.tryConsume(','));
+				in.expect(']');
+			}
+
+			uuids = new HashMap<String, Integer>();
+			List<String> table = new ArrayList<String>();
+			List<String> ids = new ArrayList<String>(beaconIds);
+			ids.addAll(removedIds);
+			for(String id : ids){
+				String uuid = uuidOf(id);
+				if(!uuids.containsKey(uuid)){
+					uuids.put(uuid, table.size());
+					table.add(uuid);
+				}
+			}
+			out.writeVarint(table.size());
+			for(String uuid : table)
+				out.writeString(uuid);
+		}
+
+		for(int i = 0; i < MESSAGE_FIELDS.length; i++){
+			if((fields & (1L << i)) == 0)
+				continue;
+
+			String field = MESSAGE_FIELDS[i];
+			in.pos = values[i];
+			if(field.equals(JsonStrings.ENTITY) || field.equals(JsonStrings.ENTITY_1) || field.equals(JsonStrings.ENTITY_2))
+				writeEntity(out, in);
+			else if(field.equals(JsonStrings.DISTANCE_RANGE))
+				out.writeByte(DistanceRange.valueOf(in.readString()).ordinal());
+			else if(field.equals(JsonStrings.BEACONS)){
+				out.writeVarint(beaconIds.size());
+				for(int b = 0; b < beaconIds.size(); b++){
+					writeBeaconId(out, beaconIds.get(b), uuids);
+					out.writeByte(DistanceRange.valueOf(beaconRanges.get(b)).ordinal());
+				}
+			}
+			else if(field.equals(JsonStrings.REMOVED_BEACONS)){
+				out.writeVarint(removedIds.size());
+				for(String id : removedIds)
+					writeBeaconId(out, id, uuids);
+			}
+			else if(field.equals(JsonStrings.ENTITIES)){
+				//the entities are written after their number
+				Writer entities = new Writer();
+				int count = 0;
+				in.expect('[');
+				if(!in.tryConsume(']')) do{
+					writeEntity(entities, in);
+					count++;
+				} while(in.tryConsume(','));
+				in.expect(']');
+				out.writeVarint(count);
+				out.write(entities);
+			}
+			else if(field.equals(JsonStrings.VALID) || field.equals(JsonStrings.DELTA)
+					|| field.equals(JsonStrings.AGGREGATE))
+				out.writeByte(in.readBoolean() ? 1 : 0);
+			else if(field.equals(JsonStrings.SEQUENCE) || field.equals(JsonStrings.TIMESTAMP)
+					|| field.equals(JsonStrings.MAX_RESPONSES))
+				out.writeVarint(in.readLong());
+			else if(field.equals(JsonStrings.GROUP))
+				in.copyValue(out);
+			else
+				out.writeString(in.readString());
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Method that writes the entity at the position of <code>in</code>, leaving <code>in</code> after it
+	 */
+	private static void writeEntity(Writer out, Scanner in){
+		int[] values = in.readObject(ENTITY_FIELDS, null);
+		int end = in.pos;
+
+		long fields = 0;
+		for(int i = 0; i < ENTITY_FIELDS.length; i++)
+			if(values[i] >= 0)
+				fields |= 1L << i;
+		out.writeVarint(fields);
+
+		for(int i = 0; i < ENTITY_FIELDS.length; i++){
+			if((fields & (1L << i)) == 0)
+				continue;
+
+			String field = ENTITY_FIELDS[i];
+			in.pos = values[i];
+			if(field.equals(JsonStrings.ENTITY_ID))
+				out.writeString(in.readString());
+			else if(field.equals(JsonStrings.ENTITY_TYPE))
+				out.writeByte(Type.valueOf(in.readString()).ordinal());
+			else if(field.equals(JsonStrings.DISTANCE_RANGE))
+				out.writeByte(DistanceRange.valueOf(in.readString()).ordinal());
+			else
+				in.copyValue(out);
+		}
+		in.pos = end;
+	}
+
+	private static JSONObject readEntity(Reader in) throws ParseException{
+		JSONObject entity = new JSONObject();
+		long fields = in.readVarint();
+
+		for(int i = 0; i < ENTITY_FIELDS.length; i++){
+			if((fields & (1L << i)) == 0)
+				continue;
+
+			String field = ENTITY_FIELDS[i];
+			if(field.equals(JsonStrings.ENTITY_ID))
+				entity.put(field, in.readString());
+			else if(field.equals(JsonStrings.ENTITY_TYPE))
+				entity.put(field, ENTITY_TYPES[in.readByte()].name());
+			else if(field.equals(JsonStrings.DISTANCE_RANGE))
+				entity.put(field, DISTANCE_RANGES[in.readByte()].name());
+			else
+				entity.put(field, new JSONParser().parse(in.readString()));
+		}
+		return entity;
+	}
+
+	/**
+	 * Method that writes a beacon id ("uuid:major:minor") as the index of its UUID in the table, followed by the
+	 * other parts of the id: as varints (plus one) if they are numbers, otherwise as 0 followed by the string
+	 */
+	private static void writeBeaconId(Writer out, String id, Map<String, Integer> uuids){
+		String[] parts = id.split(":", -1);
+		out.writeVarint(uuids.get(parts[0]));
+		out.writeVarint(parts.length - 1);
+		for(int i = 1; i < parts.length; i++){
+			if(isNumber(parts[i]))
+				out.writeVarint(Long.parseLong(parts[i]) + 1);
+			else{
+				out.writeVarint(0);
+				out.writeString(parts[i]);
+			}
+		}
+	}
+
+	private static String readBeaconId(Reader in, String[] uuids){
+		StringBuilder id = new StringBuilder(uuids[(int) in.readVarint()]);
+		int parts = (int) in.readVarint();
+		for(int i = 0; i < parts; i++){
+			id.append(':');
+			long number = in.readVarint();
+			if(number == 0)
+				id.append(in.readString());
+			else
+				id.append(number - 1);
+		}
+		return id.toString();
+	}
+
+	private static String uuidOf(String beaconId){
+		int sep = beaconId.indexOf(':');
+		return (sep < 0) ? beaconId : beaconId.substring(0, sep);
+	}
+
+	/**
+	 * Method returning <code>true</code> if <code>s</code> is a number written without leading zeros, that is
+	 * rebuilt exactly by {@link #readBeaconId(Reader, String[])}
+	 */
+	private static boolean isNumber(String s){
+		if(s.length() == 0 || s.length() > 18 || (s.length() > 1 && s.charAt(0) == '0'))
+			return false;
+		for(int i = 0; i < s.length(); i++)
+			if(s.charAt(i) < '0' || s.charAt(i) > '9')
+				return false;
+		return true;
+	}
+
+	private static boolean hasField(long fields, String field){
+		return (fields & (1L << indexOf(MESSAGE_FIELDS, field))) != 0;
+	}
+
+	private static int indexOf(String[] fields, String field){
+		for(int i = 0; i < fields.length; i++)
+			if(fields[i].equals(field))
+				return i;
+		return -1;
+	}
+
+
+	private static final class Writer extends ByteArrayOutputStream {
+
+		Writer() {
+			super(128);
+		}
+
+		void writeByte(int b){
+			write(b);
+		}
+
+		void writeVarint(long value){
+			while((value & ~0x7FL) != 0){
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		void writeString(String s){
+			byte[] bytes = s.getBytes(JsonMessageCodec.UTF_8);
+			writeBytes(bytes, 0, bytes.length);
+		}
+
+		/**
+		 * Method that writes the bytes written into <code>other</code>
+		 */
+		void write(Writer other){
+			write(other.buf, 0, other.count);
+		}
+
+		/**
+		 * Method that writes <code>length</code> bytes of <code>bytes</code> as a string: they have to be UTF-8
+		 */
+		void writeBytes(byte[] bytes, int offset, int length){
+			writeVarint(length);
+			write(bytes, offset, length);
+		}
+	}
+
+	/**
+	 * Tokenizer of the messages in JSON format built by {@link MessageUtils}. The values of an object are located
+	 * by their position, and read by moving the tokenizer on them.
+	 */
+	private static final class Scanner {
+
+		private final byte[] buf;
+		private int pos = 0;
+
+		Scanner(byte[] buf) {
+			this.buf = buf;
+		}
+
+		/**
+		 * Method that reads the object at the current position
+		 * @param fields - the keys the object may contain
+		 * @param extraField - a further key the object may contain, or <code>null</code>
+		 * @return the position of the value of each of the <code>fields</code>, followed by the one of
+		 * <code>extraField</code>, or -1 for the ones missing or set to <code>null</code>
+		 */
+		int[] readObject(String[] fields, String extraField){
+			int[] values = new int[fields.length + 1];
+			Arrays.fill(values, -1);
+			expect('{');
+			if(tryConsume('}'))
+				return values;
+			do{
+				String key = readString();
+				int i = key.equals(extraField) ? fields.length : indexOf(fields, key);
+				if(i < 0)
+					throw new IllegalArgumentException("Field not supported: " + key);
+				expect(':');
+				skipWhitespace();
+				if(!tryConsumeLiteral("null")){
+					values[i] = pos;
+					skipValue();
+				}
+			} while(tryConsume(','));
+			expect('}');
+			return values;
+		}
+
+		/**
+		 * Method that copies the value at the current position, in JSON format, without parsing it
+		 */
+		void copyValue(Writer out){
+			skipWhitespace();
+			int start = pos;
+			skipValue();
+			out.writeBytes(buf, start, pos - start);
+		}
+
+		String readString(){
+			skipWhitespace();
+			int start = pos;
+			expect('"');
+			if(!skipString())
+				return new String(buf, start + 1, pos - 2 - start, JsonMessageCodec.UTF_8);
+			Object s = JSONValue.parse(new String(buf, start, pos - start, JsonMessageCodec.UTF_8));
+			if(!(s instanceof String))
+				throw new IllegalArgumentException("String not valid");
+			return (String) s;
+		}
+
+		long readLong(){
+			skipWhitespace();
+			boolean negative = tryConsume('-');
+			int start = pos;
+			long value = 0;
+			while(pos < buf.length && buf[pos] >= '0' && buf[pos] <= '9' && pos - start < 18)
+				value = value * 10 + (buf[pos++] - '0');
+			if(pos == start || (pos < buf.length && (buf[pos] == '.' || buf[pos] == 'e' || buf[pos] == 'E'
+					|| (buf[pos] >= '0' && buf[pos] <= '9'))))
+				throw new IllegalArgumentException("Number not supported");
+			return negative ? -value : value;
+		}
+
+		boolean readBoolean(){
+			skipWhitespace();
+			if(tryConsumeLiteral("true"))
+				return true;
+			if(tryConsumeLiteral("false"))
+				return false;
+			throw new IllegalArgumentException("Boolean not valid");
+		}
+
+		private void skipValue(){
+			skipWhitespace();
+			int b = next();
+			if(b == '"'){
+				skipString();
+				return;
+			}
+			if(b == '{' || b == '['){
+				int depth = 1;
+				while(depth > 0){
+					int c = next();
+					if(c == '{' || c == '[')
+						depth++;
+					else if(c == '}' || c == ']')
+						depth--;
+					else if(c == '"')
+						skipString();
+				}
+				return;
+			}
+			//number or literal
+			while(pos < buf.length && buf[pos] != ',' && buf[pos] != '}' && buf[pos] != ']'
+					&& !isWhitespace(buf[pos]))
+				pos++;
+		}
+
+		/**
+		 * Method that skips the rest of a string, whose opening quote has been read
+		 * @return <code>true</code> if the string contains escape sequences
+		 */
+		private boolean skipString(){
+			boolean escaped = false;
+			while(true){
+				int b = next();
+				if(b == '"')
+					return escaped;
+				if(b == '\\'){
+					escaped = true;
+					next();
+				}
+			}
+		}
+
+		private int next(){
+			if(pos >= buf.length)
+				throw new IndexOutOfBoundsException("Truncated message");
+			return buf[pos++] & 0xFF;
+		}
+
+		private void expect(char c){
+			if(!tryConsume(c))
+				throw new IllegalArgumentException("Expected '" + c + "' at " + pos);
+		}
+
+		private boolean tryConsume(char c){
+			skipWhitespace();
+			if(pos < buf.length && buf[pos] == c){
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private boolean tryConsumeLiteral(String literal){
+			if(pos + literal.length() > buf.length)
+				return false;
+			for(int i = 0; i < literal.length(); i++)
+				if(buf[pos + i] != literal.charAt(i))
+					return false;
+			pos += literal.length();
+			return true;
+		}
+
+		private void skipWhitespace(){
+			while(pos < buf.length && isWhitespace(buf[pos]))
+				pos++;
+		}
+
+		private static boolean isWhitespace(byte b){
+			return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+		}
+	}
+
+	private static final class Reader {
+
+		private final byte[] buf;
+		private int pos = 0;
+
+		Reader(byte[] buf) {
+			this.buf = buf;
+		}
+
+		int readByte(){
+			if(pos >= buf.length)
+				throw new IndexOutOfBoundsException("Truncated message");
+			return buf[pos++] & 0xFF;
+		}
+
+		long readVarint(){
+			long value = 0;
+			for(int shift = 0; shift < 64; shift += 7){
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if((b & 0x80) == 0)
+					return value;
+			}
+			throw new IllegalArgumentException("Varint too long");
+		}
+
+		/**
+		 * Method that reads the number of the items that follow, each taking at least one byte: a number larger
+		 * than the bytes left is rejected before anything is allocated for the items
+		 */
+		int readCount(){
+			long count = readVarint();
+			if(count < 0 || count > buf.length - pos)
+				throw new IndexOutOfBoundsException("Truncated message");
+			return (int) count;
+		}
+
+		String readString(){
+			int length = readCount();
+			String s = new String(buf, pos, length, JsonMessageCodec.UTF_8);
+			pos += length;
+			return s;
+		}
+	}
+}
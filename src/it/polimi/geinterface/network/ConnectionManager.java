@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Policy used by {@link MQTTPahoClient} to (re)connect to a list of brokers. Each attempt is made to the
+ * healthiest broker: the one with the fewest consecutive failed attempts, then the one that accepted the
+ * connections fastest so far (brokers never connected come last), then the first in the list. After a connection
+ * is lost, every broker is tried once immediately; the following attempts are delayed with a jittered exponential
+ * backoff, between {@link #DEFAULT_MIN_BACKOFF} and {@link #DEFAULT_MAX_BACKOFF}.
+ * <p>
+ * The time to recovery (from the loss of the connection to the restoration of the subscriptions), the number of
+ * reconnections and of failovers to a different broker are exposed for monitoring.
+ */
+public class ConnectionManager {
+
+	/**
+	 * Default delay (in milliseconds) after the first failed attempt
+	 */
+	public static final long DEFAULT_MIN_BACKOFF = 500;
+
+	/**
+	 * Default maximum delay (in milliseconds) between two attempts
+	 */
+	public static final long DEFAULT_MAX_BACKOFF = 30000;
+
+	/**
+	 * Weight of the last connection time in the average connection time of a broker
+	 */
+	private static final double CONNECT_TIME_WEIGHT = 0.3;
+
+	private final List<Broker> brokers;
+	private final long minBackoff;
+	private final long maxBackoff;
+	private final Random random = new Random();
+
+	/**
+	 * Number of failed attempts since the last connection
+	 */
+	private int failedAttempts = 0;
+
+	/**
+	 * Broker of the current (or last) connection
+	 */
+	private Broker current;
+
+	/**
+	 * Time (in nanoseconds) the connection was lost, 0 if it is not being recovered
+	 */
+	private long lostAt = 0;
+
+	private long reconnectCount = 0;
+	private long failoverCount = 0;
+	private long lastRecoveryNanos = 0;
+	private long maxRecoveryNanos = 0;
+
+
+	public ConnectionManager(List<String> brokerUris) {
+		this(brokerUris, DEFAULT_MIN_BACKOFF, DEFAULT_MAX_BACKOFF);
+	}
+
+	/**
+	 * @param brokerUris - URIs of the brokers, in order of preference
+	 * @param minBackoff - delay (in milliseconds) after the first failed attempt
+	 * @param maxBackoff - maximum delay (in milliseconds) between two attempts
+	 */
+	public ConnectionManager(List<String> brokerUris, long minBackoff, long maxBackoff) {
+		if(brokerUris.isEmpty())
+			throw new IllegalArgumentException("No broker URI");
+
+		ArrayList<Broker> list = new ArrayList<Broker>(brokerUris.size());
+		for(int i = 0; i < brokerUris.size(); i++)
+			list.add(new Broker(brokerUris.get(i), i));
+		this.brokers = Collections.unmodifiableList(list);
+		this.minBackoff = minBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Method returning the URI of the broker to use for the next attempt
+	 */
+	synchronized String nextBroker(){
+		Broker best = null;
+		for(Broker b : brokers)
+			if(best == null || b.compareTo(best) < 0)
+				best = b;
+		return best.uri;
+	}
+
+	/**
+	 * Method returning the delay (in milliseconds) before the next attempt: 0 until every broker has been tried
+	 * once since the connection was lost, then a random delay between half and the whole of
+	 * <code>minBackoff * 2^n</code> (at most <code>maxBackoff</code>), <code>n</code> being the number of rounds
+	 * of failed attempts
+	 */
+	synchronized long nextDelay(){
+		int n = failedAttempts - brokers.size();
+		if(n < 0)
+			return 0;
+		long backoff = minBackoff << Math.min(n, 30);
+		if(backoff <= 0 || backoff > maxBackoff)
+			backoff = maxBackoff;
+		return backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+	}
+
+	/**
+	 * Method called when a connection attempt to <code>uri</code> succeeds
+	 * @param connectNanos - time (in nanoseconds) taken by the attempt
+	 */
+	synchronized void onConnected(String uri, long connectNanos){
+		Broker b = find(uri);
+		b.consecutiveFailures = 0;
+		double millis = connectNanos / 1e6;
+		b.averageConnectMillis = (b.averageConnectMillis < 0) ? millis
+				: CONNECT_TIME_WEIGHT * millis + (1 - CONNECT_TIME_WEIGHT) * b.averageConnectMillis;
+
+		if(current != null){
+			reconnectCount++;
+			if(current != b)
+				failoverCount++;
+		}
+		current = b;
+		failedAttempts = 0;
+	}
+
+	/**
+	 * Method called when a connection attempt to <code>uri</code> fails
+	 */
+	synchronized void onAttemptFailed(String uri){
+		find(uri).consecutiveFailures++;
+		failedAttempts++;
+	}
+
+	/**
+	 * Method called when the connection is lost unexpectedly
+	 */
+	synchronized void onConnectionLost(){
+		if(lostAt == 0)
+			lostAt = System.nanoTime();
+		failedAttempts = 0;
+	}
+
+	/**
+	 * Method called once the subscriptions have been restored after a connection: the recovery is complete
+	 */
+	synchronized void onRecovered(){
+		if(lostAt == 0)
+			return;
+		lastRecoveryNanos = System.nanoTime() - lostAt;
+		maxRecoveryNanos = Math.max(maxRecoveryNanos, lastRecoveryNanos);
+		lostAt = 0;
+	}
+
+	private Broker find(String uri){
+		for(Broker b : brokers)
+			if(b.uri.equals(uri))
+				return b;
+		throw new IllegalArgumentException("Unknown broker: " + uri);
+	}
+
+	/**
+	 * @return the URI of the broker of the current (or last) connection, or <code>null</code>
+	 */
+	public synchronized String getCurrentBroker(){
+		return (current == null) ? null : current.uri;
+	}
+
+	/**
+	 * @return the number of connections established after the first one
+	 */
+	public synchronized long getReconnectCount(){
+		return reconnectCount;
+	}
+
+	/**
+	 * @return the number of connections established to a broker different from the previous one
+	 */
+	public synchronized long getFailoverCount(){
+		return failoverCount;
+	}
+
+	/**
+	 * @return the time (in milliseconds) taken by the last recovery, from the loss of the connection to the
+	 * restoration of the subscriptions
+	 */
+	public synchronized double getLastRecoveryMillis(){
+		return lastRecoveryNanos / 1e6;
+	}
+
+	/**
+	 * @return the maximum time (in milliseconds) taken by a recovery
+	 */
+	public synchronized double getMaxRecoveryMillis(){
+		return maxRecoveryNanos / 1e6;
+	}
+
+	/**
+	 * @return <code>true</code> if the connection has been lost and not recovered yet
+	 */
+	public synchronized boolean isRecovering(){
+		return lostAt != 0;
+	}
+
+
+	private static final class Broker implements Comparable<Broker> {
+
+		private final String uri;
+		private final int index;
+		private int consecutiveFailures = 0;
+
+		/**
+		 * Exponentially weighted average time (in milliseconds) taken by the connections, -1 if unknown
+		 */
+		private double averageConnectMillis = -1;
+
+		Broker(String uri, int index) {
+			this.uri = uri;
+			this.index = index;
+		}
+
+		@Override
+		public int compareTo(Broker another) {
+			if(consecutiveFailures != another.consecutiveFailures)
+				return consecutiveFailures - another.consecutiveFailures;
+			//brokers never connected come after the ones known to work
+			double time = (averageConnectMillis < 0) ? Double.MAX_VALUE : averageConnectMillis;
+			double anotherTime = (another.averageConnectMillis < 0) ? Double.MAX_VALUE : another.averageConnectMillis;
+			if(time != anotherTime)
+				return (time < anotherTime) ? -1 : 1;
+			return index - another.index;
+		}
+	}
+}
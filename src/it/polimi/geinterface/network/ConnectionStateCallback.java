@@ -30,7 +30,7 @@ public interface ConnectionStateCallback {
 
 	/**
 	 * This method is called when a connection attempt to the network broker is successful.
-	 * (after a {@link GroupEntityManager#connect(String)} 
+	 * (after a {@link GroupEntityManager#connect(String)}, and after every automatic reconnection)
 	 */
 	public void onConnected();
 	
@@ -43,7 +43,7 @@ public interface ConnectionStateCallback {
 	
 	/**
 	 * Method called when a connection attempt performed with a call to {@link GroupEntityManager#connect(String)} method is
-	 * unsuccessful.
+	 * unsuccessful. Attempts are repeated automatically until {@link GroupEntityManager#stop()} is called.
 	 */
 	public void onConnectionFailed();
 }
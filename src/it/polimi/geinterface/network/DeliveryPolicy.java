@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.network;
+
+import java.util.EnumMap;
+
+
+/**
+ * Quality of service used to publish each {@link MessageType}. By default, high-frequency proximity messages
+ * ({@link MessageType#PROX_BEACONS} and {@link MessageType#PROXIMITY_UPDATE}) are published with QoS 0, since
+ * a lost message is superseded by the next one, {@link MessageType#SYNC_REQ}, {@link MessageType#SYNC_RESP}
+ * and {@link MessageType#PROPERTIES_UPDATE} with QoS 1, and {@link MessageType#CHECK_IN} and
+ * {@link MessageType#CHECK_OUT} with QoS 2.
+ * <p>
+ * The policy also sets how long messages published while the client is not connected are kept in the
+ * {@link OutboundBuffer}: proximity messages and {@link MessageType#SYNC_RESP}s are stale after a few seconds,
+ * {@link MessageType#SYNC_REQ}s are not buffered (the requester could not receive the replies), while membership
+ * messages ({@link MessageType#CHECK_IN}, {@link MessageType#CHECK_OUT} and {@link MessageType#PROPERTIES_UPDATE})
+ * are kept until they are published.
+ */
+public class DeliveryPolicy {
+
+	/**
+	 * Retention of the messages that are kept in the {@link OutboundBuffer} until they are published
+	 */
+	public static final long RETAIN_UNTIL_PUBLISHED = Long.MAX_VALUE;
+
+	private final EnumMap<MessageType, Integer> qos = new EnumMap<MessageType, Integer>(MessageType.class);
+
+	private final EnumMap<MessageType, Long> retention = new EnumMap<MessageType, Long>(MessageType.class);
+
+	public DeliveryPolicy() {
+		qos.put(MessageType.PROX_BEACONS, 0);
+		qos.put(MessageType.PROXIMITY_UPDATE, 0);
+		qos.put(MessageType.SYNC_REQ, 1);
+		qos.put(MessageType.SYNC_RESP, 1);
+		qos.put(MessageType.PROPERTIES_UPDATE, 1);
+		qos.put(MessageType.CHECK_IN, 2);
+		qos.put(MessageType.CHECK_OUT, 2);
+
+		retention.put(MessageType.PROX_BEACONS, 5000L);
+		retention.put(MessageType.PROXIMITY_UPDATE, 5000L);
+		retention.put(MessageType.SYNC_REQ, 0L);
+		retention.put(MessageType.SYNC_RESP, 5000L);
+		retention.put(MessageType.PROPERTIES_UPDATE, RETAIN_UNTIL_PUBLISHED);
+		retention.put(MessageType.CHECK_IN, RETAIN_UNTIL_PUBLISHED);
+		retention.put(MessageType.CHECK_OUT, RETAIN_UNTIL_PUBLISHED);
+	}
+
+	/**
+	 * Method that sets the QoS used to publish messages of the given {@link MessageType}
+	 * @param qos - 0, 1 or 2
+	 * @return this {@link DeliveryPolicy}
+	 */
+	public synchronized DeliveryPolicy setQos(MessageType type, int qos){
+		if(qos < 0 || qos > 2)
+			throw new IllegalArgumentException("QoS not valid: " + qos);
+		this.qos.put(type, qos);
+		return this;
+	}
+
+	public synchronized int getQos(MessageType type){
+		return qos.get(type);
+	}
+
+	/**
+	 * Method that sets how long messages of the given {@link MessageType} are kept in the {@link OutboundBuffer}
+	 * @param millis - maximum age (in milliseconds) of the messages published when the client reconnects, 0 if
+	 * they must not be buffered, or {@link #RETAIN_UNTIL_PUBLISHED}
+	 * @return this {@link DeliveryPolicy}
+	 */
+	public synchronized DeliveryPolicy setRetention(MessageType type, long millis){
+		if(millis < 0)
+			throw new IllegalArgumentException("Retention not valid: " + millis);
+		this.retention.put(type, millis);
+		return this;
+	}
+
+	public synchronized long getRetention(MessageType type){
+		return retention.get(type);
+	}
+
+	/**
+	 * Method returning <code>true</code> if a message of the given {@link MessageType}, buffered at
+	 * <code>timestamp</code>, is too old to be published at <code>now</code>
+	 * @param type - the {@link MessageType} of the message, or <code>null</code> for messages that are not buffered
+	 */
+	public boolean isExpired(MessageType type, long timestamp, long now){
+		long r = (type == null) ? 0 : getRetention(type);
+		return r != RETAIN_UNTIL_PUBLISHED && now - timestamp >= r;
+	}
+
+	/**
+	 * Method returning <code>true</code> if messages of the given {@link MessageType} are kept in the
+	 * {@link OutboundBuffer} until they are published
+	 */
+	public boolean isRetainedUntilPublished(MessageType type){
+		return type != null && getRetention(type) == RETAIN_UNTIL_PUBLISHED;
+	}
+}
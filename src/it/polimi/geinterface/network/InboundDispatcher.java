@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.network;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+
+/**
+ * Dispatcher of the messages received by {@link MQTTPahoClient}: each {@link MessageLane} has its own queue and
+ * thread, so messages are handled in order within a lane, and independently across lanes. The
+ * {@link MessageLane#BULK} queue is bounded: when it is full, its oldest message (the most stale) is discarded.
+ * The {@link MessageLane#CONTROL} queue is not bounded, since its messages must not be lost.
+ * Queue depth, discarded messages and dispatch latency (from the reception of the message to the end of its
+ * handling) of each lane are exposed for monitoring.
+ */
+public class InboundDispatcher {
+
+	private static final String TAG = "InboundDispatcher";
+
+	/**
+	 * Default maximum number of queued {@link MessageLane#BULK} messages
+	 */
+	public static final int DEFAULT_BULK_CAPACITY = 512;
+
+	private final EnumMap<MessageLane, Lane> lanes = new EnumMap<MessageLane, Lane>(MessageLane.class);
+
+
+	public InboundDispatcher() {
+		this(DEFAULT_BULK_CAPACITY);
+	}
+
+	/**
+	 * @param bulkCapacity - maximum number of queued {@link MessageLane#BULK} messages
+	 */
+	public InboundDispatcher(int bulkCapacity) {
+		lanes.put(MessageLane.CONTROL, new Lane(MessageLane.CONTROL, Integer.MAX_VALUE));
+		lanes.put(MessageLane.BULK, new Lane(MessageLane.BULK, bulkCapacity));
+	}
+
+	/**
+	 * Method that queues the handling of a received message in <code>lane</code>
+	 * @param receivedAt - time (as given by {@link System#nanoTime()}) the message was received
+	 */
+	void dispatch(MessageLane lane, Runnable handler, long receivedAt){
+		lanes.get(lane).add(new Task(handler, receivedAt));
+	}
+
+	/**
+	 * @return the number of messages of <code>lane</code> waiting to be handled
+	 */
+	public int getQueueDepth(MessageLane lane){
+		return lanes.get(lane).size();
+	}
+
+	/**
+	 * @return the number of messages of <code>lane</code> handled
+	 */
+	public long getDispatchedCount(MessageLane lane){
+		return lanes.get(lane).dispatchedCount.get();
+	}
+
+	/**
+	 * @return the number of messages of <code>lane</code> discarded because its queue was full
+	 */
+	public long getDroppedCount(MessageLane lane){
+		return lanes.get(lane).droppedCount.get();
+	}
+
+	/**
+	 * @return the time (as given by {@link System#currentTimeMillis()}) a message of <code>lane</code> was last
+	 * discarded because its queue was full, or 0 if none was
+	 */
+	public long getLastDroppedMillis(MessageLane lane){
+		return lanes.get(lane).lastDroppedMillis;
+	}
+
+	/**
+	 * @return the average time (in milliseconds) from the reception to the end of the handling of the messages
+	 * of <code>lane</code>
+	 */
+	public double getAverageLatencyMillis(MessageLane lane){
+		Lane l = lanes.get(lane);
+		long count = l.dispatchedCount.get();
+		return (count == 0) ? 0 : l.latencySumNanos.get() / 1e6 / count;
+	}
+
+	/**
+	 * @return the maximum time (in milliseconds) from the reception to the end of the handling of a message
+	 * of <code>lane</code>
+	 */
+	public double getMaxLatencyMillis(MessageLane lane){
+		return lanes.get(lane).maxLatencyNanos.get() / 1e6;
+	}
+
+
+	private static final class Task {
+
+		private final Runnable handler;
+		private final long receivedAt;
+
+		Task(Runnable handler, long receivedAt) {
+			this.handler = handler;
+			this.receivedAt = receivedAt;
+		}
+	}
+
+
+	/**
+	 * Queue of a {@link MessageLane}, emptied by its own (daemon) thread, started with the first message
+	 */
+	private static final class Lane {
+
+		private final MessageLane lane;
+		private final int capacity;
+
+		/**
+		 * Queued messages, accessed holding the lock on this object
+		 */
+		private final ArrayDeque<Task> queue = new ArrayDeque<Task>();
+		private Thread worker;
+
+		private final AtomicLong dispatchedCount = new AtomicLong();
+		private final AtomicLong droppedCount = new AtomicLong();
+		private volatile long lastDroppedMillis = 0;
+		private final AtomicLong latencySumNanos = new AtomicLong();
+		private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+		Lane(MessageLane lane, int capacity) {
+			this.lane = lane;
+			this.capacity = capacity;
+		}
+
+		synchronized void add(Task task){
+			if(queue.size() >= capacity){
+				queue.poll();
+				droppedCount.incrementAndGet();
+				lastDroppedMillis = System.currentTimeMillis();
+			}
+			queue.add(task);
+
+			if(worker == null){
+				worker = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						runWorker();
+					}
+				}, TAG + "-" + lane.name());
+				worker.setDaemon(true);
+				worker.start();
+			}
+			notifyAll();
+		}
+
+		synchronized int size(){
+			return queue.size();
+		}
+
+		private void runWorker(){
+			while(true){
+				Task task;
+				synchronized (this) {
+					while(queue.isEmpty()){
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					task = queue.poll();
+				}
+
+				try {
+					task.handler.run();
+				} catch (RuntimeException e) {
+					//a message that cannot be handled must not stop the lane
+					Log.e(TAG, "Error handling a message in lane " + lane);
+					e.printStackTrace();
+				}
+
+				long latency = System.nanoTime() - task.receivedAt;
+				dispatchedCount.incrementAndGet();
+				latencySumNanos.addAndGet(latency);
+				long max;
+				while(latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency));
+			}
+		}
+	}
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.network;
+
+import it.polimi.geinterface.DistanceRange;
+import it.polimi.geinterface.DAO.Entity;
+import it.polimi.geinterface.DAO.JsonStrings;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import android.util.Log;
+
+
+/**
+ * Immutable envelope of a message received from the network. The JSON payload is parsed exactly once, when
+ * the envelope is created, and every field the framework needs is exposed through a typed accessor.
+ * Fields that are not defined for the {@link MessageType} of the message are <code>null</code>.
+ */
+public final class InboundMessage {
+
+	private static final String TAG = "InboundMessage";
+
+	private final MessageType type;
+	private final String senderID;
+	private final String logId;
+	private final Entity entity1;
+	private final Entity entity2;
+	private final DistanceRange distanceRange;
+	private final List<Entity> beacons;
+	private final JSONObject oldProperties;
+	private final String requestTopic;
+	private final boolean valid;
+	private final JSONObject group;
+	private final boolean delta;
+	private final long sequence;
+	private final List<String> removedBeacons;
+	private final int maxResponses;
+	private final boolean aggregate;
+	private final List<Entity> entities;
+	private final long timestamp;
+	private final String stream;
+
+
+	InboundMessage(MessageType type, String senderID, String logId, Entity entity1, Entity entity2,
+			DistanceRange distanceRange, List<Entity> beacons, JSONObject oldProperties, String requestTopic,
+			boolean valid, JSONObject group, boolean delta, long sequence, List<String> removedBeacons,
+			int maxResponses, boolean aggregate, List<Entity> entities, long timestamp, String stream) {
+		this.type = type;
+		this.senderID = senderID;
+		this.logId = logId;
+		this.entity1 = entity1;
+		this.entity2 = entity2;
+		this.distanceRange = distanceRange;
+		this.beacons = beacons;
+		this.oldProperties = oldProperties;
+		this.requestTopic = requestTopic;
+		this.valid = valid;
+		this.group = group;
+		this.delta = delta;
+		this.sequence = sequence;
+		this.removedBeacons = removedBeacons;
+		this.maxResponses = maxResponses;
+		this.aggregate = aggregate;
+		this.entities = entities;
+		this.timestamp = timestamp;
+		this.stream = stream;
+	}
+
+
+	/**
+	 * Method that parses a message received from the network into an {@link InboundMessage}
+	 * @param json - the {@link String} (in JSON format) representing the message
+	 * @return the corresponding {@link InboundMessage}, or <code>null</code> if the message is not valid
+	 */
+	public static InboundMessage parse(String json){
+
+		JSONObject msg;
+		try {
+			JSONObject jsonMsg = (JSONObject) new JSONParser().parse(json);
+			msg = (JSONObject) jsonMsg.get(JsonStrings.MESSAGE);
+		} catch (ParseException e) {
+			e.printStackTrace();
+			return null;
+		}
+
+		if(msg == null || msg.get(JsonStrings.MSG_TYPE) == null){
+			Log.e(TAG, "Message not valid: " + json);
+			return null;
+		}
+
+		return fromJson(msg);
+	}
+
+	/**
+	 * Method that builds an {@link InboundMessage} from the already parsed content of a message
+	 * @param msg - the {@link JSONObject} contained in the {@link JsonStrings#MESSAGE} field of the message
+	 * @return the corresponding {@link InboundMessage}, or <code>null</code> if the message is not valid
+	 */
+	static InboundMessage fromJson(JSONObject msg){
+
+		MessageType type = MessageUtils.parseMsgType((String) msg.get(JsonStrings.MSG_TYPE));
+		if(type == null){
+			Log.e(TAG, "Unknown message type: " + msg.get(JsonStrings.MSG_TYPE));
+			return null;
+		}
+
+		Entity entity1 = null, entity2 = null;
+		List<Entity> beacons = null;
+		JSONObject oldProperties = null;
+		boolean delta = false;
+		long sequence = -1;
+		List<String> removedBeacons = null;
+
+		switch (type) {
+		case PROXIMITY_UPDATE:
+			entity1 = MessageUtils.createEntity(type, (JSONObject) msg.get(JsonStrings.ENTITY_1));
+			entity2 = MessageUtils.createEntity(type, (JSONObject) msg.get(JsonStrings.ENTITY_2));
+			break;
+
+		case PROPERTIES_UPDATE:
+			JSONObject jsonEntity = (JSONObject) msg.get(JsonStrings.ENTITY);
+			entity1 = MessageUtils.createEntity(type, jsonEntity);
+			oldProperties = (JSONObject) jsonEntity.get(JsonStrings.OLD_PROPERTIES);
+			break;
+
+		case PROX_BEACONS:
+			delta = Boolean.TRUE.equals(msg.get(JsonStrings.DELTA));
+			if(msg.get(JsonStrings.SEQUENCE) != null)
+				sequence = ((Number) msg.get(JsonStrings.SEQUENCE)).longValue();
+
+			if(delta){
+				//the sender is described only by id and type, its properties are in the last keyframe
+				JSONObject jsonSender = (JSONObject) msg.get(JsonStrings.ENTITY);
+				entity1 = new Entity.Builder((String) jsonSender.get(JsonStrings.ENTITY_ID),
+						Entity.Type.valueOf((String) jsonSender.get(JsonStrings.ENTITY_TYPE))).build();
+				removedBeacons = new ArrayList<String>();
+				for(Object id : (JSONArray) msg.get(JsonStrings.REMOVED_BEACONS))
+					removedBeacons.add((String) id);
+				removedBeacons = Collections.unmodifiableList(removedBeacons);
+			}
+			else
+				entity1 = MessageUtils.createEntity(type, (JSONObject) msg.get(JsonStrings.ENTITY));
+			beacons = MessageUtils.parseBeacons((JSONArray) msg.get(JsonStrings.BEACONS));
+			break;
+
+		case SYNC_REQ:
+			beacons = MessageUtils.parseBeacons((JSONArray) msg.get(JsonStrings.BEACONS));
+			break;
+
+		case CHECK_IN:
+			entity1 = MessageUtils.createEntity(type, (JSONObject) msg.get(JsonStrings.ENTITY));
+			//presence records carry also the beacons seen by the entity
+			if(msg.get(JsonStrings.BEACONS) != null)
+				beacons = MessageUtils.parseBeacons((JSONArray) msg.get(JsonStrings.BEACONS));
+			break;
+
+		case SYNC_RESP:
+		case CHECK_OUT:
+			entity1 = MessageUtils.createEntity(type, (JSONObject) msg.get(JsonStrings.ENTITY));
+			break;
+		}
+
+		DistanceRange distance = null;
+		if(type == MessageType.PROXIMITY_UPDATE || type == MessageType.SYNC_RESP || type == MessageType.SYNC_REQ)
+			distance = MessageUtils.parseDistanceRange((String) msg.get(JsonStrings.DISTANCE_RANGE));
+
+		String requestTopic = null;
+		if(type == MessageType.SYNC_REQ || type == MessageType.SYNC_RESP)
+			requestTopic = (String) msg.get(JsonStrings.TOPIC_REPLY);
+
+		boolean valid = false;
+		if(type == MessageType.CHECK_OUT)
+			valid = (Boolean) msg.get(JsonStrings.VALID);
+
+		JSONObject group = null;
+		int maxResponses = 0;
+		boolean aggregate = false;
+		if(type == MessageType.SYNC_REQ){
+			group = (JSONObject) msg.get(JsonStrings.GROUP);
+			if(msg.get(JsonStrings.MAX_RESPONSES) != null)
+				maxResponses = ((Number) msg.get(JsonStrings.MAX_RESPONSES)).intValue();
+			aggregate = Boolean.TRUE.equals(msg.get(JsonStrings.AGGREGATE));
+		}
+
+		List<Entity> entities = null;
+		if(type == MessageType.SYNC_RESP && msg.get(JsonStrings.ENTITIES) != null){
+			entities = new ArrayList<Entity>();
+			for(Object o : (JSONArray) msg.get(JsonStrings.ENTITIES))
+				entities.add(MessageUtils.createEntity(type, (JSONObject) o));
+			entities = Collections.unmodifiableList(entities);
+		}
+
+		long timestamp = -1;
+		if(type == MessageType.CHECK_IN && msg.get(JsonStrings.TIMESTAMP) != null)
+			timestamp = ((Number) msg.get(JsonStrings.TIMESTAMP)).longValue();
+
+		return new InboundMessage(type, (String) msg.get(JsonStrings.SENDER), (String) msg.get(JsonStrings.LOG_ID),
+				entity1, entity2, distance,
+				(beacons == null) ? null : Collections.unmodifiableList(beacons),
+				oldProperties, requestTopic, valid, group, delta, sequence, removedBeacons,
+				maxResponses, aggregate, entities, timestamp, null);
+	}
+
+	/**
+	 * Method returning the (valid) {@link MessageType#CHECK_OUT} of the device having id <code>entityId</code>,
+	 * conveyed by the removal of its state (see {@link MessageUtils#getStateTopic(String)}): as the will message
+	 * did, it contains only the id and the type of the entity.
+	 */
+	static InboundMessage stateRemoved(String entityId){
+		Entity e = new Entity.Builder(entityId, Entity.Type.DEVICE).build();
+		return new InboundMessage(MessageType.CHECK_OUT, e.getEntityID(), null, e, null, null, null, null, null,
+				true, null, false, -1, null, 0, false, null, -1, null);
+	}
+
+	/**
+	 * Method returning a copy of this message having <code>logId</code> as log identifier. Used only for logging.
+	 */
+	public InboundMessage withLogId(String logId){
+		return new InboundMessage(type, senderID, logId, entity1, entity2, distanceRange, beacons,
+				oldProperties, requestTopic, valid, group, delta, sequence, removedBeacons,
+				maxResponses, aggregate, entities, timestamp, stream);
+	}
+
+	/**
+	 * Method returning a copy of this message received through <code>stream</code> (see
+	 * {@link MessageUtils#getProximityStream(String)})
+	 */
+	InboundMessage withStream(String stream){
+		return new InboundMessage(type, senderID, logId, entity1, entity2, distanceRange, beacons,
+				oldProperties, requestTopic, valid, group, delta, sequence, removedBeacons,
+				maxResponses, aggregate, entities, timestamp, stream);
+	}
+
+	/**
+	 * Method returning a full (not delta) copy of this {@link MessageType#PROX_BEACONS} message, having
+	 * <code>sender</code> as sender {@link Entity} and <code>beacons</code> as beacons. Used to rebuild the
+	 * full message corresponding to a delta one.
+	 */
+	public InboundMessage withBeacons(Entity sender, Collection<Entity> beacons){
+		return new InboundMessage(type, senderID, logId, sender, entity2, distanceRange,
+				Collections.unmodifiableList(new ArrayList<Entity>(beacons)),
+				oldProperties, requestTopic, valid, group, false, sequence, null,
+				maxResponses, aggregate, entities, timestamp, stream);
+	}
+
+
+	public MessageType getType() {
+		return type;
+	}
+
+	public String getSenderID() {
+		return senderID;
+	}
+
+	public String getLogId() {
+		return logId;
+	}
+
+	/**
+	 * Method that returns the first {@link Entity} contained in the message: the sender {@link Entity} for all
+	 * {@link MessageType}s but {@link MessageType#PROXIMITY_UPDATE} and {@link MessageType#SYNC_REQ}.
+	 */
+	public Entity getEntity1() {
+		return entity1;
+	}
+
+	/**
+	 * Method that returns the second {@link Entity} contained in a {@link MessageType#PROXIMITY_UPDATE}
+	 */
+	public Entity getEntity2() {
+		return entity2;
+	}
+
+	/**
+	 * Method returning the {@link DistanceRange} reported in a {@link MessageType#PROXIMITY_UPDATE},
+	 * {@link MessageType#SYNC_REQ} or {@link MessageType#SYNC_RESP}
+	 */
+	public DistanceRange getDistanceRange() {
+		return distanceRange;
+	}
+
+	/**
+	 * Method returning the beacons contained in a {@link MessageType#PROX_BEACONS}, in a {@link MessageType#SYNC_REQ}
+	 * or in the presence record of a {@link MessageType#CHECK_IN}.
+	 * A new {@link ArrayList} is returned at every call, so that the caller is free to modify it.
+	 */
+	public ArrayList<Entity> getBeacons() {
+		return (beacons == null) ? null : new ArrayList<Entity>(beacons);
+	}
+
+	/**
+	 * Method returning the old properties contained in a {@link MessageType#PROPERTIES_UPDATE}
+	 */
+	public JSONObject getOldProperties() {
+		return oldProperties;
+	}
+
+	/**
+	 * Method returning the topic to use to send a {@link MessageType#SYNC_RESP} in reply to a {@link MessageType#SYNC_REQ}
+	 */
+	public String getRequestTopic() {
+		return requestTopic;
+	}
+
+	/**
+	 * Method returning the "valid bit" of a {@link MessageType#CHECK_OUT}
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	/**
+	 * Method returning the {@link it.polimi.geinterface.DAO.Group} "serialized" in a {@link MessageType#SYNC_REQ}
+	 */
+	public JSONObject getGroup() {
+		return group;
+	}
+
+	/**
+	 * Method returning <code>true</code> if this is a delta {@link MessageType#PROX_BEACONS}, i.e. if
+	 * {@link #getBeacons()} contains only the beacons changed since the previous message of the sender,
+	 * and {@link #getRemovedBeacons()} the ones that disappeared
+	 */
+	public boolean isDelta() {
+		return delta;
+	}
+
+	/**
+	 * Method returning the sequence number of a {@link MessageType#PROX_BEACONS}, or -1 if the sender does not
+	 * number its messages
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Method returning the ids of the beacons that disappeared, contained in a delta {@link MessageType#PROX_BEACONS}
+	 */
+	public List<String> getRemovedBeacons() {
+		return removedBeacons;
+	}
+
+	/**
+	 * Method returning the number of responses after which the responders to a {@link MessageType#SYNC_REQ} have to
+	 * cancel their own, or 0 if the sender did not set a limit
+	 */
+	public int getMaxResponses() {
+		return maxResponses;
+	}
+
+	/**
+	 * Method returning <code>true</code> if the sender of a {@link MessageType#SYNC_REQ} accepts aggregated
+	 * {@link MessageType#SYNC_RESP}s
+	 */
+	public boolean isAggregate() {
+		return aggregate;
+	}
+
+	/**
+	 * Method returning the other entities reported by an aggregated {@link MessageType#SYNC_RESP}, or
+	 * <code>null</code> if the response reports only its sender
+	 */
+	public List<Entity> getEntities() {
+		return entities;
+	}
+
+	/**
+	 * Method returning the time (in milliseconds, according to the clock of the sender) the presence record of a
+	 * {@link MessageType#CHECK_IN} was built, or -1 if the message is not a presence record
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Method returning the stream a numbered {@link MessageType#PROX_BEACONS} was received through (see
+	 * {@link MessageUtils#getProximityStream(String)}): its sequence numbers follow each other only within the
+	 * stream. It is <code>null</code> for the other messages.
+	 */
+	public String getStream() {
+		return stream;
+	}
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.network;
+
+import java.nio.charset.Charset;
+
+
+/**
+ * {@link MessageCodec} publishing messages in JSON format, the one used by all the versions of the framework.
+ * Payloads in the format of {@link BinaryMessageCodec} are decoded too. Payloads in JSON format are decoded
+ * directly from their bytes by a {@link JsonMessageReader}.
+ */
+public class JsonMessageCodec implements MessageCodec {
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	@Override
+	public byte[] encode(String message) {
+		return message.getBytes(UTF_8);
+	}
+
+	private final JsonMessageReader reader = new JsonMessageReader();
+
+	@Override
+	public InboundMessage decode(byte[] payload) {
+		if(BinaryMessageCodec.isBinary(payload))
+			return BinaryMessageCodec.decodeBinary(payload);
+		return decodeJson(reader, payload);
+	}
+
+	/**
+	 * Method that decodes a payload in JSON format with the streaming <code>reader</code>, falling back to
+	 * {@link InboundMessage#parse(String)} for payloads the reader cannot handle (e.g. not valid ones)
+	 */
+	static InboundMessage decodeJson(JsonMessageReader reader, byte[] payload){
+		InboundMessage ret;
+		synchronized (reader) {
+			ret = reader.read(payload);
+		}
+		return (ret != null) ? ret : InboundMessage.parse(new String(payload, UTF_8));
+	}
+}
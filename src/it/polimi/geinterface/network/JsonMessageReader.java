@@ -0,0 +1,702 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.network;
+
+import it.polimi.geinterface.DistanceRange;
+import it.polimi.geinterface.DAO.Entity;
+import it.polimi.geinterface.DAO.Entity.Type;
+import it.polimi.geinterface.DAO.JsonStrings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+
+/**
+ * Streaming decoder of the messages in JSON format, reading the fields of the framework messages directly from
+ * the bytes of the payload, without building the whole JSON tree:
+ * <ul>
+ * <li>the properties of entities are not parsed, but passed to {@link Entity.Builder#addRawProperties(byte[], int, int)},
+ * so that they are parsed only if a {@link it.polimi.geinterface.DAO.Group} filter needs them</li>
+ * <li>beacon ids are decoded into a reusable buffer, and the corresponding {@link String} is taken from a cache
+ * of the ids already seen</li>
+ * <li>unknown fields are skipped</li>
+ * </ul>
+ * A reader is not thread safe. If the payload does not have the layout of a framework message,
+ * {@link #read(byte[])} returns <code>null</code> and the message has to be decoded by {@link InboundMessage#parse(String)}.
+ */
+final class JsonMessageReader {
+
+	/**
+	 * Size of the cache of beacon ids (a power of 2)
+	 */
+	private static final int BEACON_ID_CACHE_SIZE = 1024;
+
+	//ids of the keys recognized
+	private static final String[] KEYS = {
+		JsonStrings.MESSAGE, JsonStrings.SENDER, JsonStrings.MSG_TYPE, JsonStrings.LOG_ID, JsonStrings.ENTITY,
+		JsonStrings.ENTITY_1, JsonStrings.ENTITY_2, JsonStrings.DISTANCE_RANGE, JsonStrings.BEACONS,
+		JsonStrings.TOPIC_REPLY, JsonStrings.VALID, JsonStrings.GROUP, JsonStrings.DELTA, JsonStrings.SEQUENCE,
+		JsonStrings.REMOVED_BEACONS, JsonStrings.ENTITY_ID, JsonStrings.ENTITY_TYPE, JsonStrings.PROPERTIES,
+		JsonStrings.CURRENT_PROPERTIES, JsonStrings.OLD_PROPERTIES, JsonStrings.BEACON_ID,
+		JsonStrings.MAX_RESPONSES, JsonStrings.AGGREGATE, JsonStrings.ENTITIES, JsonStrings.TIMESTAMP
+	};
+	private static final int MESSAGE = 0, SENDER = 1, MSG_TYPE = 2, LOG_ID = 3, ENTITY = 4, ENTITY_1 = 5,
+			ENTITY_2 = 6, DISTANCE_RANGE = 7, BEACONS = 8, TOPIC_REPLY = 9, VALID = 10, GROUP = 11, DELTA = 12,
+			SEQUENCE = 13, REMOVED_BEACONS = 14, ENTITY_ID = 15, ENTITY_TYPE = 16, PROPERTIES = 17,
+			CURRENT_PROPERTIES = 18, OLD_PROPERTIES = 19, BEACON_ID = 20, MAX_RESPONSES = 21, AGGREGATE = 22,
+			ENTITIES = 23, TIMESTAMP = 24;
+
+	private static final byte[][] KEY_BYTES = new byte[KEYS.length][];
+	static {
+		for(int i = 0; i < KEYS.length; i++)
+			KEY_BYTES[i] = KEYS[i].getBytes(JsonMessageCodec.UTF_8);
+	}
+
+	private static final DistanceRange[] DISTANCE_RANGES = DistanceRange.values();
+
+	private byte[] buf;
+	private int pos;
+
+	/**
+	 * Buffer used to decode beacon ids
+	 */
+	private char[] chars = new char[64];
+
+	private final String[] beaconIds = new String[BEACON_ID_CACHE_SIZE];
+
+
+	/**
+	 * Method that decodes a payload in JSON format
+	 * @return the corresponding {@link InboundMessage}, or <code>null</code> if the payload does not have the
+	 * expected layout
+	 */
+	InboundMessage read(byte[] payload){
+		buf = payload;
+		pos = 0;
+		try {
+			InboundMessage ret = null;
+			expect('{');
+			if(!tryConsume('}')){
+				do{
+					int key = readKey();
+					expect(':');
+					if(key == MESSAGE && ret == null)
+						ret = readMessage();
+					else
+						skipValue();
+				} while(tryConsume(','));
+				expect('}');
+			}
+			return ret;
+		} catch (MalformedException e) {
+			return null;
+		} catch (RuntimeException e) {
+			return null;
+		} finally {
+			buf = null;
+		}
+	}
+
+	private InboundMessage readMessage() throws MalformedException{
+
+		String msgType = null, sender = null, logId = null, distance = null, requestTopic = null;
+		EntityFields entity = null, entity1 = null, entity2 = null;
+		ArrayList<Entity> beacons = null;
+		ArrayList<String> removedBeacons = null;
+		ArrayList<EntityFields> entities = null;
+		Boolean valid = null;
+		boolean delta = false, aggregate = false;
+		long sequence = -1, maxResponses = 0, timestamp = -1;
+		int groupStart = -1, groupEnd = -1;
+
+		expect('{');
+		if(!tryConsume('}')){
+			do{
+				int key = readKey();
+				expect(':');
+				switch (key) {
+				case MSG_TYPE: msgType = readString(); break;
+				case SENDER: sender = readString(); break;
+				case LOG_ID: logId = readString(); break;
+				case DISTANCE_RANGE: distance = readString(); break;
+				case TOPIC_REPLY: requestTopic = readString(); break;
+				case ENTITY: entity = readEntity(); break;
+				case ENTITY_1: entity1 = readEntity(); break;
+				case ENTITY_2: entity2 = readEntity(); break;
+				case BEACONS: beacons = readBeacons(); break;
+				case REMOVED_BEACONS: removedBeacons = readBeaconIds(); break;
+				case VALID: valid = readBoolean(); break;
+				case DELTA: delta = Boolean.TRUE.equals(readBoolean()); break;
+				case SEQUENCE: sequence = readLong(); break;
+				case MAX_RESPONSES: maxResponses = readLong(); break;
+				case AGGREGATE: aggregate = Boolean.TRUE.equals(readBoolean()); break;
+				case ENTITIES: entities = readEntities(); break;
+				case TIMESTAMP: timestamp = readLong(); break;
+				case GROUP:
+					skipWhitespace();
+					groupStart = pos;
+					skipValue();
+					groupEnd = pos;
+					break;
+				default:
+					skipValue();
+					break;
+				}
+			} while(tryConsume(','));
+			expect('}');
+		}
+
+		if(msgType == null)
+			throw new MalformedException();
+		MessageType type = MessageUtils.parseMsgType(msgType);
+		if(type == null)
+			throw new MalformedException();
+
+		Entity e1 = null, e2 = null;
+		JSONObject oldProperties = null;
+
+		switch (type) {
+		case PROXIMITY_UPDATE:
+			e1 = buildEntity(entity1, PROPERTIES);
+			e2 = buildEntity(entity2, PROPERTIES);
+			break;
+
+		case PROPERTIES_UPDATE:
+			e1 = buildEntity(entity, CURRENT_PROPERTIES);
+			if(entity.oldPropertiesStart >= 0)
+				oldProperties = (JSONObject) parse(entity.oldPropertiesStart, entity.oldPropertiesEnd);
+			break;
+
+		case PROX_BEACONS:
+			if(delta){
+				//the sender is described only by id and type, its properties are in the last keyframe
+				e1 = new Entity.Builder(entity.id, Type.valueOf(entity.type)).build();
+				if(removedBeacons == null)
+					throw new MalformedException();
+			}
+			else
+				e1 = buildEntity(entity, PROPERTIES);
+			if(beacons == null)
+				throw new MalformedException();
+			break;
+
+		case SYNC_REQ:
+			if(beacons == null)
+				throw new MalformedException();
+			break;
+
+		case SYNC_RESP:
+		case CHECK_IN:
+		case CHECK_OUT:
+			e1 = buildEntity(entity, PROPERTIES);
+			break;
+		}
+
+		DistanceRange distanceRange = null;
+		if(type == MessageType.PROXIMITY_UPDATE || type == MessageType.SYNC_RESP || type == MessageType.SYNC_REQ)
+			distanceRange = MessageUtils.parseDistanceRange(distance);
+
+		if(type != MessageType.SYNC_REQ && type != MessageType.SYNC_RESP)
+			requestTopic = null;
+
+		if(type == MessageType.CHECK_OUT && valid == null)
+			throw new MalformedException();
+
+		JSONObject group = null;
+		if(type == MessageType.SYNC_REQ && groupStart >= 0)
+			group = (JSONObject) parse(groupStart, groupEnd);
+
+		//presence records carry also the beacons seen by the entity
+		boolean hasBeacons = type == MessageType.PROX_BEACONS || type == MessageType.SYNC_REQ
+				|| (type == MessageType.CHECK_IN && beacons != null);
+		boolean isDelta = type == MessageType.PROX_BEACONS && delta;
+
+		List<Entity> others = null;
+		if(type == MessageType.SYNC_RESP && entities != null){
+			others = new ArrayList<Entity>(entities.size());
+			for(EntityFields f : entities)
+				others.add(buildEntity(f, PROPERTIES));
+			others = Collections.unmodifiableList(others);
+		}
+
+		return new InboundMessage(type, sender, logId, e1, e2, distanceRange,
+				hasBeacons ? Collections.<Entity>unmodifiableList(beacons) : null,
+				oldProperties, requestTopic, type == MessageType.CHECK_OUT && valid, group,
+				isDelta, (type == MessageType.PROX_BEACONS) ? sequence : -1,
+				isDelta ? Collections.<String>unmodifiableList(removedBeacons) : null,
+				(type == MessageType.SYNC_REQ) ? (int) maxResponses : 0,
+				type == MessageType.SYNC_REQ && aggregate, others,
+				(type == MessageType.CHECK_IN) ? timestamp : -1, null);
+	}
+
+
+	/*
+	 * 
+	 * ENTITIES AND BEACONS
+	 * 
+	 */
+
+	/**
+	 * Fields of an entity, as read from the payload
+	 */
+	private static final class EntityFields {
+		String id, type, distance;
+		int propertiesStart = -1, propertiesEnd;
+		int currentPropertiesStart = -1, currentPropertiesEnd;
+		int oldPropertiesStart = -1, oldPropertiesEnd;
+	}
+
+	private EntityFields readEntity() throws MalformedException{
+		EntityFields ret = new EntityFields();
+		expect('{');
+		if(tryConsume('}'))
+			return ret;
+		do{
+			int key = readKey();
+			expect(':');
+			switch (key) {
+			case ENTITY_ID: ret.id = readString(); break;
+			case ENTITY_TYPE: ret.type = readString(); break;
+			case DISTANCE_RANGE: ret.distance = readString(); break;
+			case PROPERTIES:
+				skipWhitespace();
+				ret.propertiesStart = pos;
+				skipValue();
+				ret.propertiesEnd = pos;
+				break;
+			case CURRENT_PROPERTIES:
+				skipWhitespace();
+				ret.currentPropertiesStart = pos;
+				skipValue();
+				ret.currentPropertiesEnd = pos;
+				break;
+			case OLD_PROPERTIES:
+				skipWhitespace();
+				ret.oldPropertiesStart = pos;
+				skipValue();
+				ret.oldPropertiesEnd = pos;
+				break;
+			default:
+				skipValue();
+				break;
+			}
+		} while(tryConsume(','));
+		expect('}');
+		return ret;
+	}
+
+	/**
+	 * Method that builds an {@link Entity} as {@link MessageUtils#createEntity(MessageType, JSONObject)} does
+	 * @param propertiesKey - {@link #PROPERTIES} or {@link #CURRENT_PROPERTIES}
+	 */
+	private Entity buildEntity(EntityFields fields, int propertiesKey) throws MalformedException{
+
+		if(fields == null || fields.id == null || fields.type == null || fields.distance == null)
+			throw new MalformedException();
+
+		Type entityType = null;
+		for(Type t : Type.values())
+			if(fields.type.equalsIgnoreCase(t.name()))
+				entityType = t;
+
+		DistanceRange distanceRange = null;
+		for(DistanceRange d : DISTANCE_RANGES)
+			if(fields.distance.equalsIgnoreCase(d.name()))
+				distanceRange = d;
+
+		if(entityType == null)
+			return null;
+
+		int start = (propertiesKey == PROPERTIES) ? fields.propertiesStart : fields.currentPropertiesStart;
+		int end = (propertiesKey == PROPERTIES) ? fields.propertiesEnd : fields.currentPropertiesEnd;
+		if(start < 0 || buf[start] != '{')
+			throw new MalformedException();
+
+		return new Entity.Builder(fields.id, entityType)
+		.setDistance(distanceRange)
+		.addRawProperties(buf, start, end - start)
+		.build();
+	}
+
+	private ArrayList<EntityFields> readEntities() throws MalformedException{
+		ArrayList<EntityFields> ret = new ArrayList<EntityFields>();
+		expect('[');
+		if(tryConsume(']'))
+			return ret;
+		do{
+			ret.add(readEntity());
+		} while(tryConsume(','));
+		expect(']');
+		return ret;
+	}
+
+	private ArrayList<Entity> readBeacons() throws MalformedException{
+		ArrayList<Entity> ret = new ArrayList<Entity>();
+		expect('[');
+		if(tryConsume(']'))
+			return ret;
+		do{
+			String id = null;
+			DistanceRange distance = null;
+			expect('{');
+			if(!tryConsume('}')){
+				do{
+					int key = readKey();
+					expect(':');
+					if(key == BEACON_ID)
+						id = readBeaconId();
+					else if(key == DISTANCE_RANGE)
+						distance = readDistanceRange();
+					else
+						skipValue();
+				} while(tryConsume(','));
+				expect('}');
+			}
+			if(id == null)
+				throw new MalformedException();
+			ret.add(new Entity.Builder(id, Type.BLE_BEACON).setDistance(distance).build());
+		} while(tryConsume(','));
+		expect(']');
+		return ret;
+	}
+
+	private ArrayList<String> readBeaconIds() throws MalformedException{
+		ArrayList<String> ret = new ArrayList<String>();
+		expect('[');
+		if(tryConsume(']'))
+			return ret;
+		do{
+			String id = readString();
+			if(id == null)
+				throw new MalformedException();
+			ret.add(id);
+		} while(tryConsume(','));
+		expect(']');
+		return ret;
+	}
+
+	/**
+	 * Method that reads a beacon id, already lowercase as the id of an {@link Entity}. Ids are decoded into
+	 * {@link #chars} and the {@link String} is taken from {@link #beaconIds} when already present.
+	 */
+	private String readBeaconId() throws MalformedException{
+		skipWhitespace();
+		expect('"');
+		int start = pos;
+		int length = 0;
+		int hash = 0;
+		while(true){
+			int b = next();
+			if(b == '"')
+				break;
+			if(b == '\\' || b >= 0x80){
+				//not plain ASCII: decoded as any other string
+				pos = start - 1;
+				String id = readString().toLowerCase();
+				return intern(id);
+			}
+			if(b >= 'A' && b <= 'Z')
+				b += 'a' - 'A';
+			if(length == chars.length)
+				chars = Arrays.copyOf(chars, length * 2);
+			chars[length++] = (char) b;
+			hash = 31 * hash + b;
+		}
+
+		int slot = hash & (BEACON_ID_CACHE_SIZE - 1);
+		String cached = beaconIds[slot];
+		if(cached != null && cached.hashCode() == hash && cached.length() == length){
+			int i = 0;
+			while(i < length && cached.charAt(i) == chars[i])
+				i++;
+			if(i == length)
+				return cached;
+		}
+		String id = new String(chars, 0, length);
+		beaconIds[slot] = id;
+		return id;
+	}
+
+	private String intern(String id){
+		int slot = id.hashCode() & (BEACON_ID_CACHE_SIZE - 1);
+		String cached = beaconIds[slot];
+		if(id.equals(cached))
+			return cached;
+		beaconIds[slot] = id;
+		return id;
+	}
+
+	/**
+	 * Method that reads a {@link DistanceRange} name, as {@link MessageUtils#parseDistanceRange(String)} does
+	 */
+	private DistanceRange readDistanceRange() throws MalformedException{
+		skipWhitespace();
+		if(buf[pos] != '"')
+			return MessageUtils.parseDistanceRange(readString());
+
+		int start = pos + 1;
+		int end = start;
+		while(end < buf.length && buf[end] != '"' && buf[end] != '\\')
+			end++;
+		if(end < buf.length && buf[end] == '"'){
+			for(DistanceRange d : DISTANCE_RANGES)
+				if(equalsAscii(start, end, d.name())){
+					pos = end + 1;
+					return d;
+				}
+		}
+		return MessageUtils.parseDistanceRange(readString());
+	}
+
+	private boolean equalsAscii(int start, int end, String s){
+		if(end - start != s.length())
+			return false;
+		for(int i = 0; i < s.length(); i++)
+			if(buf[start + i] != s.charAt(i))
+				return false;
+		return true;
+	}
+
+
+	/*
+	 * 
+	 * TOKENS
+	 * 
+	 */
+
+	private Object parse(int start, int end) throws MalformedException{
+		try {
+			return new JSONParser().parse(new String(buf, start, end - start, JsonMessageCodec.UTF_8));
+		} catch (ParseException e) {
+			throw new MalformedException();
+		}
+	}
+
+	/**
+	 * Method that reads a key, returning its position in {@link #KEYS} or -1 if the key is unknown
+	 */
+	private int readKey() throws MalformedException{
+		skipWhitespace();
+		expect('"');
+		int start = pos;
+		while(true){
+			int b = next();
+			if(b == '"')
+				break;
+			if(b == '\\'){
+				pos = start - 1;
+				String key = readString();
+				for(int i = 0; i < KEYS.length; i++)
+					if(KEYS[i].equals(key))
+						return i;
+				return -1;
+			}
+		}
+		int length = pos - 1 - start;
+		for(int i = 0; i < KEY_BYTES.length; i++){
+			byte[] key = KEY_BYTES[i];
+			if(key.length != length)
+				continue;
+			int j = 0;
+			while(j < length && buf[start + j] == key[j])
+				j++;
+			if(j == length)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Method that reads a string value, returning <code>null</code> for the <code>null</code> literal
+	 */
+	private String readString() throws MalformedException{
+		skipWhitespace();
+		if(tryConsumeLiteral("null"))
+			return null;
+		expect('"');
+		int start = pos;
+		boolean escaped = false;
+		while(true){
+			int b = next();
+			if(b == '"')
+				break;
+			if(b == '\\'){
+				escaped = true;
+				next();
+			}
+		}
+		String raw = new String(buf, start, pos - 1 - start, JsonMessageCodec.UTF_8);
+		return escaped ? unescape(raw) : raw;
+	}
+
+	private static String unescape(String raw) throws MalformedException{
+		StringBuilder sb = new StringBuilder(raw.length());
+		for(int i = 0; i < raw.length(); i++){
+			char c = raw.charAt(i);
+			if(c != '\\'){
+				sb.append(c);
+				continue;
+			}
+			if(++i == raw.length())
+				throw new MalformedException();
+			c = raw.charAt(i);
+			switch (c) {
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				if(i + 4 >= raw.length())
+					throw new MalformedException();
+				try {
+					sb.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+				} catch (NumberFormatException e) {
+					throw new MalformedException();
+				}
+				i += 4;
+				break;
+			default: sb.append(c); break;
+			}
+		}
+		return sb.toString();
+	}
+
+	private Boolean readBoolean() throws MalformedException{
+		skipWhitespace();
+		if(tryConsumeLiteral("true"))
+			return Boolean.TRUE;
+		if(tryConsumeLiteral("false"))
+			return Boolean.FALSE;
+		if(tryConsumeLiteral("null"))
+			return null;
+		throw new MalformedException();
+	}
+
+	private long readLong() throws MalformedException{
+		skipWhitespace();
+		boolean negative = tryConsume('-');
+		int start = pos;
+		long value = 0;
+		while(pos < buf.length && buf[pos] >= '0' && buf[pos] <= '9')
+			value = value * 10 + (buf[pos++] - '0');
+		if(pos == start || (pos < buf.length && (buf[pos] == '.' || buf[pos] == 'e' || buf[pos] == 'E')))
+			throw new MalformedException();
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Method that skips a value of any type
+	 */
+	private void skipValue() throws MalformedException{
+		skipWhitespace();
+		int b = buf[pos];
+		if(b == '"'){
+			pos++;
+			while(true){
+				int c = next();
+				if(c == '"')
+					return;
+				if(c == '\\')
+					next();
+			}
+		}
+		if(b == '{' || b == '['){
+			int depth = 0;
+			do{
+				int c = next();
+				if(c == '{' || c == '[')
+					depth++;
+				else if(c == '}' || c == ']')
+					depth--;
+				else if(c == '"'){
+					pos--;
+					skipValue();
+				}
+			} while(depth > 0);
+			return;
+		}
+		//number or literal
+		int start = pos;
+		while(pos < buf.length && buf[pos] != ',' && buf[pos] != '}' && buf[pos] != ']'
+				&& !isWhitespace(buf[pos]))
+			pos++;
+		if(pos == start)
+			throw new MalformedException();
+	}
+
+	private int next() throws MalformedException{
+		if(pos >= buf.length)
+			throw new MalformedException();
+		return buf[pos++] & 0xFF;
+	}
+
+	private void expect(char c) throws MalformedException{
+		if(!tryConsume(c))
+			throw new MalformedException();
+	}
+
+	private boolean tryConsume(char c){
+		skipWhitespace();
+		if(pos < buf.length && buf[pos] == c){
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	private boolean tryConsumeLiteral(String literal){
+		if(pos + literal.length() > buf.length || !equalsAscii(pos, pos + literal.length(), literal))
+			return false;
+		pos += literal.length();
+		return true;
+	}
+
+	private void skipWhitespace(){
+		while(pos < buf.length && isWhitespace(buf[pos]))
+			pos++;
+	}
+
+	private static boolean isWhitespace(byte b){
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+
+	/**
+	 * Thrown when the payload does not have the layout expected by the reader
+	 */
+	private static final class MalformedException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			//no stack trace: the exception is used only to abort the reading
+			return this;
+		}
+	}
+}
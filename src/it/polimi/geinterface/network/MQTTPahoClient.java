@@ -20,10 +20,26 @@
 
 package it.polimi.geinterface.network;
 
+import it.polimi.geinterface.DistanceRange;
 import it.polimi.geinterface.GroupEntityManager;
 import it.polimi.geinterface.DAO.Entity;
 import it.polimi.geinterface.security.SecurityManager;
 import it.polimi.proximityapi.interfaces.ActionOutcomeCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.eclipse.paho.android.service.MqttAndroidClient;
 import org.eclipse.paho.android.service.MqttTraceHandler;
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
@@ -52,27 +68,195 @@ public class MQTTPahoClient {
 
 	private MessageCallback messageArrivedCallback;
 
-	private ConnectionStateCallback connStateCallback;
-
-	private byte[] willMsg;
+	/**
+	 * {@link RawMessageCallback}s, keyed on the prefix of the topics whose messages they receive
+	 */
+	private final ConcurrentHashMap<String, RawMessageCallback> rawCallbacks = new ConcurrentHashMap<String, RawMessageCallback>();
 
-	private String HOST;
+	private ConnectionStateCallback connStateCallback;
 
 	private SecurityManager securityManager;
 
 	private Entity selfEntity;
 
+	/**
+	 * {@link MessageCodec} used to encode published messages and decode received ones
+	 */
+	private final MessageCodec codec;
+
+	/**
+	 * QoS used to publish each {@link MessageType}
+	 */
+	private volatile DeliveryPolicy deliveryPolicy = new DeliveryPolicy();
+
+	/**
+	 * Queue of the messages published by {@link #publishMessage(String, MessageType, String)}
+	 */
+	private final OutboundPublisher publisher = new OutboundPublisher();
+
+	/**
+	 * Maximum time (in milliseconds) waited for queued messages to be published before disconnecting
+	 */
+	private static final long FLUSH_TIMEOUT = 2000;
+
+	/**
+	 * Name of the file (in the files directory of the application) of the {@link OutboundBuffer}
+	 */
+	private static final String BUFFER_FILE = "outbound.buf";
+
+	/**
+	 * Minimum time (in milliseconds) between two publications of the presence record of selfEntity caused by a
+	 * change of the set of beacons it sees
+	 */
+	public static final long PRESENCE_MIN_INTERVAL = 5000;
+
+	/**
+	 * Minimum time (in milliseconds) between two publications of the presence record of selfEntity caused only by
+	 * a change of the {@link it.polimi.geinterface.DistanceRange} of the beacons it sees
+	 */
+	public static final long PRESENCE_REFRESH_PERIOD = 60000;
+
+	/**
+	 * QoS of the presence record: a lost record is superseded by the next one, and retained anyway by the broker
+	 */
+	private static final int PRESENCE_QOS = 1;
+
+	/**
+	 * Beacons seen by selfEntity, published in its presence record
+	 */
+	private List<Entity> presenceBeacons = Collections.emptyList();
+
+	/**
+	 * Time the presence record of selfEntity was last published
+	 */
+	private long presencePublishedAt;
+
+	/**
+	 * <code>true</code> if a publication of the presence record of selfEntity is scheduled on {@link #presenceTimer}
+	 */
+	private boolean presencePending = false;
+
+	private Timer presenceTimer;
+
+	/**
+	 * Topics subscribed, restored with a single batched subscription at every (re)connection
+	 */
+	private final Set<String> subscriptions = new LinkedHashSet<String>();
+
+	/**
+	 * Topics unsubscribed while not connected: with a persistent session, the broker still has them
+	 */
+	private final Set<String> staleSubscriptions = new LinkedHashSet<String>();
+
+	/**
+	 * {@link ConnectionManager} choosing the broker and the delay of each connection attempt
+	 */
+	private volatile ConnectionManager connectionManager;
+
+	private ActionOutcomeCallback onConnectedCallback;
+
+	private Timer reconnectTimer;
+
+	/**
+	 * <code>true</code> if the client must not (re)connect, i.e. before {@link #connect(List, ActionOutcomeCallback)}
+	 * and after {@link #disconnect()}
+	 */
+	private volatile boolean stopped = true;
+
+	private boolean persistentSession = true;
+
+	/**
+	 * Dispatcher handling the messages received in a separate lane for each {@link MessageLane}
+	 */
+	private final InboundDispatcher dispatcher = new InboundDispatcher();
+
 
 	private MqttCallback MQTTCallback= new MqttCallback() {
 
 		@Override
-		public void messageArrived(String topic, MqttMessage msg) throws Exception {
+		public void messageArrived(final String topic, final MqttMessage msg) throws Exception {
+
+			//payloads that are not messages of the framework are not decoded
+			for(Map.Entry<String, RawMessageCallback> raw : rawCallbacks.entrySet())
+				if(topic.startsWith(raw.getKey())){
+					raw.getValue().onRawMessageReceived(topic, msg.getPayload());
+					return;
+				}
 
 			if(messageArrivedCallback== null)
 				return;
 
-			String m = new String(msg.getPayload());
-			messageArrivedCallback.onMessageReceived(m);		//Notify GroupEntityManager about the message arrived
+			//the removal of a retained state (by the will message or by a check out) means the entity left
+			if(msg.getPayload().length == 0 && topic.startsWith(MessageTopic.STATE.name() + "/")){
+				final InboundMessage m = InboundMessage.stateRemoved(topic.substring(MessageTopic.STATE.name().length() + 1));
+				dispatcher.dispatch(MessageLane.of(m.getType()), new Runnable() {
+
+					@Override
+					public void run() {
+						deliver(m);
+					}
+				}, System.nanoTime());
+				return;
+			}
+
+			//the removal of any other retained message (e.g. the closed marker of a SYNC_REQ) carries nothing
+			if(msg.getPayload().length == 0)
+				return;
+
+			long receivedAt = System.nanoTime();
+
+			//proximity topics are decoded in their lane, other messages here to find their lane
+			if(MessageLane.of(topic) == MessageLane.BULK){
+				dispatcher.dispatch(MessageLane.BULK, new Runnable() {
+
+					@Override
+					public void run() {
+						deliver(decode(topic, msg));
+					}
+				}, receivedAt);
+				return;
+			}
+
+			final InboundMessage m = decode(topic, msg);
+			if(m == null)
+				return;
+
+			dispatcher.dispatch(MessageLane.of(m.getType()), new Runnable() {
+
+				@Override
+				public void run() {
+					deliver(m);
+				}
+			}, receivedAt);
+		}
+
+		/**
+		 * Method that parses a message received. The payload is parsed only once, here.
+		 * @return the message, or <code>null</code> if it has to be discarded
+		 */
+		private InboundMessage decode(String topic, MqttMessage msg){
+			InboundMessage m = codec.decode(msg.getPayload());
+
+			if(m == null){
+				Log.e(TAG, "Discarded message not valid on topic " + topic);
+				return null;
+			}
+
+			//a retained CHECK_OUT (left by older versions) refers to an entity that left before the subscription
+			if(msg.isRetained() && m.getType() == MessageType.CHECK_OUT)
+				return null;
+
+			//the delta messages of a sender are numbered separately on each stream
+			if(m.getType() == MessageType.PROX_BEACONS && m.getSequence() >= 0)
+				return m.withStream(MessageUtils.getProximityStream(topic));
+
+			return m;
+		}
+
+		private void deliver(InboundMessage m){
+			MessageCallback callback = messageArrivedCallback;
+			if(m != null && callback != null)
+				callback.onMessageReceived(m);		//Notify GroupEntityManager about the message arrived
 		}
 
 		@Override
@@ -85,13 +269,20 @@ public class MQTTPahoClient {
 			Log.e(TAG, "Conn lost! - " + (cause == null ? "" : cause.getLocalizedMessage()));
 
 			//If unexpected disconnection
-			if(cause != null && connStateCallback != null)
-				connStateCallback.onDisconnected();		//notify it to the client app
+			if(cause != null){
+				if(connStateCallback != null)
+					connStateCallback.onDisconnected();		//notify it to the client app
+
+				if(!stopped){
+					connectionManager.onConnectionLost();
+					scheduleReconnect();
+				}
+			}
 		}
 	};
 
 	/**
-	 * Value that sets the qos to use in subscriptions and message send
+	 * Value that sets the qos to use in subscriptions (messages are published with the QoS of {@link #deliveryPolicy})
 	 */
 	private int qos = 2;
 
@@ -109,29 +300,45 @@ public class MQTTPahoClient {
 
 	public MQTTPahoClient(Context ctx, Entity selfEntity, SecurityManager securityManager,
 			ConnectionStateCallback connCallback) {
+		this(ctx, selfEntity, securityManager, connCallback, new JsonMessageCodec());
+	}
+
+	/**
+	 * @param codec - the {@link MessageCodec} used to encode published messages
+	 */
+	public MQTTPahoClient(Context ctx, Entity selfEntity, SecurityManager securityManager,
+			ConnectionStateCallback connCallback, MessageCodec codec) {
 
 		//Save instance variables
 		this.selfEntity = selfEntity;
+		this.codec = codec;
 		this.connStateCallback = connCallback;
 		this.securityManager = securityManager;
 		appCtx = ctx;
 
 		netConnOptions = new MqttConnectOptions();
 
-		//build will msg (if necessary)
-		if(securityManager.check_group_changes_enabled()){
-			willMsg = MessageUtils.buildCheckOutMessage(selfEntity, true).getBytes();
-			netConnOptions.setWill(MessageTopic.BROADCAST.name(),
-					willMsg, 2, true);
-		}
+		//will msg: an empty retained message, removing the presence record from the state topic. It is set even in
+		//ghost mode, since the will cannot change on the current connection when the ghost mode is disabled
+		netConnOptions.setWill(MessageUtils.getStateTopic(selfEntity.getEntityID()),
+				new byte[0], deliveryPolicy.getQos(MessageType.CHECK_OUT), true);
 
-		netConnOptions.setCleanSession(true);
+		netConnOptions.setCleanSession(!persistentSession);
 		netConnOptions.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
 		netConnOptions.setKeepAliveInterval(15);
 
 		//SSL setup (if needed)
 		if(securityManager.check_use_SSL())
 			netConnOptions.setSocketFactory(securityManager.getSSLSocketFactory());
+
+		//messages published while not connected are kept on disk until the next connection
+		try {
+			publisher.setBuffer(OutboundBuffer.open(new File(ctx.getFilesDir(), BUFFER_FILE),
+					OutboundBuffer.DEFAULT_SIZE));
+		} catch (IOException e) {
+			Log.e(TAG, "Outbound buffer not available: messages published while not connected are discarded");
+			e.printStackTrace();
+		}
 	}
 
 
@@ -140,40 +347,41 @@ public class MQTTPahoClient {
 	 * is called on connection succesfully performed.
 	 */
 	public void connect(String host, final ActionOutcomeCallback onConnected){
-		try {
-			if(networkClient != null && networkClient.isConnected())
-				return;
-			
-			networkClient = new MqttAndroidClient(appCtx, host,  selfEntity.getEntityID());
-
-			this.HOST = host;
-
-			networkClient.setCallback(MQTTCallback);
-
-			//DEBUG CODE
-			networkClient.setTraceEnabled(false);
-			networkClient.setTraceCallback(new MqttTraceHandler() {
-
-				@Override
-				public void traceException(String source, String message, Exception e) {
-					Log.e(TAG, message + "\n " + ((e == null) ? "" : e.getLocalizedMessage()));
-				}
+		connect(Collections.singletonList(host), onConnected);
+	}
 
-				@Override
-				public void traceError(String source, String message) {
-					Log.e(TAG,source + " - " + message );				
-				}
+	/**
+	 * Method that connects to one of the passed hosts, chosen by the {@link ConnectionManager}. Failed attempts and
+	 * unexpected disconnections are followed by new attempts (possibly to another host) until {@link #disconnect()}
+	 * is called. The {@link ActionOutcomeCallback#onCompleted()} method is called at every connection succesfully
+	 * performed, once the subscriptions have been requested again.
+	 * @param hosts - URIs of the brokers, in order of preference
+	 */
+	public synchronized void connect(List<String> hosts, final ActionOutcomeCallback onConnected){
+		if(networkClient != null && networkClient.isConnected())
+			return;
 
-				@Override
-				public void traceDebug(String source, String message) {
-					Log.d(TAG,source + " - " + message );				
+		connectionManager = new ConnectionManager(hosts);
+		onConnectedCallback = onConnected;
+		stopped = false;
+		attemptConnection();
+	}
 
-				}
-			});
-			//END DEBUG CODE
+	private synchronized void attemptConnection(){
+		if(stopped)
+			return;
 
+		final String host = connectionManager.nextBroker();
+		try {
+			//the client is replaced only when the broker changes, to resume the session
+			if(networkClient == null || !host.equals(networkClient.getServerURI())){
+				if(networkClient != null)
+					networkClient.close();
+				networkClient = createClient(host);
+			}
 
 			Log.i(TAG, "New connection attempt to " + host);
+			final long start = System.nanoTime();
 
 			//perform the connection attempt
 			networkClient.connect(netConnOptions,null ,new IMqttActionListener() {
@@ -181,29 +389,176 @@ public class MQTTPahoClient {
 				@Override
 				public void onSuccess(IMqttToken token) {
 					Log.i(TAG, "Connected to router");
-					onConnected.onCompleted();
+					connectionManager.onConnected(host, System.nanoTime() - start);
+					restoreSubscriptions();
+					publisher.onConnected();
+					onConnectedCallback.onCompleted();
 				}
 
 				@Override
 				public void onFailure(IMqttToken token, Throwable arg1) {
 					Log.e(TAG, "Connection Failure");
+					connectionManager.onAttemptFailed(host);
 					if(connStateCallback != null)
 						connStateCallback.onConnectionFailed();
+					scheduleReconnect();
 				}
 			});		
 
 		} catch (MqttException e) {
 			Log.e(TAG, "Client connection error");
 			e.printStackTrace();
+			connectionManager.onAttemptFailed(host);
+			scheduleReconnect();
 		}
+	}
+
+	private MqttAndroidClient createClient(String host){
+		MqttAndroidClient ret = new MqttAndroidClient(appCtx, host,  selfEntity.getEntityID());
+		publisher.setClient(ret);
+
+		ret.setCallback(MQTTCallback);
+
+		//DEBUG CODE
+		ret.setTraceEnabled(false);
+		ret.setTraceCallback(new MqttTraceHandler() {
+
+			@Override
+			public void traceException(String source, String message, Exception e) {
+				Log.e(TAG, message + "\n " + ((e == null) ? "" : e.getLocalizedMessage()));
+			}
+
+			@Override
+			public void traceError(String source, String message) {
+				Log.e(TAG,source + " - " + message );				
+			}
+
+			@Override
+			public void traceDebug(String source, String message) {
+				Log.d(TAG,source + " - " + message );				
+
+			}
+		});
+		//END DEBUG CODE
 
+		return ret;
 	}
 
+	private synchronized void scheduleReconnect(){
+		if(stopped)
+			return;
+
+		long delay = connectionManager.nextDelay();
+		Log.i(TAG, "Reconnecting in " + delay + " ms");
+		if(reconnectTimer == null)
+			reconnectTimer = new Timer(TAG, true);
+		reconnectTimer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				attemptConnection();
+			}
+		}, delay);
+	}
+
+	/**
+	 * Method that requests all the subscriptions again with a single batched call, after a connection: they
+	 * are lost with a new session (or a new broker), and harmlessly repeated if the session is resumed
+	 */
+	private void restoreSubscriptions(){
+		String[] topics, stale;
+		synchronized (subscriptions) {
+			topics = subscriptions.toArray(new String[subscriptions.size()]);
+			stale = staleSubscriptions.toArray(new String[staleSubscriptions.size()]);
+			staleSubscriptions.clear();
+		}
+
+		try {
+			if(stale.length > 0)
+				networkClient.unsubscribe(stale);
+
+			if(topics.length == 0){
+				connectionManager.onRecovered();
+				return;
+			}
+
+			int[] qosArray = new int[topics.length];
+			Arrays.fill(qosArray, qos);
+			networkClient.subscribe(topics, qosArray, null, new IMqttActionListener() {
+
+				@Override
+				public void onSuccess(IMqttToken token) {
+					connectionManager.onRecovered();
+				}
+
+				@Override
+				public void onFailure(IMqttToken token, Throwable cause) {
+					Log.e(TAG, "Subscriptions not restored");
+				}
+			});
+		} catch (MqttException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Method that enables or disables persistent sessions: with a persistent session, the broker keeps the
+	 * subscriptions and the QoS 1 and 2 messages for this device while it is not connected. It has to be called
+	 * before {@link #connect(List, ActionOutcomeCallback)}.
+	 */
+	public synchronized void setPersistentSession(boolean persistentSession){
+		this.persistentSession = persistentSession;
+		netConnOptions.setCleanSession(!persistentSession);
+	}
 
 	/**
-	 * Method that publishes a message on the given topic
+	 * Method returning the {@link ConnectionManager} of the current connection, e.g. to monitor the time to
+	 * recovery after a disconnection, or <code>null</code> if {@link #connect(List, ActionOutcomeCallback)} has
+	 * not been called
 	 */
-	public void publishMessage(String topic, String msg){
+	public ConnectionManager getConnectionManager() {
+		return connectionManager;
+	}
+
+	/**
+	 * Method returning the {@link InboundDispatcher} handling the messages received, e.g. to monitor the latency
+	 * of each {@link MessageLane}
+	 */
+	public InboundDispatcher getInboundDispatcher() {
+		return dispatcher;
+	}
+
+
+	/**
+	 * Method that publishes a message on the given topic, with the QoS set for its {@link MessageType} by the
+	 * {@link DeliveryPolicy}. The message is queued and published asynchronously by the {@link OutboundPublisher};
+	 * if the client is not connected, it is kept in the {@link OutboundBuffer} as long as the {@link DeliveryPolicy} allows.
+	 * @param type - the {@link MessageType} of the message
+	 */
+	public void publishMessage(String topic, MessageType type, String msg){
+		publisher.publish(topic, codec.encode(msg), deliveryPolicy.getQos(type), false, type);
+	}
+
+	/**
+	 * Method that publishes a message retained by the broker, so that it is received also by the devices
+	 * subscribing to <code>topic</code> afterwards, until it is removed by {@link #clearRetained(String, MessageType)}
+	 */
+	public void publishRetainedMessage(String topic, MessageType type, String msg){
+		publisher.publish(topic, codec.encode(msg), deliveryPolicy.getQos(type), true, type);
+	}
+
+	/**
+	 * Method that removes the message of type <code>type</code> retained by the broker on <code>topic</code>
+	 */
+	public void clearRetained(String topic, MessageType type){
+		publisher.publish(topic, new byte[0], deliveryPolicy.getQos(type), true, type);
+	}
+
+	/**
+	 * Method that publishes a payload that is not a message of the framework (it is not encoded by the {@link MessageCodec})
+	 * @param retained - <code>true</code> if the broker has to retain the message for future subscribers
+	 */
+	public void publishRaw(String topic, byte[] payload, int qos, boolean retained){
 
 		if(networkClient == null){
 			Log.e(TAG, "MQTT CLIENT NOT CONNECTED");
@@ -213,21 +568,54 @@ public class MQTTPahoClient {
 		if(!networkClient.isConnected())
 			return;
 
-		try {
-			networkClient.publish(topic, msg.getBytes(), qos, false);
-		} catch (MqttException e) {
-			e.printStackTrace();
-		}
+		publisher.publish(topic, payload, qos, retained);
+	}
+
+	/**
+	 * Method that registers the {@link RawMessageCallback} receiving the messages on the topics starting with
+	 * <code>topicPrefix</code>, that are not decoded by the {@link MessageCodec}
+	 * @param callback - the callback, or <code>null</code> to remove it
+	 */
+	public void setRawMessageCallback(String topicPrefix, RawMessageCallback callback){
+		if(callback == null)
+			rawCallbacks.remove(topicPrefix);
+		else
+			rawCallbacks.put(topicPrefix, callback);
+	}
+
+	public void setDeliveryPolicy(DeliveryPolicy deliveryPolicy) {
+		this.deliveryPolicy = deliveryPolicy;
+		publisher.setDeliveryPolicy(deliveryPolicy);
+	}
+
+	public DeliveryPolicy getDeliveryPolicy() {
+		return deliveryPolicy;
 	}
 
+	/**
+	 * Method returning the {@link OutboundPublisher} queueing the messages published, e.g. to monitor its queue
+	 * depth and publish latency, or to change its in-flight window
+	 */
+	public OutboundPublisher getOutboundPublisher() {
+		return publisher;
+	}
 
+
+	/**
+	 * Method that subscribes <code>topic</code>. If the client is not connected, the subscription is requested
+	 * once connected: subscriptions are restored automatically at every connection.
+	 */
 	public void susbcribe(String topic){
 
-		if(networkClient == null){
-			Log.e(TAG, "MQTT CLIENT NOT CONNECTED");
-			return;
+		synchronized (subscriptions) {
+			staleSubscriptions.remove(topic);
+			if(!subscriptions.add(topic))
+				return;
 		}
 
+		if(networkClient == null || !networkClient.isConnected())
+			return;
+
 		try {
 			networkClient.subscribe(topic, qos);
 		} catch (MqttException e) {
@@ -236,11 +624,18 @@ public class MQTTPahoClient {
 	}
 
 	public void unsusbcribe(String topic){
-		if(networkClient == null){
-			Log.e(TAG, "MQTT CLIENT NOT CONNECTED");
-			return;
+
+		boolean connected = (networkClient != null && networkClient.isConnected());
+		synchronized (subscriptions) {
+			if(!subscriptions.remove(topic))
+				return;
+			if(!connected && persistentSession)
+				staleSubscriptions.add(topic);
 		}
 
+		if(!connected)
+			return;
+
 		try {
 			networkClient.unsubscribe(topic);
 		} catch (MqttException e) {
@@ -250,96 +645,138 @@ public class MQTTPahoClient {
 
 
 	/**
-	 * Method that performs the will message update process in an almost transparent way for the {@link GroupEntityManager}
-	 * @param oldEntity - the "old" selfEntity, before the update of the propertiess
-	 * @param newEntity - the "new" selfEntity with the updated properties
-	 * @param onConnected
+	 * Method that publishes the current state of selfEntity, retained on its state topic (see
+	 * {@link MessageUtils#getStateTopic(String)}): its presence record if <code>present</code>, otherwise the same
+	 * empty message used as will message, removing the record
 	 */
-	public void onSelfEntityUpdate(Entity oldEntity, final Entity newEntity, Boolean forGhostMode, 
-			final ActionOutcomeCallback onConnected){
+	public synchronized void publishState(boolean present){
 
-		if(networkClient == null){
-			Log.e(TAG, "MQTT CLIENT NOT CONNECTED");
+		if(!present){
+			publisher.publish(MessageUtils.getStateTopic(selfEntity.getEntityID()), new byte[0],
+					deliveryPolicy.getQos(MessageType.CHECK_OUT), true, MessageType.CHECK_OUT);
 			return;
 		}
 
-		//Check wether the will msg has to be set or not
-		if(securityManager.check_group_changes_enabled()){
-			willMsg = MessageUtils.buildCheckOutMessage(newEntity, true).getBytes();
-			Log.w(TAG, new String(willMsg));
+		presencePublishedAt = System.currentTimeMillis();
+		String msg = MessageUtils.buildPresenceMessage(selfEntity, presenceBeacons, presencePublishedAt,
+				selfEntity.getEntityID());
+		publisher.publish(MessageUtils.getStateTopic(selfEntity.getEntityID()), codec.encode(msg),
+				PRESENCE_QOS, true, MessageType.CHECK_IN);
+	}
 
-			netConnOptions.setWill(MessageTopic.BROADCAST.name(),
-					willMsg,
-					2, true);
-		}
-		else {
-			//if not a special topic is used to set the will msg in order to avoid that someone receives it as a mistake
-			netConnOptions.setWill("$", "".getBytes(), 0, false);
-		}
+	/**
+	 * Method that sets the beacons seen by selfEntity, published in its presence record. The record is published
+	 * again when the set of beacons changes, at most once every {@link #PRESENCE_MIN_INTERVAL} milliseconds (the
+	 * last change is published once the interval has elapsed). A change of their distances alone is published
+	 * only if the record is older than {@link #PRESENCE_REFRESH_PERIOD}.
+	 */
+	public synchronized void updatePresenceBeacons(List<Entity> beacons){
 
-		try {
-			if(securityManager.check_group_changes_enabled() && !forGhostMode){
-				Log.i(TAG, "publishing FALSE checkout message");
+		Map<String, DistanceRange> old = beaconDistances(presenceBeacons);
+		Map<String, DistanceRange> current = beaconDistances(beacons);
+		if(old.equals(current))
+			return;
+		presenceBeacons = Collections.unmodifiableList(new ArrayList<Entity>(beacons));
 
+		//in ghost mode the record is not published
+		if(presencePending || stopped || !securityManager.check_group_changes_enabled())
+			return;
 
-				networkClient.publish(MessageTopic.BROADCAST.name(),
-						MessageUtils.buildCheckOutMessage(oldEntity, false).getBytes(),
-						2, false);
-			}
+		long now = System.currentTimeMillis();
+		if(old.keySet().equals(current.keySet())){
+			if(now - presencePublishedAt >= PRESENCE_REFRESH_PERIOD)
+				publishState(true);
+			return;
+		}
 
-			//perform the disconnect and reconnect process
-			networkClient.disconnect(5000,null, new IMqttActionListener() {
+		long delay = presencePublishedAt + PRESENCE_MIN_INTERVAL - now;
+		if(delay <= 0){
+			publishState(true);
+			return;
+		}
 
-				@Override
-				public void onSuccess(IMqttToken arg0) {
-
-					try {
-						Log.i(TAG, "Disconnection success");
-						networkClient = new MqttAndroidClient(appCtx, HOST, newEntity.getEntityID());
-						networkClient.setCallback(MQTTCallback);
-						networkClient.connect(netConnOptions, null, new IMqttActionListener() {
-
-							@Override
-							public void onSuccess(IMqttToken arg0) {
-								onConnected.onCompleted();
-							}
-
-							@Override
-							public void onFailure(IMqttToken arg0, Throwable arg1) {
-								Log.e(TAG, "Disconnect Failure!");
-								if(connStateCallback != null)
-									connStateCallback.onConnectionFailed();
-							}
-						});
-
-					} catch (MqttException e) {
-						e.printStackTrace();
-					}
+		presencePending = true;
+		if(presenceTimer == null)
+			presenceTimer = new Timer(TAG, true);
+		presenceTimer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				synchronized (MQTTPahoClient.this) {
+					presencePending = false;
+					if(!stopped && securityManager.check_group_changes_enabled())
+						publishState(true);
 				}
+			}
+		}, delay);
+	}
 
-				@Override
-				public void onFailure(IMqttToken arg0, Throwable arg1) {
-					Log.e(TAG, "Failed disconnection");
-				}
-			});
+	private static Map<String, DistanceRange> beaconDistances(List<Entity> beacons){
+		HashMap<String, DistanceRange> ret = new HashMap<String, DistanceRange>();
+		for(Entity b : beacons)
+			ret.put(b.getEntityID(), b.getDistanceRange());
+		return ret;
+	}
 
-		} catch (MqttException e) {
-			e.printStackTrace();
-		}
+	/**
+	 * Method that applies an update of selfEntity (or of the ghost mode) over the current connection: the will
+	 * message does not depend on the properties, so only the state retained on the state topic is replaced.
+	 * @param oldEntity - the "old" selfEntity, before the update of the propertiess
+	 * @param newEntity - the "new" selfEntity with the updated properties
+	 * @param onCompleted - called once the new state has been queued for publication
+	 */
+	public void onSelfEntityUpdate(Entity oldEntity, final Entity newEntity, Boolean forGhostMode, 
+			final ActionOutcomeCallback onCompleted){
+
+		selfEntity = newEntity;
+
+		//in ghost mode the entity appears as disconnected
+		publishState(securityManager.check_group_changes_enabled());
 
+		onCompleted.onCompleted();
 	}
 
 	public void disconnect(){
 
+		synchronized (this) {
+			stopped = true;
+			if(reconnectTimer != null){
+				reconnectTimer.cancel();
+				reconnectTimer = null;
+			}
+			if(presenceTimer != null){
+				presenceTimer.cancel();
+				presenceTimer = null;
+				presencePending = false;
+			}
+		}
+
 		if(networkClient == null || !networkClient.isConnected())
 			return;
-		try {
-			if(securityManager.check_group_changes_enabled())
-				networkClient.publish(MessageTopic.BROADCAST.name(), willMsg,2,false);
 
+		if(securityManager.check_group_changes_enabled()){
+			//devices not subscribed to the state topics are notified on BROADCAST
+			publisher.publish(MessageTopic.BROADCAST.name(),
+					codec.encode(MessageUtils.buildCheckOutMessage(selfEntity, true)),
+					deliveryPolicy.getQos(MessageType.CHECK_OUT));
+			publishState(false);
+		}
+
+		publisher.flush(FLUSH_TIMEOUT);
+		publisher.stop();
+
+		try {
 			//switch ad active per fare il flush sul server
 			//LoggerService.changeMode(appCtx, LogMod.active);
 
+			//the persistent session is kept by the broker: no messages have to be queued for this device
+			String[] topics;
+			synchronized (subscriptions) {
+				topics = subscriptions.toArray(new String[subscriptions.size()]);
+			}
+			if(persistentSession && topics.length > 0)
+				networkClient.unsubscribe(topics);
+
 			networkClient.disconnect();
 		} catch (MqttException e) {
 			e.printStackTrace();
@@ -26,8 +26,10 @@ public interface MessageCallback {
 
 	/**
 	 * This method represents callback relative to message received by the {@link GroupEntityManager} from other peers,
-	 * and contains the code to handle them
+	 * and contains the code to handle them. It is called by the thread of the {@link MessageLane} of the message, so
+	 * messages of different lanes can be handled concurrently.
+	 * @param message - the {@link InboundMessage} parsed from the payload received
 	 */
-	public void onMessageReceived(String message);
+	public void onMessageReceived(InboundMessage message);
 
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.network;
+
+
+/**
+ * Encoding of the framework messages on the wire. Messages are built by {@link MessageUtils} in JSON format and
+ * encoded by the {@link MessageCodec} selected when the {@link MQTTPahoClient} is created; every codec is able to
+ * decode the payloads produced by all the others, recognizing them by their first byte, so that clients using
+ * different codecs can coexist on the same broker.
+ */
+public interface MessageCodec {
+
+	/**
+	 * Method that encodes a message into the payload to publish
+	 * @param message - the message, in JSON format, as built by {@link MessageUtils}
+	 */
+	public byte[] encode(String message);
+
+	/**
+	 * Method that decodes a received payload
+	 * @return the corresponding {@link InboundMessage}, or <code>null</code> if the payload is not valid
+	 */
+	public InboundMessage decode(byte[] payload);
+}
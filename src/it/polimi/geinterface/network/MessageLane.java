@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.network;
+
+/**
+ * Inbound lanes of {@link MQTTPahoClient}: the messages of each lane are dispatched in order by their own thread,
+ * so that a burst of proximity messages does not delay the membership ones
+ *
+ */
+public enum MessageLane {
+
+	/**
+	 * {@link MessageType#CHECK_IN}, {@link MessageType#CHECK_OUT}, {@link MessageType#PROPERTIES_UPDATE},
+	 * {@link MessageType#SYNC_REQ} and {@link MessageType#SYNC_RESP}
+	 */
+	CONTROL,
+
+	/**
+	 * Proximity chatter, i.e. the {@link MessageType}s published on {@link MessageTopic#PROXIMITY} (see
+	 * {@link MessageUtils#getMsgTopic(MessageType)}): {@link MessageType#PROX_BEACONS} and
+	 * {@link MessageType#PROXIMITY_UPDATE}
+	 */
+	BULK;
+
+	/**
+	 * Method returning the lane of the messages of {@link MessageType} <code>type</code>
+	 */
+	public static MessageLane of(MessageType type){
+		return (MessageUtils.getMsgTopic(type) == MessageTopic.PROXIMITY) ? BULK : CONTROL;
+	}
+
+	/**
+	 * Method returning the lane of all the messages received on <code>topic</code>, or <code>null</code> if it
+	 * depends on their {@link MessageType}
+	 */
+	static MessageLane of(String topic){
+		return topic.startsWith(MessageTopic.PROXIMITY.name()) ? BULK : null;
+	}
+}
@@ -28,5 +28,7 @@ public enum MessageTopic {
 
 	BROADCAST,
 	PROXIMITY,
-	GROUP 
+	GROUP,
+	INTEREST,
+	STATE
 }
@@ -28,10 +28,12 @@ import it.polimi.geinterface.DAO.Group;
 import it.polimi.geinterface.DAO.JsonStrings;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
@@ -45,23 +47,8 @@ public class MessageUtils {
 	 * Method retrieving message type form a {@link String} representing the message received.
 	 */
 	public static MessageType getMsgType(String msgJson){
-
-		JSONParser parser = new JSONParser();
-		JSONObject jsonMsg;
-		String msgType = "";
-		try {
-			jsonMsg = (JSONObject) parser.parse(msgJson);
-			JSONObject message = (JSONObject) jsonMsg.get(JsonStrings.MESSAGE);
-			msgType = ((String) message.get(JsonStrings.MSG_TYPE)).toUpperCase().trim();
-		} catch (ParseException e) {
-			e.printStackTrace();
-		}
-
-		for(MessageType type : MessageType.values())
-			if(type.name().equals(msgType))
-				return type;
-
-		return null;	
+		InboundMessage msg = InboundMessage.parse(msgJson);
+		return (msg == null) ? null : msg.getType();
 	}
 
 
@@ -69,18 +56,8 @@ public class MessageUtils {
 	 * Method that return the sender {@link Entity} identifier from a message 
 	 */
 	public static String getSenderID(String msgJson){
-		JSONParser parser = new JSONParser();
-		JSONObject jsonMsg;
-		String senderID = "";
-		try {
-			jsonMsg = (JSONObject) parser.parse(msgJson);
-			JSONObject message = (JSONObject) jsonMsg.get(JsonStrings.MESSAGE);
-			senderID = (String)message.get(JsonStrings.SENDER);
-			return senderID;
-		} catch (ParseException e) {
-			e.printStackTrace();
-		}
-		return null;
+		InboundMessage msg = InboundMessage.parse(msgJson);
+		return (msg == null) ? null : msg.getSenderID();
 	}
 
 
@@ -89,7 +66,7 @@ public class MessageUtils {
 	 */
 	public static MessageTopic getMsgTopic(MessageType type){
 
-		if(type.equals(MessageType.PROXIMITY_UPDATE))
+		if(type.equals(MessageType.PROXIMITY_UPDATE) || type.equals(MessageType.PROX_BEACONS))
 			return MessageTopic.PROXIMITY;
 
 		if(type.equals(MessageType.PROPERTIES_UPDATE))
@@ -98,6 +75,73 @@ public class MessageUtils {
 		return MessageTopic.BROADCAST;
 	}
 
+	/**
+	 * Method that returns the shard of {@link MessageTopic#PROXIMITY} where {@link MessageType#PROX_BEACONS} messages
+	 * about the beacons having UUID <code>uuid</code> are published, in the form <code>PROXIMITY/uuid[/major]</code>
+	 * @param major - major of the beacons, or <code>null</code> for the shard of the whole UUID
+	 */
+	public static String getProximityShardTopic(String uuid, String major){
+		String topic = MessageTopic.PROXIMITY.name() + "/" + uuid.toLowerCase();
+		return (major == null) ? topic : topic + "/" + major;
+	}
+
+	/**
+	 * Method that returns the topic filter matching all the shards of {@link MessageTopic#PROXIMITY} of the beacons
+	 * having UUID <code>uuid</code>, whatever their major
+	 */
+	public static String getProximityShardFilter(String uuid){
+		return getProximityShardTopic(uuid, null) + "/#";
+	}
+
+	/**
+	 * Method that returns the stream of {@link MessageType#PROX_BEACONS} messages published on <code>topic</code>:
+	 * the sender numbers its messages separately on {@link MessageTopic#PROXIMITY} and on the shards of each UUID
+	 * (whatever their major), since each of them is received through a different subscription
+	 */
+	public static String getProximityStream(String topic){
+		int uuidEnd = topic.indexOf('/', MessageTopic.PROXIMITY.name().length() + 1);
+		return (uuidEnd < 0) ? topic : topic.substring(0, uuidEnd);
+	}
+
+	/**
+	 * Method that returns the topic where the current state of the {@link Entity} having id <code>entityId</code>
+	 * is retained: its presence record (see {@link #buildPresenceMessage(Entity, List, long, String)}) while it is
+	 * connected. The record is removed when it leaves, and subscribers receive an empty message.
+	 */
+	public static String getStateTopic(String entityId){
+		return MessageTopic.STATE.name() + "/" + entityId;
+	}
+
+	/**
+	 * Method that returns the topic where the requester of a {@link MessageType#SYNC_REQ} announces, with a
+	 * {@link MessageType#SYNC_RESP} of its own, that it received enough responses
+	 * @param replyTopic - the reply topic of the {@link MessageType#SYNC_REQ}
+	 */
+	public static String getSyncClosedTopic(String replyTopic){
+		return replyTopic + "/CLOSED";
+	}
+
+	/**
+	 * Method that returns the topic where the aggregated {@link MessageType#SYNC_RESP} reporting the entities near
+	 * the beacon <code>anchor</code> is published: it is received both by the requester and by those entities
+	 * @param replyTopic - the reply topic of the {@link MessageType#SYNC_REQ}
+	 */
+	public static String getSyncAggregateTopic(String replyTopic, Entity anchor){
+		return replyTopic + "/" + anchor.getEntityID();
+	}
+
+	/**
+	 * Method that returns the topic filter matching the topics returned by {@link #getSyncClosedTopic(String)} and
+	 * {@link #getSyncAggregateTopic(String, Entity)} for every {@link MessageType#SYNC_REQ} of the requester that
+	 * sent the one having reply topic <code>replyTopic</code>, but not its reply topics
+	 */
+	public static String getSyncObservedFilter(String replyTopic){
+		int i = replyTopic.lastIndexOf('/');
+		if(i < 0)
+			return replyTopic + "/+";
+		return replyTopic.substring(0, i) + "/+/+";
+	}
+
 	/**
 	 * Method that returns an {@link Entity} from a message, dealing woth different {@link MessageType}.
 	 * 
@@ -107,54 +151,16 @@ public class MessageUtils {
 	 */
 	public static Entity getEntityFromMessage(int position, String message){
 
-		JSONObject jsonMsg;
-		JSONParser parser = new JSONParser();
-		MessageType type = getMsgType(message);
-
-		if(position == 1){
-			switch (type) {
-			case PROXIMITY_UPDATE:
-				try {
-					jsonMsg = (JSONObject) parser.parse(message);
-					JSONObject msg = (JSONObject) jsonMsg.get(JsonStrings.MESSAGE);
-					JSONObject jsonEntity = (JSONObject) msg.get(JsonStrings.ENTITY_1);
-					return createEntity(type, jsonEntity);
-				} catch (ParseException e) {
-					e.printStackTrace();
-				}				
-				break;
-			case PROPERTIES_UPDATE:
-			case PROX_BEACONS:
-			case SYNC_RESP:
-			case CHECK_IN:
-			case CHECK_OUT:
-				try {
-					jsonMsg = (JSONObject) parser.parse(message);
-					JSONObject msg = (JSONObject) jsonMsg.get(JsonStrings.MESSAGE);
-					JSONObject jsonEntity = (JSONObject) msg.get(JsonStrings.ENTITY);
-					return createEntity(type, jsonEntity);
-				} catch (ParseException e) {
-					e.printStackTrace();
-				}
-			default: 
-				return null;
-			}
-			return null;
-		}
+		InboundMessage msg = InboundMessage.parse(message);
 
-		if(position == 2){
-			if(type.ordinal() == MessageType.PROXIMITY_UPDATE.ordinal()){
-				try {
-					jsonMsg = (JSONObject) parser.parse(message);
-					JSONObject msg = (JSONObject) jsonMsg.get(JsonStrings.MESSAGE);
-					JSONObject jsonEntity = (JSONObject) msg.get(JsonStrings.ENTITY_2);
-					return createEntity(type, jsonEntity);
-				} catch (ParseException e) {
-					e.printStackTrace();
-				}	
-			}
+		if(msg == null)
 			return null;
-		}
+
+		if(position == 1)
+			return msg.getEntity1();
+
+		if(position == 2)
+			return msg.getEntity2();
 
 		return null;
 	}
@@ -164,175 +170,53 @@ public class MessageUtils {
 	 * {@link MessageType#SYNC_RESP}
 	 */
 	public static ArrayList<Entity> getBeaconsFromMsg(String message){
-
-		JSONObject jsonMsg;
-		JSONParser parser = new JSONParser();
-		MessageType type = getMsgType(message);
-
-		if(type.ordinal() == MessageType.PROX_BEACONS.ordinal() ||
-				type.ordinal() == MessageType.SYNC_REQ.ordinal())
-			try {
-				jsonMsg = (JSONObject) parser.parse(message);
-				JSONObject msg = (JSONObject) jsonMsg.get(JsonStrings.MESSAGE);
-				JSONArray beaconsJsonArray = (JSONArray) msg.get(JsonStrings.BEACONS);
-				ArrayList<Entity> beacons = new ArrayList<>();
-				for(Object o : beaconsJsonArray){
-					JSONObject beaconJsonObject = (JSONObject) o;
-					String beaconId = (String)beaconJsonObject.get(JsonStrings.BEACON_ID);
-					String jsonDistance = (String) beaconJsonObject.get(JsonStrings.DISTANCE_RANGE);
-					DistanceRange distance = null;
-					for(DistanceRange d : DistanceRange.values())
-						if(d.name().equals(jsonDistance))
-							distance = d;
-					Entity beacon = new Entity.Builder(beaconId, Type.BLE_BEACON)
-					.setDistance(distance)
-					.build();
-					beacons.add(beacon);
-				}
-				return beacons;
-			} catch (ParseException e) {
-				e.printStackTrace();
-			}	
-		return null;
+		InboundMessage msg = InboundMessage.parse(message);
+		return (msg == null) ? null : msg.getBeacons();
 	}
 
 	/**
 	 * Method returning the {@link DistanceRange} reported in a message having type {@link MessageType#PROPERTIES_UPDATE}
 	 */
 	public static DistanceRange getDistanceRangeFromMessage(String message){
-
-		JSONObject jsonMsg;
-		JSONParser parser = new JSONParser();
-		MessageType type = getMsgType(message);
-
-		if(type.ordinal() == MessageType.PROXIMITY_UPDATE.ordinal() ||
-				type.ordinal() == MessageType.SYNC_RESP.ordinal() ||
-				type.ordinal() == MessageType.SYNC_REQ.ordinal()){
-			try {
-				jsonMsg = (JSONObject) parser.parse(message);
-				JSONObject msg = (JSONObject) jsonMsg.get(JsonStrings.MESSAGE);
-				String jsonDistance = (String) msg.get(JsonStrings.DISTANCE_RANGE);
-				for(DistanceRange d : DistanceRange.values())
-					if(d.name().equals(jsonDistance))
-						return d;
-			} catch (ParseException e) {
-				e.printStackTrace();
-			}	
-		}
-
-		return null;
+		InboundMessage msg = InboundMessage.parse(message);
+		return (msg == null) ? null : msg.getDistanceRange();
 	}
 
 	/**
 	 * Method returning a {@link Set} of oldProperties passing as parameter a message of type {@link MessageType#PROPERTIES_UPDATE}
 	 */
 	public static JSONObject getOldPropertiesFromMessage(String message){
-
-		JSONObject jsonMsg;
-		JSONParser parser = new JSONParser();
-		MessageType type = getMsgType(message);
-
-		if(type.ordinal() == MessageType.PROPERTIES_UPDATE.ordinal()){
-			try {
-				jsonMsg = (JSONObject) parser.parse(message);
-				JSONObject msg = (JSONObject) jsonMsg.get(JsonStrings.MESSAGE);
-				JSONObject jsonEntity = (JSONObject) msg.get(JsonStrings.ENTITY);
-				JSONObject jsonOldProp = (JSONObject) jsonEntity.get(JsonStrings.OLD_PROPERTIES);
-				/*
-				Set<String> oldProperties = new HashSet<String>();
-				for(Object o : jsonOldProp)
-					if(!o.toString().equals(""))
-						oldProperties.add(o.toString());
-				 */
-				return jsonOldProp;
-			} catch (ParseException e) {
-				e.printStackTrace();
-			}	
-		}
-
-		return null;
+		InboundMessage msg = InboundMessage.parse(message);
+		return (msg == null) ? null : msg.getOldProperties();
 	}
 
 	/**
 	 * Method returning the topic to use to send a {@link MessageType#SYNC_RESP} in reply to a corresponding request
 	 */
 	public static String getRequestTopicFromMessage(String message){
-
-		JSONObject jsonMsg;
-		JSONParser parser = new JSONParser();
-		MessageType type = getMsgType(message);
-
-		if(type.ordinal() == MessageType.SYNC_REQ.ordinal() ||
-				type.ordinal() == MessageType.SYNC_RESP.ordinal()){
-			try {
-				jsonMsg = (JSONObject) parser.parse(message);
-				JSONObject msg = (JSONObject) jsonMsg.get(JsonStrings.MESSAGE);
-				return (String) msg.get(JsonStrings.TOPIC_REPLY);
-			} catch (ParseException e) {
-				e.printStackTrace();
-			}
-		}
-
-		return null;
+		InboundMessage msg = InboundMessage.parse(message);
+		return (msg == null) ? null : msg.getRequestTopic();
 	}
 
 	/**
 	 * Method returning the "valid bit" value of a {@link MessageType#CHECK_OUT}
 	 */
 	public static boolean getValidBitFromMessage(String message){
-
-		JSONObject jsonMsg;
-		JSONParser parser = new JSONParser();
-		MessageType type = getMsgType(message);
-
-		if(type.ordinal() == MessageType.CHECK_OUT.ordinal()){
-			try {
-				jsonMsg = (JSONObject) parser.parse(message);
-				JSONObject msg = (JSONObject) jsonMsg.get(JsonStrings.MESSAGE);
-				return (Boolean) msg.get(JsonStrings.VALID);
-			} catch (ParseException e) {
-				e.printStackTrace();
-			}
-		}
-
-		return false;
+		InboundMessage msg = InboundMessage.parse(message);
+		return (msg == null) ? false : msg.isValid();
 	}
 
 	/**
 	 * Method returning the {@link Group} "serialized" in a {@link MessageType#SYNC_REQ}
 	 */
 	public static JSONObject getGroupFromMessage(String msg){
-
-		JSONObject jsonMsg;
-		JSONParser parser = new JSONParser();
-		MessageType type = getMsgType(msg);
-
-		if(type.ordinal() == MessageType.SYNC_REQ.ordinal()){
-			try {
-				jsonMsg = (JSONObject) parser.parse(msg);
-				JSONObject msgObject = (JSONObject) jsonMsg.get(JsonStrings.MESSAGE);
-				return (JSONObject) msgObject.get(JsonStrings.GROUP);
-			} catch (ParseException e) {
-				e.printStackTrace();
-			}		
-		}
-
-		return null;
+		InboundMessage m = InboundMessage.parse(msg);
+		return (m == null) ? null : m.getGroup();
 	}
 
 	public static String getLogIdFromMessage(String msg){
-		JSONObject jsonMsg;
-		JSONParser parser = new JSONParser();
-
-		try {
-			jsonMsg = (JSONObject) parser.parse(msg);
-			JSONObject msgObject = (JSONObject) jsonMsg.get(JsonStrings.MESSAGE);
-			return (String) msgObject.get(JsonStrings.LOG_ID);
-		} catch (ParseException e) {
-			e.printStackTrace();
-		}		
-
-		return null;
+		InboundMessage m = InboundMessage.parse(msg);
+		return (m == null) ? null : m.getLogId();
 	}
 
 
@@ -351,17 +235,12 @@ public class MessageUtils {
 	public static String buildProximityMessage(String senderID, MessageType type, Entity e1, 
 			Entity e2, DistanceRange distance, String logId){
 
-		JSONObject mesg = new JSONObject();
-		JSONObject proxMsg = new JSONObject();
-		proxMsg.put(JsonStrings.SENDER, senderID);
-		proxMsg.put(JsonStrings.MSG_TYPE, type.name());
-		proxMsg.put(JsonStrings.ENTITY_1, (JSONObject)e1.getJsonDescriptor().get(JsonStrings.ENTITY));
-		proxMsg.put(JsonStrings.ENTITY_2, (JSONObject)e2.getJsonDescriptor().get(JsonStrings.ENTITY));
-		proxMsg.put(JsonStrings.DISTANCE_RANGE, distance.name());
-		proxMsg.put(JsonStrings.LOG_ID, logId);
-		mesg.put(JsonStrings.MESSAGE, proxMsg);
-
-		return mesg.toJSONString();
+		StringBuilder msg = openMessage(senderID, type);
+		appendRaw(msg, JsonStrings.ENTITY_1, e1.getJsonFragment());
+		appendRaw(msg, JsonStrings.ENTITY_2, e2.getJsonFragment());
+		appendString(msg, JsonStrings.DISTANCE_RANGE, distance.name());
+		appendString(msg, JsonStrings.LOG_ID, logId);
+		return closeMessage(msg);
 	}
 
 
@@ -390,34 +269,35 @@ public class MessageUtils {
 	 * Method that builds a {@link MessageType#CHECK_IN} message relative to the passed {@link Entity}
 	 */
 	public static String buildCheckInMessage(Entity e, String logId){
-		JSONObject mesg = new JSONObject();
-		JSONObject checkInMsg = new JSONObject();
-		checkInMsg.put(JsonStrings.SENDER, e.getEntityID());
-		checkInMsg.put(JsonStrings.MSG_TYPE, MessageType.CHECK_IN.name());
-		checkInMsg.put(JsonStrings.ENTITY, ((JSONObject)e
-				.getJsonDescriptor()
-				.get(JsonStrings.ENTITY)));
-		checkInMsg.put(JsonStrings.LOG_ID, logId);
-		mesg.put(JsonStrings.MESSAGE, checkInMsg);
+		StringBuilder msg = openMessage(e.getEntityID(), MessageType.CHECK_IN);
+		appendRaw(msg, JsonStrings.ENTITY, e.getJsonFragment());
+		appendString(msg, JsonStrings.LOG_ID, logId);
+		return closeMessage(msg);
+	}
 
-		return mesg.toJSONString();
+	/**
+	 * Method that builds the presence record of the passed {@link Entity}, retained on its state topic: a
+	 * {@link MessageType#CHECK_IN} carrying also the beacons it sees and the time the record was built, so that
+	 * a device subscribing to the state topics of the others gets a snapshot of them at once
+	 * @param timestamp - time (in milliseconds) the record was built
+	 */
+	public static String buildPresenceMessage(Entity e, List<Entity> beacons, long timestamp, String logId){
+		StringBuilder msg = openMessage(e.getEntityID(), MessageType.CHECK_IN);
+		appendRaw(msg, JsonStrings.ENTITY, e.getJsonFragment());
+		appendBeacons(msg, JsonStrings.BEACONS, beacons);
+		appendRaw(msg, JsonStrings.TIMESTAMP, String.valueOf(timestamp));
+		appendString(msg, JsonStrings.LOG_ID, logId);
+		return closeMessage(msg);
 	}
 
 	/**
 	 * Method that builds a {@link MessageType#CHECK_OUT} message relative to the passed {@link Entity}
 	 */
 	public static String buildCheckOutMessage(Entity e, boolean isValid){
-		JSONObject mesg = new JSONObject();
-		JSONObject checkOutMsg = new JSONObject();
-		checkOutMsg.put(JsonStrings.SENDER, e.getEntityID());
-		checkOutMsg.put(JsonStrings.MSG_TYPE, MessageType.CHECK_OUT.name());
-		checkOutMsg.put(JsonStrings.ENTITY, ((JSONObject)e
-				.getJsonDescriptor()
-				.get(JsonStrings.ENTITY)));
-		checkOutMsg.put(JsonStrings.VALID, isValid);
-		mesg.put(JsonStrings.MESSAGE, checkOutMsg);
-
-		return mesg.toJSONString();
+		StringBuilder msg = openMessage(e.getEntityID(), MessageType.CHECK_OUT);
+		appendRaw(msg, JsonStrings.ENTITY, e.getJsonFragment());
+		appendRaw(msg, JsonStrings.VALID, String.valueOf(isValid));
+		return closeMessage(msg);
 	}
 
 	/**
@@ -426,12 +306,19 @@ public class MessageUtils {
 	 */
 	public static String buildSyncReqMessage(String senderID, String topicReply, 
 			ArrayList<Entity> beacons, Group group, DistanceRange distance, String logId){
-		JSONObject mesg = new JSONObject();
-		JSONObject syncReqMsg = new JSONObject();
-		syncReqMsg.put(JsonStrings.SENDER, senderID);
-		syncReqMsg.put(JsonStrings.MSG_TYPE, MessageType.SYNC_REQ.name());
-		syncReqMsg.put(JsonStrings.TOPIC_REPLY, topicReply);
-		syncReqMsg.put(JsonStrings.BEACONS, ((JSONArray)buildBeaconsJsonArray(beacons)));
+		return buildSyncReqMessage(senderID, topicReply, beacons, group, distance, 0, false, logId);
+	}
+
+	/**
+	 * Method that build a {@link MessageType#SYNC_REQ} as {@link #buildSyncReqMessage(String, String, ArrayList, Group,
+	 * DistanceRange, String)} does, asking responders to limit their responses
+	 * @param maxResponses - number of {@link MessageType#SYNC_RESP} after which the other responders have to
+	 * cancel their responses; 0 for no limit
+	 * @param aggregate - <code>true</code> if responders near the same beacon can be reported by a single
+	 * {@link MessageType#SYNC_RESP}
+	 */
+	public static String buildSyncReqMessage(String senderID, String topicReply, ArrayList<Entity> beacons,
+			Group group, DistanceRange distance, int maxResponses, boolean aggregate, String logId){
 
 		JSONObject jsonGroup = new JSONObject();
 		jsonGroup.put(JsonStrings.FILTER, (group.getFilter() != null) ? group.getFilter().toString() : "");
@@ -439,34 +326,52 @@ public class MessageUtils {
 		jsonGroup.put(JsonStrings.ENTITY_TYPE, group.getType().name());
 		jsonGroup.put(JsonStrings.GROUP_DESCRIPTOR, group.toString());
 
-		syncReqMsg.put(JsonStrings.GROUP, jsonGroup);
-
-		syncReqMsg.put(JsonStrings.DISTANCE_RANGE, distance.name());	
-		syncReqMsg.put(JsonStrings.LOG_ID, logId);
-		mesg.put(JsonStrings.MESSAGE, syncReqMsg);
-
-		return mesg.toJSONString();
+		StringBuilder msg = openMessage(senderID, MessageType.SYNC_REQ);
+		appendString(msg, JsonStrings.TOPIC_REPLY, topicReply);
+		appendBeacons(msg, JsonStrings.BEACONS, beacons);
+		appendRaw(msg, JsonStrings.GROUP, jsonGroup.toJSONString());
+		appendString(msg, JsonStrings.DISTANCE_RANGE, distance.name());
+		//fields omitted when not used, so that the request is the same understood by older versions
+		if(maxResponses > 0)
+			appendRaw(msg, JsonStrings.MAX_RESPONSES, String.valueOf(maxResponses));
+		if(aggregate)
+			appendRaw(msg, JsonStrings.AGGREGATE, "true");
+		appendString(msg, JsonStrings.LOG_ID, logId);
+		return closeMessage(msg);
 	}
 
 	/**
 	 * Method that builds the {@link MessageType#SYNC_RESP} message corresponding to a {@link MessageType#SYNC_REQ}
 	 */
 	public static String buildSyncRespMessage(Entity e, String topicReply){
-		JSONObject msg = new JSONObject();
-		JSONObject syncRespMsg = new JSONObject();
-		syncRespMsg.put(JsonStrings.SENDER, e.getEntityID());
-		syncRespMsg.put(JsonStrings.MSG_TYPE, MessageType.SYNC_RESP.name());
-		
+		return buildSyncRespMessage(e, topicReply, null);
+	}
+
+	/**
+	 * Method that builds an aggregated {@link MessageType#SYNC_RESP}, reporting also other entities matching the
+	 * {@link MessageType#SYNC_REQ}
+	 * @param others - the other entities reported, with their {@link DistanceRange}; <code>null</code> or empty for
+	 * a plain response
+	 */
+	public static String buildSyncRespMessage(Entity e, String topicReply, List<Entity> others){
+		StringBuilder msg = openMessage(e.getEntityID(), MessageType.SYNC_RESP);
+
 		/*
 		 * Only for logging
 		 */
-		syncRespMsg.put(JsonStrings.TOPIC_REPLY, topicReply);
-		
-	
-		syncRespMsg.put(JsonStrings.ENTITY,((JSONObject)e.getJsonDescriptor().get(JsonStrings.ENTITY)));
-		msg.put(JsonStrings.MESSAGE, syncRespMsg);
-
-		return msg.toJSONString();
+		appendString(msg, JsonStrings.TOPIC_REPLY, topicReply);
+
+		appendRaw(msg, JsonStrings.ENTITY, e.getJsonFragment());
+		if(others != null && !others.isEmpty()){
+			msg.append(",\"").append(JsonStrings.ENTITIES).append("\":[");
+			for(int i = 0; i < others.size(); i++){
+				if(i > 0)
+					msg.append(',');
+				msg.append(others.get(i).getJsonFragment());
+			}
+			msg.append(']');
+		}
+		return closeMessage(msg);
 	}
 
 	/**
@@ -474,15 +379,53 @@ public class MessageUtils {
 	 * seen by the sender in last BLE scanning cycles
 	 */
 	public static String buildProxBeaconsMessage(ArrayList<Entity> beacons, Entity e, String logId){
-		JSONObject msg = new JSONObject();
-		JSONObject proxMsg = new JSONObject();
-		proxMsg.put(JsonStrings.SENDER, e.getEntityID());
-		proxMsg.put(JsonStrings.MSG_TYPE, MessageType.PROX_BEACONS.name());
-		proxMsg.put(JsonStrings.ENTITY, ((JSONObject)e.getJsonDescriptor().get(JsonStrings.ENTITY)));
-		proxMsg.put(JsonStrings.BEACONS, ((JSONArray)buildBeaconsJsonArray(beacons)));
-		proxMsg.put(JsonStrings.LOG_ID, logId);
-		msg.put(JsonStrings.MESSAGE, proxMsg);
-		return msg.toJSONString();
+		StringBuilder msg = openMessage(e.getEntityID(), MessageType.PROX_BEACONS);
+		appendRaw(msg, JsonStrings.ENTITY, e.getJsonFragment());
+		appendBeacons(msg, JsonStrings.BEACONS, beacons);
+		appendString(msg, JsonStrings.LOG_ID, logId);
+		return closeMessage(msg);
+	}
+
+	/**
+	 * Method building a keyframe {@link MessageType#PROX_BEACONS} message: the full message built by
+	 * {@link #buildProxBeaconsMessage(ArrayList, Entity, String)}, carrying also the sequence number of the sender,
+	 * so that following delta messages can be applied by the receivers
+	 * @param seq - sequence number of the message
+	 */
+	public static String buildProxBeaconsMessage(ArrayList<Entity> beacons, Entity e, long seq, String logId){
+		StringBuilder msg = openMessage(e.getEntityID(), MessageType.PROX_BEACONS);
+		appendRaw(msg, JsonStrings.ENTITY, e.getJsonFragment());
+		appendBeacons(msg, JsonStrings.BEACONS, beacons);
+		appendRaw(msg, JsonStrings.DELTA, "false");
+		appendRaw(msg, JsonStrings.SEQUENCE, String.valueOf(seq));
+		appendString(msg, JsonStrings.LOG_ID, logId);
+		return closeMessage(msg);
+	}
+
+	/**
+	 * Method building a delta {@link MessageType#PROX_BEACONS} message, containing only the changes since the
+	 * previous message of the sender. The sender {@link Entity} is described only by its id and type: receivers
+	 * use the one received with the last keyframe.
+	 * @param changed - beacons that appeared or whose {@link DistanceRange} changed
+	 * @param removed - ids of the beacons that disappeared
+	 * @param seq - sequence number of the message, following the one of the previous message
+	 */
+	public static String buildProxBeaconsDeltaMessage(ArrayList<Entity> changed, ArrayList<String> removed,
+			Entity e, long seq, String logId){
+		JSONObject entity = new JSONObject();
+		entity.put(JsonStrings.ENTITY_ID, e.getEntityID());
+		entity.put(JsonStrings.ENTITY_TYPE, e.getEntityType().name());
+		JSONArray removedArray = new JSONArray();
+		removedArray.addAll(removed);
+
+		StringBuilder msg = openMessage(e.getEntityID(), MessageType.PROX_BEACONS);
+		appendRaw(msg, JsonStrings.ENTITY, entity.toJSONString());
+		appendBeacons(msg, JsonStrings.BEACONS, changed);
+		appendRaw(msg, JsonStrings.REMOVED_BEACONS, removedArray.toJSONString());
+		appendRaw(msg, JsonStrings.DELTA, "true");
+		appendRaw(msg, JsonStrings.SEQUENCE, String.valueOf(seq));
+		appendString(msg, JsonStrings.LOG_ID, logId);
+		return closeMessage(msg);
 	}
 
 
@@ -494,7 +437,51 @@ public class MessageUtils {
 	 * 
 	 */
 
-	private static Entity createEntity(MessageType type, JSONObject jsonEntity){
+	/**
+	 * Helper method returning the {@link MessageType} corresponding to the <code>msg_type</code> field of a message
+	 */
+	static MessageType parseMsgType(String jsonType){
+
+		String msgType = jsonType.toUpperCase().trim();
+
+		for(MessageType type : MessageType.values())
+			if(type.name().equals(msgType))
+				return type;
+
+		return null;
+	}
+
+	/**
+	 * Helper method returning the {@link DistanceRange} corresponding to the passed name
+	 */
+	static DistanceRange parseDistanceRange(String jsonDistance){
+
+		for(DistanceRange d : DistanceRange.values())
+			if(d.name().equals(jsonDistance))
+				return d;
+
+		return null;
+	}
+
+	/**
+	 * Helper method building the list of {@link Entity} of type {@link Type#BLE_BEACON} contained in a message
+	 */
+	static ArrayList<Entity> parseBeacons(JSONArray beaconsJsonArray){
+
+		ArrayList<Entity> beacons = new ArrayList<>();
+		for(Object o : beaconsJsonArray){
+			JSONObject beaconJsonObject = (JSONObject) o;
+			String beaconId = (String)beaconJsonObject.get(JsonStrings.BEACON_ID);
+			DistanceRange distance = parseDistanceRange((String) beaconJsonObject.get(JsonStrings.DISTANCE_RANGE));
+			Entity beacon = new Entity.Builder(beaconId, Type.BLE_BEACON)
+			.setDistance(distance)
+			.build();
+			beacons.add(beacon);
+		}
+		return beacons;
+	}
+
+	static Entity createEntity(MessageType type, JSONObject jsonEntity){
 
 		Builder builder;
 
@@ -532,19 +519,54 @@ public class MessageUtils {
 	}
 
 	/**
-	 * Helper method building a {@link JSONArray} containing beacons data to include in some framework messages
+	 * Helper method that adds a field containing beacons data, included in some framework messages
 	 */
-	private static JSONArray buildBeaconsJsonArray(ArrayList<Entity> beacons){
-		JSONArray beaconsArray = new JSONArray();
-		for(Entity b : beacons){
-			JSONObject beacon = new JSONObject();
-			String beaconId = b.getEntityID();
-			beacon.put(JsonStrings.BEACON_ID, beaconId);
-			beacon.put(JsonStrings.DISTANCE_RANGE, 
-					b.getDistanceRange().name());
-			beaconsArray.add(beacon);
+	private static void appendBeacons(StringBuilder msg, String key, List<Entity> beacons){
+		msg.append(",\"").append(key).append("\":[");
+		for(int i = 0; i < beacons.size(); i++){
+			Entity b = beacons.get(i);
+			if(i > 0)
+				msg.append(',');
+			msg.append("{\"").append(JsonStrings.BEACON_ID).append("\":\"").append(JSONValue.escape(b.getEntityID()))
+			.append("\",\"").append(JsonStrings.DISTANCE_RANGE).append("\":\"").append(b.getDistanceRange().name())
+			.append("\"}");
 		}
-		return beaconsArray;
+		msg.append(']');
+	}
+
+	/**
+	 * Helper method that starts a message, writing the {@link JsonStrings#SENDER} and {@link JsonStrings#MSG_TYPE}
+	 * fields. The other fields are added by the <code>append*</code> methods, and the message is completed by
+	 * {@link #closeMessage(StringBuilder)}.
+	 */
+	private static StringBuilder openMessage(String senderID, MessageType type){
+		StringBuilder msg = new StringBuilder(256);
+		msg.append("{\"").append(JsonStrings.MESSAGE).append("\":{");
+		msg.append('"').append(JsonStrings.SENDER).append("\":\"").append(JSONValue.escape(senderID)).append('"');
+		msg.append(",\"").append(JsonStrings.MSG_TYPE).append("\":\"").append(type.name()).append('"');
+		return msg;
+	}
+
+	/**
+	 * Helper method that adds a field whose value is already in JSON format (e.g. {@link Entity#getJsonFragment()})
+	 */
+	private static void appendRaw(StringBuilder msg, String key, String json){
+		msg.append(",\"").append(key).append("\":").append(json);
+	}
+
+	/**
+	 * Helper method that adds a field whose value is a string (possibly <code>null</code>)
+	 */
+	private static void appendString(StringBuilder msg, String key, String value){
+		msg.append(",\"").append(key).append("\":");
+		if(value == null)
+			msg.append("null");
+		else
+			msg.append('"').append(JSONValue.escape(value)).append('"');
+	}
+
+	private static String closeMessage(StringBuilder msg){
+		return msg.append("}}").toString();
 	}
 	
 	
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bounded ring buffer of the messages that could not be published because the client was not connected, stored
+ * in a memory-mapped file so that it survives the process. Records are appended at the tail and removed from the
+ * head. Records expired according to the {@link DeliveryPolicy} are discarded when a new record is appended; when
+ * there is still no room for it, the oldest records that are not kept until published are evicted first, then the
+ * oldest ones. Since the file is not forced to
+ * disk at every append, records survive the termination of the process but not a crash of the device.
+ * <p>
+ * The file starts with a header (magic number, head and tail offsets, number of records) followed by the records.
+ * Each record contains its length, the time it was buffered, the {@link MessageType} (if any), QoS and retained
+ * flag, the topic and the payload. A record never wraps around the end of the file: the rest of the file is
+ * skipped, and marked as such if there is room for the marker.
+ */
+public class OutboundBuffer {
+
+	/**
+	 * Default size (in bytes) of the records area of the file
+	 */
+	public static final int DEFAULT_SIZE = 512 * 1024;
+
+	private static final int MAGIC = 0x41445046;
+	private static final int HEADER_SIZE = 16;
+	private static final int WRAP = -1;
+	private static final int RECORD_HEADER_SIZE = 4 + 8 + 1 + 1 + 1 + 2 + 4;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final MappedByteBuffer map;
+	private final int size;
+
+	/**
+	 * Offsets (in the records area) of the first and next record, and number of records, mirrored in the header
+	 */
+	private int head;
+	private int tail;
+	private int count;
+	private int usedBytes;
+
+	private volatile DeliveryPolicy deliveryPolicy = new DeliveryPolicy();
+
+	private final AtomicLong appendedCount = new AtomicLong();
+	private final AtomicLong evictedCount = new AtomicLong();
+	private final AtomicLong purgedCount = new AtomicLong();
+
+
+	private OutboundBuffer(MappedByteBuffer map, int size) {
+		this.map = map;
+		this.size = size;
+	}
+
+	/**
+	 * Method that opens the buffer stored in <code>file</code>, creating it if needed. The records of a file
+	 * having the same size are kept, otherwise the file is emptied.
+	 * @param size - size (in bytes) of the records area of the file
+	 */
+	public static OutboundBuffer open(File file, int size) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		MappedByteBuffer map;
+		try {
+			boolean reuse = (raf.length() == HEADER_SIZE + size);
+			FileChannel channel = raf.getChannel();
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + size);
+			//the mapping stays valid after the channel is closed
+			OutboundBuffer ret = new OutboundBuffer(map, size);
+			if(reuse && map.getInt(0) == MAGIC)
+				ret.load();
+			else
+				ret.reset();
+			return ret;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void load(){
+		head = map.getInt(4);
+		tail = map.getInt(8);
+		count = map.getInt(12);
+		if(head < 0 || head >= size || tail < 0 || tail > size || count < 0){
+			reset();
+			return;
+		}
+
+		//used bytes are not stored, they are recomputed walking the records
+		int pos = head;
+		usedBytes = 0;
+		for(int i = 0; i < count; i++){
+			pos = normalize(pos);
+			int length = map.getInt(HEADER_SIZE + pos);
+			if(length < RECORD_HEADER_SIZE || pos + length > size){
+				reset();
+				return;
+			}
+			usedBytes += length;
+			pos += length;
+		}
+	}
+
+	private void reset(){
+		head = tail = count = usedBytes = 0;
+		map.putInt(0, MAGIC);
+		writeHeader();
+	}
+
+	private void writeHeader(){
+		map.putInt(4, head);
+		map.putInt(8, tail);
+		map.putInt(12, count);
+	}
+
+	/**
+	 * Method returning the offset where the record at <code>pos</code> actually starts, i.e. the start of the
+	 * records area if the rest of the file is skipped
+	 */
+	private int normalize(int pos){
+		if(size - pos < 4 || map.getInt(HEADER_SIZE + pos) == WRAP)
+			return 0;
+		return pos;
+	}
+
+	/**
+	 * Method that sets the {@link DeliveryPolicy} deciding which records are expired, and which ones are evicted last
+	 */
+	void setDeliveryPolicy(DeliveryPolicy deliveryPolicy){
+		this.deliveryPolicy = deliveryPolicy;
+	}
+
+	/**
+	 * Method that appends a message to the buffer, making room for it if needed (see {@link OutboundBuffer})
+	 * @param type - the {@link MessageType} of the message, or <code>null</code>
+	 * @param timestamp - the time (in milliseconds since the epoch) the message was buffered
+	 * @return <code>false</code> if the message is too large to be buffered
+	 */
+	public synchronized boolean append(String topic, byte[] payload, int qos, boolean retained, MessageType type,
+			long timestamp){
+
+		byte[] topicBytes = topic.getBytes(UTF_8);
+		int length = RECORD_HEADER_SIZE + topicBytes.length + payload.length;
+		if(length > size / 2 || topicBytes.length > Short.MAX_VALUE)
+			return false;
+
+		//expired records at the head are discarded right away, the others only if room is needed
+		long now = System.currentTimeMillis();
+		DeliveryPolicy policy = deliveryPolicy;
+		while(count > 0 && policy.isExpired(typeAt(head), map.getLong(HEADER_SIZE + head + 4), now)){
+			purgedCount.incrementAndGet();
+			removeHead();
+		}
+
+		if(freePosition(length) < 0)
+			makeRoom(length, policy, now);
+		write(freePosition(length), topicBytes, payload, qos, retained, type, timestamp);
+		appendedCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Method that makes room for a record of <code>length</code> bytes: the expired records are discarded, then
+	 * the oldest records not kept until published, then the oldest ones. The records left are written again
+	 * one after the other from the start of the records area.
+	 */
+	private void makeRoom(int length, DeliveryPolicy policy, long now){
+		List<Record> records = poll(count);
+		int free = size;
+		for(Record r : records)
+			free -= lengthOf(r);
+
+		boolean[] removed = new boolean[records.size()];
+		for(int i = 0; i < records.size(); i++){
+			Record r = records.get(i);
+			if(policy.isExpired(r.type, r.timestamp, now)){
+				removed[i] = true;
+				free += lengthOf(r);
+				purgedCount.incrementAndGet();
+			}
+		}
+		for(int pass = 0; pass < 2; pass++){
+			for(int i = 0; i < records.size() && free < length; i++){
+				Record r = records.get(i);
+				if(removed[i] || (pass == 0 && policy.isRetainedUntilPublished(r.type)))
+					continue;
+				removed[i] = true;
+				free += lengthOf(r);
+				evictedCount.incrementAndGet();
+			}
+		}
+
+		for(int i = 0; i < records.size(); i++){
+			Record r = records.get(i);
+			if(!removed[i])
+				write(freePosition(lengthOf(r)), r.topic.getBytes(UTF_8), r.payload, r.qos, r.retained, r.type,
+						r.timestamp);
+		}
+	}
+
+	private static int lengthOf(Record r){
+		return RECORD_HEADER_SIZE + r.topic.getBytes(UTF_8).length + r.payload.length;
+	}
+
+	private MessageType typeAt(int pos){
+		byte type = map.get(HEADER_SIZE + pos + 12);
+		return (type < 0) ? null : MessageType.values()[type];
+	}
+
+	/**
+	 * Method that writes a record at <code>pos</code>, returned by {@link #freePosition(int)}
+	 */
+	private void write(int pos, byte[] topicBytes, byte[] payload, int qos, boolean retained, MessageType type,
+			long timestamp){
+
+		int length = RECORD_HEADER_SIZE + topicBytes.length + payload.length;
+		if(pos == 0 && tail != 0 && size - tail >= 4)
+			map.putInt(HEADER_SIZE + tail, WRAP);
+
+		int p = HEADER_SIZE + pos;
+		map.putInt(p, length);
+		map.putLong(p + 4, timestamp);
+		map.put(p + 12, (byte) ((type == null) ? -1 : type.ordinal()));
+		map.put(p + 13, (byte) qos);
+		map.put(p + 14, (byte) (retained ? 1 : 0));
+		map.putShort(p + 15, (short) topicBytes.length);
+		p += 17;
+		for(byte b : topicBytes)
+			map.put(p++, b);
+		map.putInt(p, payload.length);
+		p += 4;
+		for(byte b : payload)
+			map.put(p++, b);
+
+		tail = pos + length;
+		count++;
+		usedBytes += length;
+		writeHeader();
+	}
+
+	/**
+	 * Method returning the offset where a record of <code>length</code> bytes can be written, or -1 if the
+	 * oldest record has to be evicted first. The tail never reaches the head, unless the buffer is empty.
+	 */
+	private int freePosition(int length){
+		if(count == 0){
+			head = tail = 0;
+			return 0;
+		}
+		if(tail > head){
+			if(size - tail >= length)
+				return tail;
+			return (length < head) ? 0 : -1;
+		}
+		return (tail + length < head) ? tail : -1;
+	}
+
+	/**
+	 * Method that removes the oldest record
+	 */
+	private void removeHead(){
+		int length = map.getInt(HEADER_SIZE + head);
+		count--;
+		usedBytes -= length;
+		advanceHead(length);
+		writeHeader();
+	}
+
+	/**
+	 * Method that moves the head past a removed record of <code>length</code> bytes, to the start of the next one
+	 */
+	private void advanceHead(int length){
+		if(count == 0)
+			head = tail = 0;
+		else
+			head = normalize(head + length);
+	}
+
+	/**
+	 * Method that removes and returns the oldest records
+	 * @param max - maximum number of records returned
+	 */
+	public synchronized List<Record> poll(int max){
+
+		List<Record> ret = new ArrayList<Record>(Math.min(max, count));
+		while(count > 0 && ret.size() < max){
+			int p = HEADER_SIZE + head;
+			int length = map.getInt(p);
+			long timestamp = map.getLong(p + 4);
+			byte type = map.get(p + 12);
+			int qos = map.get(p + 13);
+			boolean retained = (map.get(p + 14) == 1);
+			byte[] topic = new byte[map.getShort(p + 15)];
+			p += 17;
+			for(int i = 0; i < topic.length; i++)
+				topic[i] = map.get(p++);
+			byte[] payload = new byte[map.getInt(p)];
+			p += 4;
+			for(int i = 0; i < payload.length; i++)
+				payload[i] = map.get(p++);
+
+			ret.add(new Record(new String(topic, UTF_8), payload, qos, retained,
+					(type < 0) ? null : MessageType.values()[type], timestamp));
+
+			count--;
+			usedBytes -= length;
+			advanceHead(length);
+		}
+		writeHeader();
+		return ret;
+	}
+
+	/**
+	 * @return the number of buffered records
+	 */
+	public synchronized int getRecordCount(){
+		return count;
+	}
+
+	/**
+	 * @return the number of bytes used by the buffered records
+	 */
+	public synchronized int getUsedBytes(){
+		return usedBytes;
+	}
+
+	/**
+	 * @return the size (in bytes) of the records area
+	 */
+	public int getSize(){
+		return size;
+	}
+
+	/**
+	 * @return the number of records appended since the buffer was opened
+	 */
+	public long getAppendedCount(){
+		return appendedCount.get();
+	}
+
+	/**
+	 * @return the number of records evicted to make room for newer ones
+	 */
+	public long getEvictedCount(){
+		return evictedCount.get();
+	}
+
+	/**
+	 * @return the number of expired records discarded when appending new ones
+	 */
+	public long getPurgedCount(){
+		return purgedCount.get();
+	}
+
+
+	/**
+	 * Message read from the buffer
+	 */
+	public static final class Record {
+
+		final String topic;
+		final byte[] payload;
+		final int qos;
+		final boolean retained;
+		final MessageType type;
+		final long timestamp;
+
+		Record(String topic, byte[] payload, int qos, boolean retained, MessageType type, long timestamp) {
+			this.topic = topic;
+			this.payload = payload;
+			this.qos = qos;
+			this.retained = retained;
+			this.type = type;
+			this.timestamp = timestamp;
+		}
+	}
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.network;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.android.service.MqttAndroidClient;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import android.util.Log;
+
+
+/**
+ * Asynchronous outbound queue of {@link MQTTPahoClient}. Messages are queued by the publishing thread, that
+ * never waits for the network, and published in order by a worker thread, that keeps up to
+ * <code>inFlightWindow</code> publishes in flight (i.e. not yet acknowledged according to their QoS).
+ * When the queue is full, the oldest QoS 0 message is discarded to make room; if there is none, the new message
+ * is discarded. Queue depth, discarded messages and publish latency (from queueing to completion) are exposed
+ * for monitoring.
+ * <p>
+ * When an {@link OutboundBuffer} is set, messages that cannot be published because the client is not connected
+ * are stored in it (according to the retention of their {@link MessageType} in the {@link DeliveryPolicy}) instead
+ * of being discarded. Once the client reconnects, the buffer is drained in batches of {@link #DRAIN_BATCH}
+ * messages, before the messages queued afterwards; the messages that have become stale meanwhile are discarded.
+ */
+public class OutboundPublisher {
+
+	private static final String TAG = "OutboundPublisher";
+
+	/**
+	 * Default maximum number of queued messages
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * Default maximum number of publishes in flight
+	 */
+	public static final int DEFAULT_IN_FLIGHT_WINDOW = 16;
+
+	/**
+	 * Maximum number of messages moved at once from the {@link OutboundBuffer} to the queue
+	 */
+	public static final int DRAIN_BATCH = 32;
+
+	private final int capacity;
+
+	/**
+	 * Queued messages and number of publishes in flight, accessed holding the lock on this object
+	 */
+	private final ArrayDeque<Outbound> queue = new ArrayDeque<Outbound>();
+	private int inFlight = 0;
+	private int inFlightWindow;
+
+	private Thread worker;
+	private volatile MqttAndroidClient client;
+
+	private volatile OutboundBuffer buffer;
+	private volatile DeliveryPolicy deliveryPolicy = new DeliveryPolicy();
+
+	/**
+	 * Messages drained from {@link #buffer} and not yet completed, and start (in nanoseconds) of the current drain,
+	 * accessed holding the lock on this object
+	 */
+	private int drainPending = 0;
+	private long drainStart = 0;
+
+	private final AtomicLong publishedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong latencySumNanos = new AtomicLong();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+	private final AtomicLong bufferedCount = new AtomicLong();
+	private final AtomicLong expiredCount = new AtomicLong();
+	private final AtomicLong drainedCount = new AtomicLong();
+	private volatile long lastDrainNanos = 0;
+
+
+	public OutboundPublisher() {
+		this(DEFAULT_CAPACITY, DEFAULT_IN_FLIGHT_WINDOW);
+	}
+
+	/**
+	 * @param capacity - maximum number of queued messages
+	 * @param inFlightWindow - maximum number of publishes in flight
+	 */
+	public OutboundPublisher(int capacity, int inFlightWindow) {
+		this.capacity = capacity;
+		this.inFlightWindow = inFlightWindow;
+	}
+
+	/**
+	 * Method that sets the client used to publish, replaced by {@link MQTTPahoClient} at every (re)connection
+	 */
+	void setClient(MqttAndroidClient client){
+		this.client = client;
+	}
+
+	/**
+	 * Method that sets the {@link OutboundBuffer} storing the messages published while the client is not connected
+	 */
+	void setBuffer(OutboundBuffer buffer){
+		buffer.setDeliveryPolicy(deliveryPolicy);
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Method that sets the {@link DeliveryPolicy} giving the retention of the buffered messages
+	 */
+	void setDeliveryPolicy(DeliveryPolicy deliveryPolicy){
+		this.deliveryPolicy = deliveryPolicy;
+		OutboundBuffer b = buffer;
+		if(b != null)
+			b.setDeliveryPolicy(deliveryPolicy);
+	}
+
+	/**
+	 * Method called by {@link MQTTPahoClient} when the client connects, that starts draining the {@link OutboundBuffer}
+	 */
+	synchronized void onConnected(){
+		OutboundBuffer b = buffer;
+		if(b != null && b.getRecordCount() > 0){
+			drainStart = System.nanoTime();
+			startWorker();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Method that queues a message to be published
+	 * @return <code>false</code> if the message has been discarded because the queue is full
+	 */
+	public boolean publish(String topic, byte[] payload, int qos){
+		return publish(topic, payload, qos, false);
+	}
+
+	/**
+	 * Method that queues a message to be published
+	 * @param retained - <code>true</code> if the broker has to retain the message for future subscribers
+	 * @return <code>false</code> if the message has been discarded because the queue is full
+	 */
+	public boolean publish(String topic, byte[] payload, int qos, boolean retained){
+		return publish(topic, payload, qos, retained, null);
+	}
+
+	/**
+	 * Method that queues a message to be published
+	 * @param retained - <code>true</code> if the broker has to retain the message for future subscribers
+	 * @param type - the {@link MessageType} of the message, or <code>null</code> if it must not be buffered when
+	 * the client is not connected
+	 * @return <code>false</code> if the message has been discarded because the queue is full
+	 */
+	public boolean publish(String topic, byte[] payload, int qos, boolean retained, MessageType type){
+
+		Outbound discarded = null;
+		Outbound msg = new Outbound(topic, payload, qos, retained, type, System.currentTimeMillis(), false);
+
+		synchronized (this) {
+			if(queue.size() >= capacity){
+				for(Iterator<Outbound> it = queue.iterator(); it.hasNext();){
+					Outbound queued = it.next();
+					if(queued.qos == 0){
+						it.remove();
+						if(queued.fromBuffer)
+							drainPending--;
+						discarded = queued;
+						break;
+					}
+				}
+				if(discarded == null){
+					droppedCount.incrementAndGet();
+					Log.w(TAG, "Outbound queue full: message on " + topic + " discarded");
+					return false;
+				}
+				droppedCount.incrementAndGet();
+			}
+
+			queue.add(msg);
+			startWorker();
+			notifyAll();
+		}
+		return true;
+	}
+
+	private synchronized void startWorker(){
+		if(worker == null){
+			worker = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					runWorker();
+				}
+			}, TAG);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	private void runWorker(){
+		Thread self = Thread.currentThread();
+		try {
+			while(true){
+				Outbound msg;
+				synchronized (this) {
+					while(worker == self && ((queue.isEmpty() && !canDrain()) || inFlight >= inFlightWindow)){
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if(worker != self)
+						return;
+					if(canDrain())
+						drain();
+					//all the messages drained may have expired
+					msg = queue.poll();
+					if(msg == null)
+						continue;
+					inFlight++;
+				}
+				send(msg);
+			}
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Worker stopped: " + e);
+			e.printStackTrace();
+		} finally {
+			//the worker is started again by the next publish
+			synchronized (this) {
+				if(worker == self)
+					worker = null;
+			}
+		}
+	}
+
+	/**
+	 * Method returning <code>true</code> if a batch of messages can be moved from the {@link OutboundBuffer}
+	 * to the queue, i.e. if the client is connected and the previous batch has left the queue.
+	 * Called holding the lock on this object.
+	 */
+	private boolean canDrain(){
+		OutboundBuffer b = buffer;
+		MqttAndroidClient c = client;
+		Outbound first = queue.peek();
+		return b != null && b.getRecordCount() > 0 && (first == null || !first.fromBuffer)
+				&& c != null && c.isConnected();
+	}
+
+	/**
+	 * Method that moves a batch of messages from the {@link OutboundBuffer} to the head of the queue,
+	 * discarding the stale ones. Called holding the lock on this object.
+	 */
+	private void drain(){
+		List<OutboundBuffer.Record> records = buffer.poll(DRAIN_BATCH);
+		long now = System.currentTimeMillis();
+		ArrayDeque<Outbound> batch = new ArrayDeque<Outbound>(records.size());
+		for(OutboundBuffer.Record r : records){
+			if(isExpired(r.type, r.timestamp, now)){
+				expiredCount.incrementAndGet();
+				continue;
+			}
+			batch.add(new Outbound(r.topic, r.payload, r.qos, r.retained, r.type, r.timestamp, true));
+		}
+		drainPending += batch.size();
+		for(Iterator<Outbound> it = batch.descendingIterator(); it.hasNext();)
+			queue.addFirst(it.next());
+		if(drainStart == 0)
+			drainStart = System.nanoTime();
+		checkDrainCompleted();
+	}
+
+	private boolean isExpired(MessageType type, long timestamp, long now){
+		return deliveryPolicy.isExpired(type, timestamp, now);
+	}
+
+	/**
+	 * Method that stores a message that cannot be published in the {@link OutboundBuffer}
+	 * @return <code>false</code> if the message has been discarded
+	 */
+	private boolean store(Outbound msg){
+		OutboundBuffer b = buffer;
+		if(b == null || isExpired(msg.type, msg.createdAt, System.currentTimeMillis()))
+			return false;
+		if(!b.append(msg.topic, msg.payload, msg.qos, msg.retained, msg.type, msg.createdAt))
+			return false;
+		bufferedCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Method that records the duration of the drain once the {@link OutboundBuffer} is empty and all the
+	 * drained messages have been completed. Called holding the lock on this object.
+	 */
+	private void checkDrainCompleted(){
+		if(drainStart != 0 && drainPending == 0 && buffer.getRecordCount() == 0){
+			lastDrainNanos = System.nanoTime() - drainStart;
+			drainStart = 0;
+		}
+	}
+
+	private void send(final Outbound msg){
+		MqttAndroidClient c = client;
+		if(c == null || !c.isConnected()){
+			if(!store(msg))
+				droppedCount.incrementAndGet();
+			complete(msg, false);
+			return;
+		}
+
+		try {
+			c.publish(msg.topic, msg.payload, msg.qos, msg.retained, null, new IMqttActionListener() {
+
+				@Override
+				public void onSuccess(IMqttToken token) {
+					complete(msg, true);
+				}
+
+				@Override
+				public void onFailure(IMqttToken token, Throwable cause) {
+					failedCount.incrementAndGet();
+					Log.e(TAG, "Publish failed on " + msg.topic);
+					complete(msg, false);
+				}
+			});
+		} catch (MqttException e) {
+			failedCount.incrementAndGet();
+			e.printStackTrace();
+			complete(msg, false);
+		} catch (RuntimeException e) {
+			failedCount.incrementAndGet();
+			Log.e(TAG, "Publish failed on " + msg.topic + ": " + e);
+			complete(msg, false);
+		}
+	}
+
+	private void complete(Outbound msg, boolean published){
+		if(published){
+			long latency = System.nanoTime() - msg.queuedAt;
+			publishedCount.incrementAndGet();
+			latencySumNanos.addAndGet(latency);
+			long max;
+			while(latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency));
+		}
+		synchronized (this) {
+			inFlight--;
+			if(msg.fromBuffer){
+				if(published)
+					drainedCount.incrementAndGet();
+				drainPending--;
+				checkDrainCompleted();
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Method that waits until all the queued messages have been published, or the timeout expires
+	 * @return <code>true</code> if all the messages have been published
+	 */
+	public synchronized boolean flush(long timeoutMillis){
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while(!queue.isEmpty() || inFlight > 0){
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0)
+				return false;
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Method that stops the worker thread, moving the queued messages to the {@link OutboundBuffer} (or discarding
+	 * them). The worker is started again by the next {@link #publish(String, byte[], int)}.
+	 */
+	public synchronized void stop(){
+		for(Outbound msg : queue){
+			if(!store(msg))
+				droppedCount.incrementAndGet();
+			if(msg.fromBuffer)
+				drainPending--;
+		}
+		queue.clear();
+		worker = null;
+		notifyAll();
+	}
+
+	/**
+	 * Method that changes the maximum number of publishes in flight
+	 */
+	public synchronized void setInFlightWindow(int inFlightWindow){
+		this.inFlightWindow = inFlightWindow;
+		notifyAll();
+	}
+
+	public synchronized int getInFlightWindow(){
+		return inFlightWindow;
+	}
+
+	/**
+	 * @return the number of messages waiting to be published
+	 */
+	public synchronized int getQueueDepth(){
+		return queue.size();
+	}
+
+	/**
+	 * @return the number of publishes not yet completed
+	 */
+	public synchronized int getInFlightCount(){
+		return inFlight;
+	}
+
+	/**
+	 * @return the number of messages published successfully
+	 */
+	public long getPublishedCount(){
+		return publishedCount.get();
+	}
+
+	/**
+	 * @return the number of publishes failed
+	 */
+	public long getFailedCount(){
+		return failedCount.get();
+	}
+
+	/**
+	 * @return the number of messages discarded, because the queue was full or the client not connected (and
+	 * the message could not be buffered)
+	 */
+	public long getDroppedCount(){
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return the average time (in milliseconds) from queueing to completion of the messages published
+	 */
+	public double getAveragePublishLatencyMillis(){
+		long count = publishedCount.get();
+		return (count == 0) ? 0 : latencySumNanos.get() / 1e6 / count;
+	}
+
+	/**
+	 * @return the maximum time (in milliseconds) from queueing to completion of the messages published
+	 */
+	public double getMaxPublishLatencyMillis(){
+		return maxLatencyNanos.get() / 1e6;
+	}
+
+	/**
+	 * @return the {@link OutboundBuffer} storing the messages published while the client is not connected, or
+	 * <code>null</code>
+	 */
+	public OutboundBuffer getBuffer(){
+		return buffer;
+	}
+
+	/**
+	 * @return the number of messages waiting in the {@link OutboundBuffer} for the client to reconnect
+	 */
+	public int getBacklog(){
+		OutboundBuffer b = buffer;
+		return (b == null) ? 0 : b.getRecordCount();
+	}
+
+	/**
+	 * @return the number of messages stored in the {@link OutboundBuffer}
+	 */
+	public long getBufferedCount(){
+		return bufferedCount.get();
+	}
+
+	/**
+	 * @return the number of buffered messages discarded because they were stale when the client reconnected
+	 */
+	public long getExpiredCount(){
+		return expiredCount.get();
+	}
+
+	/**
+	 * @return the number of buffered messages published after the client reconnected
+	 */
+	public long getDrainedCount(){
+		return drainedCount.get();
+	}
+
+	/**
+	 * @return the time (in milliseconds) taken by the last complete drain of the {@link OutboundBuffer}, from the
+	 * reconnection to the completion of the last buffered message
+	 */
+	public double getLastDrainMillis(){
+		return lastDrainNanos / 1e6;
+	}
+
+
+	private static final class Outbound {
+
+		private final String topic;
+		private final byte[] payload;
+		private final int qos;
+		private final boolean retained;
+		private final MessageType type;
+		private final long queuedAt = System.nanoTime();
+
+		/**
+		 * Time (in milliseconds since the epoch) the message was first published, used to decide if it is stale
+		 */
+		private final long createdAt;
+
+		/**
+		 * <code>true</code> if the message has been drained from the {@link OutboundBuffer}
+		 */
+		private final boolean fromBuffer;
+
+		Outbound(String topic, byte[] payload, int qos, boolean retained, MessageType type, long createdAt,
+				boolean fromBuffer) {
+			this.topic = topic;
+			this.payload = payload;
+			this.qos = qos;
+			this.retained = retained;
+			this.type = type;
+			this.createdAt = createdAt;
+			this.fromBuffer = fromBuffer;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.network;
+
+/**
+ * Topics where {@link MessageType#PROX_BEACONS} messages are published and received
+ *
+ */
+public enum ProximityTopicMode {
+
+	/**
+	 * Only the global {@link MessageTopic#PROXIMITY} topic is used, so every device receives the messages of the
+	 * whole network. Understood by every version of the framework.
+	 */
+	FLAT,
+
+	/**
+	 * Messages are published on the shard of the beacons seen (see {@link MessageUtils#getProximityShardTopic(String, String)}),
+	 * and only the shards of the {@link it.polimi.geinterface.DAO.POI} where the device currently is are received
+	 */
+	SHARDED,
+
+	/**
+	 * As {@link #SHARDED}, but messages are also published on {@link MessageTopic#PROXIMITY}, so that devices
+	 * still using {@link #FLAT} keep receiving them while the network migrates
+	 */
+	BOTH
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.network;
+
+/**
+ * Callback notified of the messages received on topics whose payload is not a message of the framework
+ * (i.e. it is not decoded by the {@link MessageCodec}), registered with {@link MQTTPahoClient#setRawMessageCallback(String, RawMessageCallback)}
+ */
+public interface RawMessageCallback {
+
+	/**
+	 * @param topic - the topic where the message was received
+	 * @param payload - the payload of the message, empty if a retained message has been cleared
+	 */
+	public void onRawMessageReceived(String topic, byte[] payload);
+
+}
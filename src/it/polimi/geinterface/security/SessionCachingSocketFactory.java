@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 Luca Baggi, Marco Mezzanotte
+ * 
+ * This file is part of ADPF.
+ *
+ *  ADPF is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  ADPF is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with ADPF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.polimi.geinterface.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * {@link SSLSocketFactory} backed by a single, long-lived {@link SSLContext} trusting the certificates of a BKS
+ * trust store. The trust store is loaded only when the first socket is created (i.e. on the connection thread,
+ * not while the framework is being set up), and all the sockets share the client session cache of the context:
+ * reconnections to the same broker resume the TLS session (through session tickets where supported, session
+ * ids otherwise) instead of performing a full handshake.
+ * <p>
+ * Handshake times and the number of resumed sessions are exposed for monitoring. The time of a handshake is
+ * measured from the creation of the socket, so it includes the TCP connection when the socket is created
+ * unconnected.
+ */
+public class SessionCachingSocketFactory extends SSLSocketFactory {
+
+	private static final String TAG = "SessionCachingSocketFactory";
+
+	/**
+	 * Default maximum number of TLS sessions cached
+	 */
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 16;
+
+	/**
+	 * Default time (in seconds) a cached TLS session can be resumed
+	 */
+	public static final int DEFAULT_SESSION_TIMEOUT = 12 * 60 * 60;
+
+	private final Context context;
+	private final int certificateId;
+	private final String certificatePassword;
+
+	private volatile SSLSocketFactory delegate;
+
+	private final AtomicLong handshakeCount = new AtomicLong();
+	private final AtomicLong resumedCount = new AtomicLong();
+	private final AtomicLong handshakeSumNanos = new AtomicLong();
+	private volatile long lastHandshakeNanos = 0;
+
+
+	SessionCachingSocketFactory(Context context, int certificateId, String certificatePassword) {
+		this.context = context;
+		this.certificateId = certificateId;
+		this.certificatePassword = certificatePassword;
+	}
+
+	/**
+	 * Method returning the factory of the {@link SSLContext}, creating the context the first time
+	 */
+	private SSLSocketFactory getDelegate() throws IOException {
+		SSLSocketFactory ret = delegate;
+		if(ret == null){
+			synchronized (this) {
+				ret = delegate;
+				if(ret == null){
+					ret = createContext().getSocketFactory();
+					delegate = ret;
+				}
+			}
+		}
+		return ret;
+	}
+
+	private SSLContext createContext() throws IOException {
+		long start = System.nanoTime();
+		InputStream in = context.getResources().openRawResource(certificateId);
+		try {
+			KeyStore keystoreTrust = KeyStore.getInstance("BKS");		// Bouncy Castle
+			keystoreTrust.load(in, certificatePassword.toCharArray());
+
+			TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trustManagerFactory.init(keystoreTrust);
+
+			SSLContext sslContext = SSLContext.getInstance("TLS");
+			sslContext.init(null, trustManagerFactory.getTrustManagers(), new SecureRandom());
+
+			SSLSessionContext sessions = sslContext.getClientSessionContext();
+			if(sessions != null){
+				sessions.setSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+				sessions.setSessionTimeout(DEFAULT_SESSION_TIMEOUT);
+			}
+
+			Log.i(TAG, "SSL context created in " + (System.nanoTime() - start) / 1000000 + " ms");
+			return sslContext;
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("SSL context not available", e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Method that enables session tickets on the sockets supporting them, and registers the listener measuring
+	 * the handshake
+	 */
+	private Socket configure(Socket socket){
+		if(!(socket instanceof SSLSocket))
+			return socket;
+
+		//session tickets can only be enabled through the (non-public) API of the platform provider
+		try {
+			socket.getClass().getMethod("setUseSessionTickets", boolean.class).invoke(socket, true);
+		} catch (Exception e) {
+			//not supported: sessions are resumed through their ids
+		}
+
+		final long created = System.nanoTime();
+		final long createdMillis = System.currentTimeMillis();
+		((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+
+			@Override
+			public void handshakeCompleted(HandshakeCompletedEvent event) {
+				long duration = System.nanoTime() - created;
+				handshakeCount.incrementAndGet();
+				handshakeSumNanos.addAndGet(duration);
+				lastHandshakeNanos = duration;
+
+				//a resumed session was created by an earlier handshake
+				boolean resumed = event.getSession().getCreationTime() < createdMillis;
+				if(resumed)
+					resumedCount.incrementAndGet();
+				Log.i(TAG, "TLS handshake completed in " + duration / 1000000 + " ms" + (resumed ? " (resumed)" : ""));
+			}
+		});
+		return socket;
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		return configure(getDelegate().createSocket());
+	}
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+		return configure(getDelegate().createSocket(s, host, port, autoClose));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		return configure(getDelegate().createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+		return configure(getDelegate().createSocket(host, port, localHost, localPort));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return configure(getDelegate().createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+			throws IOException {
+		return configure(getDelegate().createSocket(address, port, localAddress, localPort));
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		try {
+			return getDelegate().getDefaultCipherSuites();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new String[0];
+		}
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		try {
+			return getDelegate().getSupportedCipherSuites();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new String[0];
+		}
+	}
+
+	/**
+	 * @return the number of TLS handshakes completed
+	 */
+	public long getHandshakeCount(){
+		return handshakeCount.get();
+	}
+
+	/**
+	 * @return the number of TLS handshakes that resumed a cached session
+	 */
+	public long getResumedCount(){
+		return resumedCount.get();
+	}
+
+	/**
+	 * @return the average time (in milliseconds) of the TLS handshakes
+	 */
+	public double getAverageHandshakeMillis(){
+		long count = handshakeCount.get();
+		return (count == 0) ? 0 : handshakeSumNanos.get() / 1e6 / count;
+	}
+
+	/**
+	 * @return the time (in milliseconds) of the last TLS handshake
+	 */
+	public double getLastHandshakeMillis(){
+		return lastHandshakeNanos / 1e6;
+	}
+}
@@ -20,27 +20,21 @@
 
 package it.polimi.geinterface.security;
 
-import java.security.KeyStore;
-import java.security.SecureRandom;
 import java.util.HashMap;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
-
 import android.content.Context;
 
 public class SslUtility {
 
 	private static SslUtility		mInstance = null;
 	private Context					mContext = null;
-	private HashMap<Integer, SSLSocketFactory> mSocketFactoryMap = new HashMap<Integer, SSLSocketFactory>();
+	private HashMap<Integer, SessionCachingSocketFactory> mSocketFactoryMap = new HashMap<Integer, SessionCachingSocketFactory>();
 
 	public SslUtility(Context context) {
 		mContext = context;
 	}
 
-	public static SslUtility getInstance( Context c) {
+	public static synchronized SslUtility getInstance( Context c) {
 		if ( null == mInstance ) {
 			mInstance = new SslUtility( c );
 			//throw new RuntimeException("first call must be to SslUtility.newInstance(Context) ");
@@ -49,33 +43,20 @@ public class SslUtility {
 	}
 
 
-	public SSLSocketFactory getSocketFactory(int certificateId, String certificatePassword ) {
-
-		SSLSocketFactory result = mSocketFactoryMap.get(certificateId);  	// check to see if already created
-
-		if ( ( null == result) && ( null != mContext ) ) {					// not cached so need to load server certificate
-
-			try {
-				KeyStore keystoreTrust = KeyStore.getInstance("BKS");		// Bouncy Castle
-
-				keystoreTrust.load(mContext.getResources().openRawResource(certificateId),
-						certificatePassword.toCharArray());
-
-				TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-
-				trustManagerFactory.init(keystoreTrust);
+	/**
+	 * Method returning the factory of the SSL sockets trusting the certificates in the BKS trust store
+	 * <code>certificateId</code>. A single factory (with its SSL context and TLS session cache) is created for
+	 * each trust store, and the trust store is loaded only when the first socket is created.
+	 */
+	public synchronized SessionCachingSocketFactory getSocketFactory(int certificateId, String certificatePassword ) {
 
-				SSLContext sslContext = SSLContext.getInstance("TLS");
+		SessionCachingSocketFactory result = mSocketFactoryMap.get(certificateId);  	// check to see if already created
 
-				sslContext.init(null, trustManagerFactory.getTrustManagers(), new SecureRandom());
+		if ( ( null == result) && ( null != mContext ) ) {
 
-				result = sslContext.getSocketFactory();
+			result = new SessionCachingSocketFactory(mContext, certificateId, certificatePassword);
 
-				mSocketFactoryMap.put( certificateId, result);	// cache for reuse
-			}
-			catch ( Exception ex ) {
-				// log exception
-			}
+			mSocketFactoryMap.put( certificateId, result);	// cache for reuse
 		}
 
 		return result;